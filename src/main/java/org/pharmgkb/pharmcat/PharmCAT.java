@@ -1,6 +1,7 @@
 package org.pharmgkb.pharmcat;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -29,7 +30,7 @@
  */
 public class PharmCAT {
   private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
-  private static final Pattern sf_inputNamePattern = Pattern.compile("(.*)\\.vcf");
+  private static final Pattern sf_inputNamePattern = Pattern.compile("(.*)\\.(vcf(\\.gz)?|bcf)");
 
   private NamedAlleleMatcher m_namedAlleleMatcher;
   private Reporter m_reporter;
@@ -39,7 +40,7 @@ public class PharmCAT {
 
   public static void main(String[] args) {
     CliHelper cliHelper = new CliHelper(MethodHandles.lookup().lookupClass())
-        .addOption("vcf", "sample-file", "input call file (VCF)", true, "vcf")
+        .addOption("vcf", "sample-file", "input call file (VCF or BCF, optionally bgzipped and indexed), directory of VCF files for one sample (e.g. one per chromosome), or - to read from stdin", true, "vcf")
         .addOption("o", "output-dir", "directory to output to", true, "o")
         .addOption("f", "output-file", "the base name used for ouput file names (will add file extensions), will default to same value as call-file if not specified", false, "f")
         .addOption("a", "outside-call-file", "path to an outside call file (TSV)", false, "a")
@@ -55,7 +56,8 @@ public static void main(String[] args) {
         System.exit(1);
       }
 
-      Path vcfFile = cliHelper.getValidFile("vcf", true);
+      boolean useStdin = cliHelper.getValue("vcf").equals("-");
+      Path vcfFile = useStdin ? null : cliHelper.getPath("vcf");
       Path outputDir = cliHelper.getValidDirectory("o", true);
       Path outsideCallPath = null;
       if (cliHelper.hasOption("a")) {
@@ -81,9 +83,12 @@ public static void main(String[] args) {
         pharmcat.keepMatcherOutput();
       }
 
-      pharmcat
-          .writeJson(cliHelper.hasOption("j"))
-          .execute(vcfFile, outsideCallPath, outputFile);
+      pharmcat.writeJson(cliHelper.hasOption("j"));
+      if (useStdin) {
+        pharmcat.execute(System.in, NamedAlleleMatcher.STDIN_NAME, outsideCallPath, outputFile);
+      } else {
+        pharmcat.execute(vcfFile, outsideCallPath, outputFile);
+      }
 
     } catch (Exception e) {
       e.printStackTrace();
@@ -138,23 +143,43 @@ public PharmCAT(@Nonnull Path outputDir, @Nullable Path definitionsDir, @Nullabl
 
   /**
    * Executes the {@link NamedAlleleMatcher} then the {@link Reporter} on the given sample data
-   * @param vcfFile the input sample VCF file
+   * @param vcfFile the input sample VCF file, or a directory of VCF files for the sample (e.g. one per chromosome)
    * @param outsideCallFile the optional input outside call TSV file
    * @param outputFile the optional name to write the output to
    * @throws Exception can occur from file I/O or unexpected state
    */
   public void execute(@Nonnull Path vcfFile, @Nullable Path outsideCallFile, @Nullable String outputFile) throws Exception {
-    Preconditions.checkArgument(Files.isRegularFile(vcfFile), "Not a file: %s", vcfFile);
+    Preconditions.checkArgument(Files.isRegularFile(vcfFile) || Files.isDirectory(vcfFile),
+        "Not a file or directory: %s", vcfFile);
+
+    sf_logger.info("Run time: " + new Date());
+    execute(m_namedAlleleMatcher.call(vcfFile), outsideCallFile, makeFileRoot(vcfFile, outputFile));
+  }
+
+  /**
+   * Executes the {@link NamedAlleleMatcher} then the {@link Reporter} on sample data from a stream (e.g. stdin)
+   * @param vcfStream the input sample VCF data
+   * @param inputName the name of the input, used as the output file name if outputFile isn't specified
+   * @param outsideCallFile the optional input outside call TSV file
+   * @param outputFile the optional name to write the output to
+   * @throws Exception can occur from file I/O or unexpected state
+   */
+  public void execute(@Nonnull InputStream vcfStream, @Nonnull String inputName, @Nullable Path outsideCallFile,
+      @Nullable String outputFile) throws Exception {
 
     sf_logger.info("Run time: " + new Date());
-    String fileRoot = makeFileRoot(vcfFile, outputFile);
+    execute(m_namedAlleleMatcher.call(vcfStream, inputName), outsideCallFile,
+        outputFile != null ? outputFile : inputName);
+  }
+
+  private void execute(@Nonnull Result result, @Nullable Path outsideCallFile, @Nonnull String fileRoot)
+      throws Exception {
 
     Path callFile = m_outputDir.resolve(fileRoot + ".call.json");
     if (!m_keepMatcherOutput) {
       callFile.toFile().deleteOnExit();
     }
 
-    Result result = m_namedAlleleMatcher.call(vcfFile);
     ResultSerializer resultSerializer = new ResultSerializer();
     resultSerializer.toJson(result, callFile);
     if (m_keepMatcherOutput) {
@@ -5,6 +5,7 @@
 import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.Map;
+import javax.annotation.Nullable;
 
 /**
  * This will give a map of RefSeq chromosome identifier to GRC build number.
@@ -36,4 +37,27 @@ public AssemblyMap() throws IOException {
   public String get(String refSeqId) {
     return m_assemblyMap.get(refSeqId);
   }
+
+  /**
+   * Gets the build number (in format b##) for an assembly name as used in VCF contig metadata (e.g. hg19, GRCh37).
+   *
+   * @return the build number, or null if the assembly isn't recognized
+   */
+  public static @Nullable String toBuild(@Nullable String assembly) {
+    if (assembly == null) {
+      return null;
+    }
+    switch (assembly.replace("\"", "").toLowerCase()) {
+      case "hg19":
+      case "grch37":
+      case "b37":
+        return GRCH37;
+      case "hg38":
+      case "grch38":
+      case "b38":
+        return GRCH38;
+      default:
+        return null;
+    }
+  }
 }
@@ -0,0 +1,76 @@
+package org.pharmgkb.pharmcat.definition;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.pharmgkb.pharmcat.ParseException;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+
+
+/**
+ * This maps the (GRCh38) positions of all allele definition and exemption variants to their GRCh37 positions, so that
+ * GRCh37 VCF files can be read without being lifted over first.
+ * <p>
+ * The map is precomputed ({@code b37_positions.tsv}: gene, chromosome, GRCh38 position, GRCh37 position, GRCh37
+ * strand).  Every gene currently lies within a single alignment block between the two assemblies on the same strand,
+ * so the anchor bases VCF uses for deletions don't move relative to the variant; entries on the minus strand are not
+ * supported.
+ */
+public class B37PositionMap {
+  private static final String FILE_NAME = "b37_positions.tsv";
+  // <chromosome:GRCh38 position, GRCh37 position>
+  private final Map<String, Integer> m_positions = new HashMap<>();
+
+
+  public B37PositionMap() throws IOException {
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream(FILE_NAME),
+        StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] fields = line.split("\t");
+        if (fields.length < 5) {
+          throw new ParseException("Invalid line in " + FILE_NAME + ": " + line);
+        }
+        if (!fields[4].equals("+")) {
+          throw new ParseException("Unsupported strand for " + fields[1] + ":" + fields[2] + " in " + FILE_NAME);
+        }
+        try {
+          m_positions.put(fields[1] + ":" + Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+        } catch (NumberFormatException ex) {
+          throw new ParseException("Invalid position in " + FILE_NAME + ": " + line, ex);
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Gets the GRCh37 position for a GRCh38 position.
+   *
+   * @return the GRCh37 position, or null if it isn't in this map
+   */
+  public @Nullable Integer get(@Nonnull String chromosome, int position) {
+    return m_positions.get(chromosome + ":" + position);
+  }
+
+  /**
+   * Gets the GRCh37 VCF position for a (GRCh38) variant, taking into account the anchor base for deletions.
+   *
+   * @return the GRCh37 VCF position, or -1 if it isn't in this map
+   */
+  public int getVcfPosition(@Nonnull VariantLocus locus) {
+    Integer position = get(locus.getChromosome(), locus.getPosition());
+    if (position == null) {
+      return -1;
+    }
+    return position - (locus.getPosition() - locus.getVcfPosition());
+  }
+}
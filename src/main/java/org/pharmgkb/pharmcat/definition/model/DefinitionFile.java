@@ -253,11 +253,15 @@ public Set<String> getVariantAlleles(VariantLocus vl) {
 
   /**
    * Generates variant alleles.  Must be called before using {@link #getVariantAlleles()}.
+   * This also sets the reference allele of each {@link VariantLocus}.
    */
   public void generateVariantAlleles() {
 
     m_variantAlleles = new ArrayList<>();
     for (VariantLocus varLoc : m_variants) {
+      if (!m_namedAlleles.isEmpty()) {
+        varLoc.setReferenceAllele(m_namedAlleles.get(0).getAllele(varLoc));
+      }
       m_variantAlleles.add(
           m_namedAlleles.stream()
               .map(na -> na.getAllele(varLoc))
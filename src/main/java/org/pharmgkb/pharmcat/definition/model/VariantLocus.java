@@ -3,6 +3,7 @@
 import java.util.Objects;
 import java.util.regex.Pattern;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import com.google.common.base.Preconditions;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
@@ -43,6 +44,7 @@ public class VariantLocus implements Comparable<VariantLocus> {
   @Expose
   @SerializedName("referenceRepeat")
   private String m_referenceRepeat;
+  private String m_referenceAllele;
 
 
   public VariantLocus(@Nonnull String chromosome, int position, @Nonnull String chromosomeHgvsName) {
@@ -163,6 +165,19 @@ public void setReferenceRepeat(String referenceRepeat) {
   }
 
 
+  /**
+   * Gets the reference allele (i.e. the allele of the first named allele), in allele definition format.
+   * This is only available after {@link DefinitionFile#generateVariantAlleles()} has been called.
+   */
+  public @Nullable String getReferenceAllele() {
+    return m_referenceAllele;
+  }
+
+  public void setReferenceAllele(@Nullable String referenceAllele) {
+    m_referenceAllele = referenceAllele;
+  }
+
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -0,0 +1,156 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import org.pharmgkb.pharmcat.definition.model.NamedAllele;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+
+
+/**
+ * A columnar view of {@link MatchData}, with everything needed to match sample alleles to haplotypes in arrays indexed
+ * by position.
+ * <p>
+ * Positions are in the same order as in sample permutations (see {@link MatchData#getSampleAlleles()}).  At each
+ * position, the sample's alleles are coded as indices into a small dictionary: allele 1 is always code 0, and allele 2
+ * is code 1 unless it is the same as allele 1.  Haplotypes are compiled against the same codes, as one bitset over
+ * haplotypes per position and code, marking the haplotypes that allow that allele.
+ */
+class AlleleColumns {
+  private final SampleAllele[] m_sampleAlleles;
+  private final VariantLocus[] m_loci;
+  // [position][code]
+  private final String[][] m_alleles;
+  private final int[] m_allele2Codes;
+  private final long[] m_phased;
+  private final List<NamedAllele> m_haplotypes;
+  private final int m_numHaplotypeWords;
+  // [position][code][word]
+  private final long[][][] m_haplotypeBits;
+
+
+  AlleleColumns(@Nonnull MatchData data) {
+
+    List<SampleAllele> sampleAlleles = data.getSampleAlleles();
+    VariantLocus[] positions = data.getPositions();
+    // <vcf position, index in positions>
+    Map<Integer, Integer> positionIndex = new HashMap<>();
+    for (int x = 0; x < positions.length; x += 1) {
+      positionIndex.put(positions[x].getVcfPosition(), x);
+    }
+
+    int size = sampleAlleles.size();
+    m_sampleAlleles = sampleAlleles.toArray(new SampleAllele[0]);
+    m_loci = new VariantLocus[size];
+    m_alleles = new String[size][];
+    m_allele2Codes = new int[size];
+    m_phased = new long[(size + 63) / 64];
+    m_haplotypes = data.getHaplotypes();
+    m_numHaplotypeWords = (m_haplotypes.size() + 63) / 64;
+    m_haplotypeBits = new long[size][][];
+
+    for (int x = 0; x < size; x += 1) {
+      SampleAllele sampleAllele = m_sampleAlleles[x];
+      Integer idx = positionIndex.get(sampleAllele.getPosition());
+      if (idx == null) {
+        throw new IllegalStateException("No position for sample allele at " + sampleAllele.getPosition());
+      }
+      m_loci[x] = positions[idx];
+      // same as CombinationUtil
+      String allele1 = sampleAllele.getAllele1();
+      String allele2 = String.valueOf(sampleAllele.getAllele2());
+      if (allele1.equals(allele2)) {
+        m_alleles[x] = new String[] { allele1 };
+      } else {
+        m_alleles[x] = new String[] { allele1, allele2 };
+        m_allele2Codes[x] = 1;
+      }
+      if (sampleAllele.isPhased()) {
+        m_phased[x >> 6] |= 1L << x;
+      }
+
+      m_haplotypeBits[x] = new long[m_alleles[x].length][m_numHaplotypeWords];
+      for (int h = 0; h < m_haplotypes.size(); h += 1) {
+        NamedAllele hap = m_haplotypes.get(h);
+        // alleles line up with positions unless the haplotype wasn't initialized with them
+        String allele = hap.getAlleles().length == positions.length ? hap.getAlleles()[idx] : hap.getAllele(m_loci[x]);
+        for (int c = 0; c < m_alleles[x].length; c += 1) {
+          if (BitsetMatcher.isAllowed(m_loci[x], allele, m_alleles[x][c])) {
+            m_haplotypeBits[x][c][h >> 6] |= 1L << h;
+          }
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Gets the number of positions.
+   */
+  int size() {
+    return m_sampleAlleles.length;
+  }
+
+  @Nonnull SampleAllele getSampleAllele(int x) {
+    return m_sampleAlleles[x];
+  }
+
+  @Nonnull VariantLocus getLocus(int x) {
+    return m_loci[x];
+  }
+
+  /**
+   * Gets the allele for a code at a position, as it appears in sample permutations.
+   */
+  @Nonnull String getAllele(int x, int code) {
+    return m_alleles[x][code];
+  }
+
+  int getAllele1Code(int x) {
+    return 0;
+  }
+
+  int getAllele2Code(int x) {
+    return m_allele2Codes[x];
+  }
+
+  boolean isPhased(int x) {
+    return (m_phased[x >> 6] & (1L << x)) != 0;
+  }
+
+  boolean isHomozygous(int x) {
+    return m_allele2Codes[x] == 0;
+  }
+
+  /**
+   * Finds the code for the allele at {@code start} (inclusive) to {@code end} (exclusive) in {@code seq}.
+   *
+   * @return the code, or -1 if it is not one of the sample's alleles at this position
+   */
+  int findCode(int x, @Nonnull String seq, int start, int end) {
+    for (int c = 0; c < m_alleles[x].length; c += 1) {
+      String allele = m_alleles[x][c];
+      if (allele.length() == end - start && seq.startsWith(allele, start)) {
+        return c;
+      }
+    }
+    return -1;
+  }
+
+
+  @Nonnull List<NamedAllele> getHaplotypes() {
+    return m_haplotypes;
+  }
+
+  int getNumHaplotypeWords() {
+    return m_numHaplotypeWords;
+  }
+
+  /**
+   * Gets the bitset of haplotypes that allow the allele for a code at a position.
+   */
+  @Nonnull long[] getHaplotypeBits(int x, int code) {
+    return m_haplotypeBits[x][code];
+  }
+}
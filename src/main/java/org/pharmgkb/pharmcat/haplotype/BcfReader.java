@@ -0,0 +1,397 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import org.pharmgkb.parser.vcf.VcfLineParser;
+import org.pharmgkb.parser.vcf.model.VcfMetadata;
+import org.pharmgkb.parser.vcf.model.VcfPosition;
+import org.pharmgkb.parser.vcf.model.VcfSample;
+import org.pharmgkb.pharmcat.ParseException;
+
+
+/**
+ * Reads BCF (binary VCF) data, decoding just enough of each record to hand positions of interest to a
+ * {@link VcfLineParser} the same way {@link org.pharmgkb.parser.vcf.VcfParser} would.
+ * <p>
+ * Only CHROM, POS and rlen are decoded for records that aren't at (or, for gVCF reference blocks, covering) a position
+ * of interest.  For those that are, only the alleles and the GT field of the samples being read are decoded, and
+ * samples that aren't being read are jumped over without being looked at.  ID, QUAL, FILTER, INFO and all other
+ * FORMAT fields are skipped.
+ * <p>
+ * See the <a href="https://samtools.github.io/hts-specs/VCFv4.3.pdf">BCF2 specification</a> for details.
+ */
+class BcfReader {
+  private static final Pattern sf_headerLinePattern =
+      Pattern.compile("^##(contig|FILTER|INFO|FORMAT)=<ID=([^,>]+)(?:.*[,<]IDX=(\\d+))?", Pattern.MULTILINE);
+  private static final int TYPE_INT8 = 1;
+  private static final int TYPE_INT16 = 2;
+  private static final int TYPE_INT32 = 3;
+  private static final int TYPE_FLOAT = 5;
+  private static final int TYPE_CHAR = 7;
+  private static final VcfSample sf_emptySample = new VcfSample(new LinkedHashMap<>());
+  private final String m_headerText;
+  private final List<String> m_contigs;
+  private final int m_gtKey;
+  private ByteBuffer m_buffer = ByteBuffer.allocate(65536).order(ByteOrder.LITTLE_ENDIAN);
+
+
+  /**
+   * Constructor.  Reads the BCF header from the stream.
+   */
+  BcfReader(@Nonnull InputStream in) throws IOException {
+
+    byte[] magic = new byte[5];
+    readFully(in, magic, 0, 5);
+    if (magic[0] != 'B' || magic[1] != 'C' || magic[2] != 'F' || magic[3] != 2) {
+      throw new ParseException("Not a BCF2 file");
+    }
+    byte[] lengthBytes = new byte[4];
+    readFully(in, lengthBytes, 0, 4);
+    int length = ByteBuffer.wrap(lengthBytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    byte[] text = new byte[length];
+    readFully(in, text, 0, length);
+    int end = length;
+    while (end > 0 && text[end - 1] == 0) {
+      end -= 1;
+    }
+    m_headerText = new String(text, 0, end, StandardCharsets.UTF_8);
+
+    // strings (FILTER, INFO and FORMAT IDs share one dictionary, with PASS always first) and contigs are referred to by
+    // index, which is their order in the header unless there is an explicit IDX
+    TreeMap<Integer, String> strings = new TreeMap<>();
+    TreeMap<Integer, String> contigs = new TreeMap<>();
+    Map<String, Integer> stringIdx = new HashMap<>();
+    strings.put(0, "PASS");
+    stringIdx.put("PASS", 0);
+    Matcher m = sf_headerLinePattern.matcher(m_headerText);
+    while (m.find()) {
+      boolean isContig = m.group(1).equals("contig");
+      String id = m.group(2);
+      if (!isContig && stringIdx.containsKey(id)) {
+        continue;
+      }
+      TreeMap<Integer, String> dictionary = isContig ? contigs : strings;
+      int idx = m.group(3) != null ? Integer.parseInt(m.group(3)) :
+          (dictionary.isEmpty() ? 0 : dictionary.lastKey() + 1);
+      dictionary.put(idx, id);
+      if (!isContig) {
+        stringIdx.put(id, idx);
+      }
+    }
+    m_contigs = new ArrayList<>();
+    for (Map.Entry<Integer, String> entry : contigs.entrySet()) {
+      while (m_contigs.size() < entry.getKey()) {
+        m_contigs.add(null);
+      }
+      m_contigs.add(entry.getValue());
+    }
+    m_gtKey = stringIdx.getOrDefault("GT", -1);
+  }
+
+
+  /**
+   * Gets the header as VCF text.
+   */
+  @Nonnull String getHeaderText() {
+    return m_headerText;
+  }
+
+  /**
+   * Gets the names of the contigs, in dictionary order.
+   */
+  @Nonnull List<String> getContigs() {
+    return Collections.unmodifiableList(m_contigs);
+  }
+
+
+  /**
+   * Reads BCF records, passing the ones at (or, for gVCF reference blocks, covering) positions of interest on to
+   * {@code lineParser}.
+   *
+   * @param in stream positioned at the start of a record
+   * @param sampleColumns the sorted (0-based) sample columns to decode genotypes for, the sample data handed to
+   * {@code lineParser} will only have these samples, in this order
+   */
+  void readRecords(@Nonnull InputStream in, @Nonnull LocusIndex locusIndex,
+      @Nonnull int[] sampleColumns, @Nonnull VcfMetadata metadata, @Nonnull VcfLineParser lineParser)
+      throws IOException {
+
+    // positions of interest, indexed by contig dictionary index
+    int[][] positions = new int[m_contigs.size()][];
+    for (int x = 0; x < m_contigs.size(); x += 1) {
+      int contigId = m_contigs.get(x) == null ? -1 : locusIndex.getContigId(m_contigs.get(x));
+      if (contigId != -1) {
+        positions[x] = locusIndex.getPositions(contigId);
+      }
+    }
+
+    byte[] lengths = new byte[20];
+    ByteBuffer lengthBuffer = ByteBuffer.wrap(lengths).order(ByteOrder.LITTLE_ENDIAN);
+    while (true) {
+      int read = readFully(in, lengths, 0, 20);
+      if (read == 0) {
+        break;
+      }
+      if (read < 20) {
+        throw new EOFException("Truncated BCF record");
+      }
+      int sharedLength = lengthBuffer.getInt(0);
+      int indivLength = lengthBuffer.getInt(4);
+      int contigIdx = lengthBuffer.getInt(8);
+      // BCF positions are 0-based
+      int pos = lengthBuffer.getInt(12) + 1;
+      // last position covered by the record (the END of gVCF reference blocks)
+      int end = pos + Math.max(1, lengthBuffer.getInt(16)) - 1;
+
+      if (contigIdx < 0 || contigIdx >= positions.length || positions[contigIdx] == null ||
+          !covers(positions[contigIdx], pos, end)) {
+        skipFully(in, sharedLength - 12L + indivLength);
+        continue;
+      }
+
+      ByteBuffer shared = fill(in, sharedLength - 12);
+      // skip QUAL
+      shared.position(4);
+      int numAlleles = shared.getInt() >>> 16;
+      int numSamplesInRecord = shared.getInt() & 0xffffff;
+      // skip ID
+      readString(shared);
+      String ref = numAlleles > 0 ? readString(shared) : ".";
+      List<String> alts = new ArrayList<>();
+      for (int x = 1; x < numAlleles; x += 1) {
+        alts.add(readString(shared));
+      }
+      ListMultimap<String, String> info = ArrayListMultimap.create();
+      if (end > pos + ref.length() - 1) {
+        info.put("END", Integer.toString(end));
+      }
+      VcfPosition position = new VcfPosition(m_contigs.get(contigIdx), pos, null, ref, alts, null, null, info, null);
+
+      ByteBuffer indiv = fill(in, indivLength);
+      lineParser.parseLine(metadata, position, readSamples(indiv, numSamplesInRecord, sampleColumns));
+    }
+  }
+
+
+  /**
+   * Checks if there is a position of interest between {@code start} and {@code end} (inclusive).
+   */
+  private static boolean covers(int[] positions, int start, int end) {
+    int idx = Arrays.binarySearch(positions, start);
+    if (idx >= 0) {
+      return true;
+    }
+    idx = -idx - 1;
+    return idx < positions.length && positions[idx] <= end;
+  }
+
+  /**
+   * Decodes GT for the samples in {@code sampleColumns}, jumping straight past all other samples.
+   */
+  private List<VcfSample> readSamples(ByteBuffer indiv, int numSamplesInRecord, int[] sampleColumns) {
+
+    List<VcfSample> samples = new ArrayList<>(sampleColumns.length);
+    while (indiv.hasRemaining()) {
+      int key = (int)readTypedInt(indiv);
+      int descriptor = indiv.get() & 0xff;
+      int type = descriptor & 0x0f;
+      int count = descriptor >>> 4;
+      if (count == 15) {
+        count = (int)readTypedInt(indiv);
+      }
+      int typeSize = typeSize(type);
+      if (key != m_gtKey) {
+        indiv.position(indiv.position() + numSamplesInRecord * count * typeSize);
+        continue;
+      }
+      int start = indiv.position();
+      for (int s : sampleColumns) {
+        if (s >= numSamplesInRecord) {
+          break;
+        }
+        indiv.position(start + s * count * typeSize);
+        LinkedHashMap<String, String> properties = new LinkedHashMap<>();
+        properties.put("GT", readGenotype(indiv, type, count));
+        samples.add(new VcfSample(properties));
+      }
+      indiv.position(start + numSamplesInRecord * count * typeSize);
+    }
+    // samples without GT
+    while (samples.size() < sampleColumns.length) {
+      samples.add(sf_emptySample);
+    }
+    return samples;
+  }
+
+  /**
+   * Reads a GT value.  Missing and end-of-vector values are handled the same way for all integer widths: a missing
+   * first allele is written as ".", and a missing value after that ends the genotype, same as end-of-vector.
+   */
+  static String readGenotype(ByteBuffer buffer, int type, int ploidy) {
+
+    int missing;
+    switch (type) {
+      case TYPE_INT8:
+        missing = Byte.MIN_VALUE;
+        break;
+      case TYPE_INT16:
+        missing = Short.MIN_VALUE;
+        break;
+      case TYPE_INT32:
+        missing = Integer.MIN_VALUE;
+        break;
+      default:
+        throw new ParseException("Unsupported type for GT: " + type);
+    }
+    int vectorEnd = missing + 1;
+
+    StringBuilder builder = new StringBuilder();
+    for (int x = 0; x < ploidy; x += 1) {
+      int value;
+      if (type == TYPE_INT8) {
+        value = buffer.get();
+      } else if (type == TYPE_INT16) {
+        value = buffer.getShort();
+      } else {
+        value = buffer.getInt();
+      }
+      if (value == vectorEnd || (value == missing && x > 0)) {
+        break;
+      }
+      if (value == missing) {
+        builder.append('.');
+        continue;
+      }
+      if (x > 0) {
+        builder.append((value & 1) == 1 ? '|' : '/');
+      }
+      int allele = (value >> 1) - 1;
+      if (allele < 0) {
+        builder.append('.');
+      } else {
+        builder.append(allele);
+      }
+    }
+    if (builder.length() == 0) {
+      return ".";
+    }
+    return builder.toString();
+  }
+
+
+  private static int typeSize(int type) {
+    switch (type) {
+      case 0:
+        return 0;
+      case TYPE_INT8:
+      case TYPE_CHAR:
+        return 1;
+      case TYPE_INT16:
+        return 2;
+      case TYPE_INT32:
+      case TYPE_FLOAT:
+        return 4;
+      default:
+        throw new ParseException("Unknown BCF type: " + type);
+    }
+  }
+
+  private static long readTypedInt(ByteBuffer buffer) {
+
+    int type = buffer.get() & 0x0f;
+    switch (type) {
+      case TYPE_INT8:
+        return buffer.get();
+      case TYPE_INT16:
+        return buffer.getShort();
+      case TYPE_INT32:
+        return buffer.getInt();
+      default:
+        throw new ParseException("Expected typed integer, got type " + type);
+    }
+  }
+
+  private static String readString(ByteBuffer buffer) {
+
+    int descriptor = buffer.get() & 0xff;
+    int type = descriptor & 0x0f;
+    int length = descriptor >>> 4;
+    if (length == 15) {
+      length = (int)readTypedInt(buffer);
+    }
+    if (type != TYPE_CHAR && length > 0) {
+      throw new ParseException("Expected string, got type " + type);
+    }
+    String string = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    // strings may be padded with nulls
+    int end = string.indexOf('\0');
+    return end == -1 ? string : string.substring(0, end);
+  }
+
+
+  /**
+   * Reads {@code length} bytes into the shared buffer.
+   */
+  private ByteBuffer fill(InputStream in, int length) throws IOException {
+
+    if (m_buffer.capacity() < length) {
+      m_buffer = ByteBuffer.allocate(Math.max(length, m_buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    if (readFully(in, m_buffer.array(), 0, length) != length) {
+      throw new EOFException("Truncated BCF record");
+    }
+    m_buffer.clear().limit(length);
+    return m_buffer;
+  }
+
+  /**
+   * Reads up to {@code length} bytes, stopping early only at end of stream.
+   *
+   * @return the number of bytes read
+   */
+  private static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+
+    int total = 0;
+    while (total < length) {
+      int read = in.read(buffer, offset + total, length - total);
+      if (read == -1) {
+        break;
+      }
+      total += read;
+    }
+    return total;
+  }
+
+  private static void skipFully(InputStream in, long length) throws IOException {
+
+    long remaining = length;
+    while (remaining > 0) {
+      long skipped = in.skip(remaining);
+      if (skipped <= 0) {
+        if (in.read() == -1) {
+          throw new EOFException("Truncated BCF record");
+        }
+        skipped = 1;
+      }
+      remaining -= skipped;
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.pharmgkb.pharmcat.definition.model.NamedAllele;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+import org.pharmgkb.pharmcat.definition.model.VariantType;
+import org.pharmgkb.pharmcat.haplotype.model.HaplotypeMatch;
+
+
+/**
+ * Matches sample permutations against haplotypes without using regular expressions.
+ * <p>
+ * Each permutation is encoded as an array of allele codes (one per position, looked up in a per-position dictionary of
+ * the sample's alleles) and then as one bitset per code.  Each haplotype is compiled into one bitset per code as well,
+ * marking the positions where that code is allowed (IUPAC codes are expanded at this point).  A permutation matches a
+ * haplotype if none of its bits fall outside the haplotype's allowed bits, which only takes a few word-level operations.
+ * <p>
+ * This gives the same results as {@link NamedAllele#getPermutations()}.  Permutations that can't be encoded (because
+ * they don't line up with the haplotype positions) fall back to the regular expression.
+ */
+class BitsetMatcher {
+  private static final Pattern sf_literalPattern = Pattern.compile("[A-Za-z0-9-]*");
+  // positions, in the same order as the permutations
+  private final VariantLocus[] m_positions;
+  private final int m_numWords;
+  // <allele, code>, per position
+  private final List<Map<String, Integer>> m_codes = new ArrayList<>();
+  private int m_numCodes;
+  private final List<String> m_sequences = new ArrayList<>();
+  // [permutation][code][word]
+  private final List<long[][]> m_bitsets = new ArrayList<>();
+  private final List<String> m_unencoded = new ArrayList<>();
+
+
+  BitsetMatcher(@Nonnull MatchData dataset) {
+
+    m_positions = Arrays.stream(dataset.getPositions()).sorted().toArray(VariantLocus[]::new);
+    m_numWords = (m_positions.length + 63) / 64;
+    for (VariantLocus ignored : m_positions) {
+      m_codes.add(new HashMap<>());
+    }
+
+    List<int[]> encoded = new ArrayList<>();
+    for (String seq : dataset.getPermutations()) {
+      int[] codes = encode(seq);
+      if (codes == null) {
+        m_unencoded.add(seq);
+      } else {
+        m_sequences.add(seq);
+        encoded.add(codes);
+      }
+    }
+    for (int[] codes : encoded) {
+      long[][] bitset = new long[m_numCodes][m_numWords];
+      for (int x = 0; x < codes.length; x += 1) {
+        bitset[codes[x]][x >> 6] |= 1L << x;
+      }
+      m_bitsets.add(bitset);
+    }
+  }
+
+
+  /**
+   * Encodes a permutation as an array of allele codes.
+   *
+   * @return the allele codes, or null if the permutation doesn't line up with the positions
+   */
+  private @Nullable int[] encode(@Nonnull String seq) {
+
+    String[] tokens = seq.split(";");
+    if (tokens.length != m_positions.length) {
+      return null;
+    }
+    int[] codes = new int[tokens.length];
+    for (int x = 0; x < tokens.length; x += 1) {
+      int idx = tokens[x].indexOf(':');
+      if (idx == -1 || !tokens[x].substring(0, idx).equals(Integer.toString(m_positions[x].getVcfPosition()))) {
+        return null;
+      }
+      Map<String, Integer> codeMap = m_codes.get(x);
+      Integer code = codeMap.computeIfAbsent(tokens[x].substring(idx + 1), k -> codeMap.size());
+      codes[x] = code;
+      m_numCodes = Math.max(m_numCodes, code + 1);
+    }
+    return codes;
+  }
+
+
+  /**
+   * Compiles a haplotype into one bitset per allele code, marking the positions where that code is allowed.
+   */
+  private long[][] compile(@Nonnull NamedAllele haplotype) {
+
+    long[][] allowed = new long[m_numCodes][m_numWords];
+    for (int x = 0; x < m_positions.length; x += 1) {
+      String allele = haplotype.getAllele(m_positions[x]);
+      for (Map.Entry<String, Integer> entry : m_codes.get(x).entrySet()) {
+        if (isAllowed(m_positions[x], allele, entry.getKey())) {
+          allowed[entry.getValue()][x >> 6] |= 1L << x;
+        }
+      }
+    }
+    return allowed;
+  }
+
+  /**
+   * Checks if a haplotype's allele allows a sample allele, following the same rules used to build
+   * {@link NamedAllele#getPermutations()}.
+   */
+  static boolean isAllowed(@Nonnull VariantLocus locus, @Nullable String allele, @Nonnull String sampleAllele) {
+
+    if (allele == null) {
+      return true;
+    }
+    if (locus.getType() == VariantType.REPEAT) {
+      return allele.equals(sampleAllele);
+    }
+    if (locus.getType() == VariantType.SNP && allele.length() == 1) {
+      Iupac iupac = Iupac.lookup(allele);
+      if (iupac == Iupac.DEL) {
+        return iupac.getRegex().equals(sampleAllele);
+      }
+      return iupac.getBases().contains(sampleAllele);
+    }
+    if (sf_literalPattern.matcher(allele).matches()) {
+      return allele.equals(sampleAllele);
+    }
+    return Pattern.matches(allele, sampleAllele);
+  }
+
+
+  /**
+   * Matches all permutations against the given haplotypes, adding matching sequences to them.
+   */
+  void match(@Nonnull Collection<HaplotypeMatch> haplotypeMatches) {
+
+    for (HaplotypeMatch hm : haplotypeMatches) {
+      long[][] allowed = compile(hm.getHaplotype());
+      for (int x = 0; x < m_bitsets.size(); x += 1) {
+        if (matches(m_bitsets.get(x), allowed)) {
+          hm.addSequence(m_sequences.get(x));
+        }
+      }
+      for (String seq : m_unencoded) {
+        hm.match(seq);
+      }
+    }
+  }
+
+  private boolean matches(long[][] bitset, long[][] allowed) {
+
+    for (int c = 0; c < m_numCodes; c += 1) {
+      for (int w = 0; w < m_numWords; w += 1) {
+        if ((bitset[c][w] & ~allowed[c][w]) != 0) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,138 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+import org.pharmgkb.pharmcat.definition.model.NamedAllele;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+
+
+/**
+ * Finds the haplotypes that could match each sample in a cohort, for a single gene, 64 samples at a time.
+ * <p>
+ * Sample genotypes are stored by position and allele, as bitsets over samples of who has that allele (plus a bitset of
+ * who is missing that position).  A haplotype can only match a sample if, at every position, the sample has an allele
+ * the haplotype allows or is missing the position, so checking a haplotype against 64 samples takes a few word-level
+ * operations per position.  Samples then only need to be matched against their surviving haplotypes.
+ * <p>
+ * This is only a filter: a surviving haplotype may still not match once phasing is taken into account.
+ */
+class CohortFilter {
+  private final int m_numSamples;
+  // <haplotype name, index>
+  private final Map<String, Integer> m_haplotypeIndex = new HashMap<>();
+  // [haplotype][word]
+  private final long[][] m_survivors;
+
+
+  /**
+   * Constructor.
+   *
+   * @param positions the positions used to call the gene
+   * @param keyFunction gets the {@code chr:position} key for a position
+   * @param haplotypes the haplotypes for the gene, starting with the reference
+   * @param assumeReference true if missing alleles in haplotypes should be treated as reference
+   * @param samples the alleles for each sample
+   */
+  CohortFilter(@Nonnull VariantLocus[] positions, @Nonnull Function<VariantLocus, String> keyFunction,
+      @Nonnull List<NamedAllele> haplotypes, boolean assumeReference,
+      @Nonnull List<SortedMap<String, SampleAllele>> samples) {
+
+    m_numSamples = samples.size();
+    int numWords = (m_numSamples + 63) / 64;
+
+    // build genotype matrix: [position][allele code][word] and [position][word]
+    List<List<String>> alleles = new ArrayList<>();
+    List<List<long[]>> hasAllele = new ArrayList<>();
+    long[][] missing = new long[positions.length][numWords];
+    for (int p = 0; p < positions.length; p += 1) {
+      String key = keyFunction.apply(positions[p]);
+      Map<String, Integer> codes = new HashMap<>();
+      List<String> positionAlleles = new ArrayList<>();
+      List<long[]> positionBits = new ArrayList<>();
+      for (int s = 0; s < m_numSamples; s += 1) {
+        SampleAllele sampleAllele = samples.get(s).get(key);
+        if (sampleAllele == null) {
+          missing[p][s >> 6] |= 1L << s;
+          continue;
+        }
+        // same conversion and null handling as MatchData and CombinationUtil
+        sampleAllele = sampleAllele.forVariant(positions[p]);
+        for (String allele : new String[] { sampleAllele.getAllele1(), String.valueOf(sampleAllele.getAllele2()) }) {
+          int code = codes.computeIfAbsent(allele, k -> {
+            positionAlleles.add(k);
+            positionBits.add(new long[numWords]);
+            return positionAlleles.size() - 1;
+          });
+          positionBits.get(code)[s >> 6] |= 1L << s;
+        }
+      }
+      alleles.add(positionAlleles);
+      hasAllele.add(positionBits);
+    }
+
+    m_survivors = new long[haplotypes.size()][numWords];
+    long[] acceptable = new long[numWords];
+    for (int h = 0; h < haplotypes.size(); h += 1) {
+      NamedAllele hap = haplotypes.get(h);
+      m_haplotypeIndex.put(hap.getName(), h);
+      long[] survivors = m_survivors[h];
+      for (int w = 0; w < numWords; w += 1) {
+        survivors[w] = w < numWords - 1 || m_numSamples % 64 == 0 ? -1L : (1L << (m_numSamples % 64)) - 1;
+      }
+
+      for (int p = 0; p < positions.length; p += 1) {
+        String allele = hap.getAllele(positions[p]);
+        if (allele == null && assumeReference && h > 0) {
+          allele = haplotypes.get(0).getAllele(positions[p]);
+        }
+        System.arraycopy(missing[p], 0, acceptable, 0, numWords);
+        for (int c = 0; c < alleles.get(p).size(); c += 1) {
+          if (BitsetMatcher.isAllowed(positions[p], allele, alleles.get(p).get(c))) {
+            long[] bits = hasAllele.get(p).get(c);
+            for (int w = 0; w < numWords; w += 1) {
+              acceptable[w] |= bits[w];
+            }
+          }
+        }
+        boolean anySurvivors = false;
+        for (int w = 0; w < numWords; w += 1) {
+          survivors[w] &= acceptable[w];
+          anySurvivors |= survivors[w] != 0;
+        }
+        if (!anySurvivors) {
+          break;
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Checks if a haplotype could match a sample.
+   *
+   * @param sample the index of the sample
+   * @param haplotypeName the name of the haplotype
+   */
+  boolean mayMatch(int sample, @Nonnull String haplotypeName) {
+    Integer h = m_haplotypeIndex.get(haplotypeName);
+    return h == null || (m_survivors[h][sample >> 6] & (1L << sample)) != 0;
+  }
+
+  /**
+   * Gets the number of haplotypes that could match a sample.
+   */
+  int countCandidates(int sample) {
+    int count = 0;
+    for (long[] survivors : m_survivors) {
+      if ((survivors[sample >> 6] & (1L << sample)) != 0) {
+        count += 1;
+      }
+    }
+    return count;
+  }
+}
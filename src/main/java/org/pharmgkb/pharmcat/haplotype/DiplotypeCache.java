@@ -0,0 +1,108 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.pharmgkb.pharmcat.definition.model.DefinitionFile;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+import org.pharmgkb.pharmcat.haplotype.model.DiplotypeMatch;
+
+
+/**
+ * A size-bounded cache of diplotype calls for a gene, for reuse across samples with the same genotypes.
+ * <p>
+ * Calls are keyed by gene, definition version and the sample's genotypes at the gene's positions (including phasing
+ * and missing positions), which is everything that goes into calling diplotypes other than the
+ * {@link NamedAlleleMatcher} settings.  A cache should therefore only be used by a single {@link NamedAlleleMatcher}.
+ */
+@ThreadSafe
+public class DiplotypeCache {
+  private final Cache<String, List<DiplotypeMatch>> m_cache;
+
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize the maximum number of gene calls to keep
+   */
+  public DiplotypeCache(long maxSize) {
+    Preconditions.checkArgument(maxSize > 0, "Cache size must be greater than 0");
+    m_cache = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .recordStats()
+        .build();
+  }
+
+
+  /**
+   * Gets the diplotype calls for the given sample data, calling them with {@code caller} if they haven't been cached.
+   */
+  @Nonnull List<DiplotypeMatch> get(@Nonnull DefinitionFile definitionFile, @Nonnull MatchData data,
+      @Nonnull Supplier<List<DiplotypeMatch>> caller) {
+
+    String key = buildKey(definitionFile, data);
+    List<DiplotypeMatch> matches = m_cache.getIfPresent(key);
+    if (matches == null) {
+      matches = caller.get();
+      m_cache.put(key, matches);
+      return matches;
+    }
+
+    // point cached matches at this sample's data
+    List<DiplotypeMatch> rez = new ArrayList<>(matches.size());
+    for (DiplotypeMatch match : matches) {
+      DiplotypeMatch dm = new DiplotypeMatch(match.getHaplotype1(), match.getHaplotype2(), data);
+      match.getSequences().forEach(dm::addSequencePair);
+      rez.add(dm);
+    }
+    return rez;
+  }
+
+  private static String buildKey(DefinitionFile definitionFile, MatchData data) {
+
+    StringBuilder builder = new StringBuilder()
+        .append(definitionFile.getGeneSymbol())
+        .append("\t")
+        .append(definitionFile.getModificationDate() == null ? "" : definitionFile.getModificationDate().getTime())
+        .append("\t");
+    for (VariantLocus vl : data.getPositions()) {
+      SampleAllele allele = data.getSampleAllele(vl.getVcfPosition());
+      builder.append(vl.getVcfPosition())
+          .append(":")
+          .append(allele.getAllele1())
+          .append(allele.isPhased() ? "|" : "/")
+          .append(allele.getAllele2())
+          .append(";");
+    }
+    builder.append("\tmissing:");
+    data.getMissingPositions().stream()
+        .map(VariantLocus::getVcfPosition)
+        .sorted()
+        .forEach(p -> builder.append(p).append(";"));
+    return builder.toString();
+  }
+
+
+  public long getHitCount() {
+    return m_cache.stats().hitCount();
+  }
+
+  public long getMissCount() {
+    return m_cache.stats().missCount();
+  }
+
+  public long getEvictionCount() {
+    return m_cache.stats().evictionCount();
+  }
+
+  @Override
+  public String toString() {
+    return "DiplotypeCache{hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" +
+        getEvictionCount() + "}";
+  }
+}
@@ -2,15 +2,20 @@
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import org.pharmgkb.pharmcat.definition.model.NamedAllele;
 import org.pharmgkb.pharmcat.haplotype.model.DiplotypeMatch;
 import org.pharmgkb.pharmcat.haplotype.model.HaplotypeMatch;
@@ -23,24 +28,80 @@
  */
 public class DiplotypeMatcher {
   private MatchData m_dataset;
+  private boolean m_useBitsets;
+  private Predicate<NamedAllele> m_candidates;
 
 
   public DiplotypeMatcher(@Nonnull MatchData dataset) {
+    this(dataset, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param useBitsets true to match permutations to haplotypes with {@link BitsetMatcher} instead of regular expressions
+   */
+  public DiplotypeMatcher(@Nonnull MatchData dataset, boolean useBitsets) {
 
     m_dataset = dataset;
+    m_useBitsets = useBitsets;
+  }
+
+
+  /**
+   * Only considers haplotypes that pass the given test (e.g. the ones left by {@link CohortFilter}).  Haplotypes that
+   * are left out must be ones that cannot match the sample, otherwise results will be wrong.
+   */
+  DiplotypeMatcher candidates(@Nullable Predicate<NamedAllele> candidates) {
+    m_candidates = candidates;
+    return this;
   }
 
 
+  /**
+   * Calls diplotypes.
+   * <p>
+   * If sample permutations have already been generated (see {@link MatchData#generateSamplePermutations()}), they are
+   * compared to haplotypes one by one.  Otherwise, they are searched with {@link PermutationSearch}, which never
+   * generates permutations that cannot match any haplotype.
+   */
   public List<DiplotypeMatch> compute() {
+    return compute(false);
+  }
 
-    // compare sample permutations to haplotypes
-    SortedSet<HaplotypeMatch> matches = comparePermutations();
+  /**
+   * Calls diplotypes.
+   *
+   * @param topCandidateOnly true if only the diplotypes with the top score are needed, in which case lower scoring
+   * diplotypes may be skipped (but are not guaranteed to be)
+   */
+  public List<DiplotypeMatch> compute(boolean topCandidateOnly) {
+
+    SortedSet<HaplotypeMatch> matches = null;
+    String onlyPermutation = null;
+    if (!m_dataset.hasPermutations()) {
+      if (PermutationSearch.canSearch(m_dataset)) {
+        PermutationSearch search = new PermutationSearch(m_dataset);
+        matches = search.search(m_candidates);
+        onlyPermutation = search.getOnlyPermutation();
+      } else {
+        // sample alleles don't line up with haplotype positions, fall back to comparing all permutations
+        m_dataset.generateSamplePermutations();
+      }
+    }
+    if (matches == null) {
+      // compare sample permutations to haplotypes
+      matches = comparePermutations();
+      if (m_dataset.getPermutations().size() == 1) {
+        onlyPermutation = m_dataset.getPermutations().iterator().next();
+      }
+    }
 
-    if (m_dataset.getPermutations().size() == 1) {
-      return determineHomozygousPairs(matches);
+    if (onlyPermutation != null) {
+      return determineHomozygousPairs(matches, onlyPermutation);
     }
     // find matched pairs
-    return determineHeterozygousPairs(matches);
+    return determineHeterozygousPairs(matches, topCandidateOnly);
   }
 
 
@@ -52,12 +113,17 @@ public List<DiplotypeMatch> compute() {
   protected @Nonnull SortedSet<HaplotypeMatch> comparePermutations() {
 
     Set<HaplotypeMatch> haplotypeMatches = m_dataset.getHaplotypes().stream()
+        .filter(h -> m_candidates == null || m_candidates.test(h))
         .map(HaplotypeMatch::new)
         .collect(Collectors.toSet());
 
-    for (String p : m_dataset.getPermutations()) {
-      for (HaplotypeMatch hm : haplotypeMatches) {
-        hm.match(p);
+    if (m_useBitsets) {
+      new BitsetMatcher(m_dataset).match(haplotypeMatches);
+    } else {
+      for (String p : m_dataset.getPermutations()) {
+        for (HaplotypeMatch hm : haplotypeMatches) {
+          hm.match(p);
+        }
       }
     }
 
@@ -70,10 +136,11 @@ public List<DiplotypeMatch> compute() {
    * Determine possible diplotypes given a set of {@link HaplotypeMatch}'s when sample is homozygous at all positions.
    *
    * @param haplotypeMatches the matches that were found via {@link #comparePermutations()}
+   * @param seq the sample's only permutation
    */
-  private @Nonnull List<DiplotypeMatch> determineHomozygousPairs(@Nonnull SortedSet<HaplotypeMatch> haplotypeMatches) {
+  private @Nonnull List<DiplotypeMatch> determineHomozygousPairs(@Nonnull SortedSet<HaplotypeMatch> haplotypeMatches,
+      @Nonnull String seq) {
 
-    String seq = m_dataset.getPermutations().iterator().next();
     List<DiplotypeMatch> matches = new ArrayList<>();
     if (haplotypeMatches.size() == 1) {
       // matched a single haplotype: need to return that as a diplotype
@@ -98,91 +165,128 @@ public List<DiplotypeMatch> compute() {
   /**
    * Determine possible diplotypes given a set of {@link HaplotypeMatch}'s when sample is heterozygous at at least one
    * position.
+   * <p>
+   * The sequence that has to be paired with a matched sequence is fully determined by the sample's alleles, so instead
+   * of checking every pair of haplotypes, each matched sequence is paired with the haplotypes that matched its
+   * complement.
+   *
+   * <p>
+   * When only looking for top candidates, haplotypes are visited best score first, and the search stops as soon as no
+   * remaining pair can reach the best score found so far.
    *
    * @param haplotypeMatches the matches that were found via {@link #comparePermutations()}
+   * @param topCandidateOnly true if only the diplotypes with the top score are needed
    */
-  private @Nonnull List<DiplotypeMatch> determineHeterozygousPairs(@Nonnull SortedSet<HaplotypeMatch> haplotypeMatches) {
+  private @Nonnull List<DiplotypeMatch> determineHeterozygousPairs(@Nonnull SortedSet<HaplotypeMatch> haplotypeMatches,
+      boolean topCandidateOnly) {
 
     SortedMap<NamedAllele, HaplotypeMatch> hapMap = new TreeMap<>();
     for (HaplotypeMatch hm : haplotypeMatches) {
       hapMap.put(hm.getHaplotype(), hm);
     }
+    List<HaplotypeMatch> hms = new ArrayList<>(hapMap.values());
 
-    // possible pairs from what got matched
-    List<List<NamedAllele>> pairs = CombinationUtil.generatePerfectPairs(hapMap.keySet());
-
-    List<DiplotypeMatch> matches = new ArrayList<>();
-    for (List<NamedAllele> pair : pairs) {
-      NamedAllele hap1 = pair.get(0);
-      HaplotypeMatch hm1 = hapMap.get(hap1);
-      if (hm1 == null) {
-        continue;
-      }
-      NamedAllele hap2 = pair.get(1);
-      HaplotypeMatch hm2 = hapMap.get(hap2);
-      if (hm2 == null) {
-        continue;
+    // <sequence, indices of haplotypes that matched it>
+    Map<String, List<Integer>> sequenceIndex = new HashMap<>();
+    for (int x = 0; x < hms.size(); x += 1) {
+      for (String seq : hms.get(x).getSequences()) {
+        sequenceIndex.computeIfAbsent(seq, k -> new ArrayList<>()).add(x);
       }
+    }
 
-      if (hap1 == hap2 && hm1.getSequences().size() == 1) {
-        // cannot call homozygous unless more than one sequence matches
-        continue;
+    // visit haplotypes in definition order, or best score first when only looking for top candidates
+    List<Integer> order = IntStream.range(0, hms.size()).boxed().collect(Collectors.toList());
+    int maxScore = 0;
+    if (topCandidateOnly) {
+      order.sort(Comparator.comparingInt((Integer x) -> hms.get(x).getHaplotype().getScore()).reversed());
+      if (!order.isEmpty()) {
+        maxScore = hms.get(order.get(0)).getHaplotype().getScore();
       }
+    }
 
-      Set<String[]> sequencePairs = findSequencePairs(hm1, hm2);
-      if (!sequencePairs.isEmpty()) {
-        DiplotypeMatch dm = new DiplotypeMatch(hm1, hm2, m_dataset);
-        sequencePairs.stream().forEach(dm::addSequencePair);
-        matches.add(dm);
+    // <pair index, diplotype>, in the same order as CombinationUtil.generatePerfectPairs()
+    SortedMap<Long, DiplotypeMatch> pairs = new TreeMap<>();
+    Map<String, String> complements = new HashMap<>();
+    boolean[] visited = new boolean[hms.size()];
+    int bestScore = Integer.MIN_VALUE;
+    for (int x : order) {
+      HaplotypeMatch hm1 = hms.get(x);
+      int score1 = hm1.getHaplotype().getScore();
+      if (topCandidateOnly && score1 + maxScore < bestScore) {
+        // no pair with a haplotype that hasn't been visited yet can reach the best score
+        break;
       }
+      for (String seq1 : hm1.getSequences()) {
+        String seq2 = complements.computeIfAbsent(seq1, this::getComplement);
+        List<Integer> matchedIndices = sequenceIndex.get(seq2);
+        if (matchedIndices == null) {
+          continue;
+        }
+        for (int y : matchedIndices) {
+          if (visited[y]) {
+            // already picked up from the other side
+            continue;
+          }
+          if (x == y && hm1.getSequences().size() == 1) {
+            // cannot call homozygous unless more than one sequence matches
+            continue;
+          }
+          if (topCandidateOnly) {
+            int score = score1 + hms.get(y).getHaplotype().getScore();
+            if (score < bestScore) {
+              continue;
+            }
+            if (score > bestScore) {
+              bestScore = score;
+              pairs.clear();
+            }
+          }
+          int first = Math.min(x, y);
+          int second = Math.max(x, y);
+          pairs.computeIfAbsent((long)first * hms.size() + second,
+              k -> new DiplotypeMatch(hms.get(first), hms.get(second), m_dataset))
+              .addSequencePair(x <= y ? new String[] { seq1, seq2 } : new String[] { seq2, seq1 });
+        }
+      }
+      visited[x] = true;
     }
+
+    List<DiplotypeMatch> matches = new ArrayList<>(pairs.values());
     Collections.sort(matches);
     return matches;
   }
 
 
   /**
-   * Finds valid complementary pairs of sample's alleles for possible diplotype match.
+   * Gets the sequence that complements the given sequence based on sample alleles (i.e. same allele at homozygous
+   * positions, the other allele at heterozygous positions).
+   *
+   * @return the complementary sequence, or an empty string if there isn't one
    */
-  private Set<String[]> findSequencePairs(@Nonnull HaplotypeMatch hm1, @Nonnull HaplotypeMatch hm2) {
-
-    Set<String[]> sequencePairs = new HashSet<>();
-    for (String seq1 : hm1.getSequences()) {
-      for (String seq2 : hm2.getSequences()) {
-        if (isViableComplement(seq1, seq2)) {
-          sequencePairs.add(new String[] { seq1, seq2 });
-        }
+  private @Nonnull String getComplement(@Nonnull String sequence) {
+
+    // sequences have the same positions, in the same order, as the columns
+    AlleleColumns columns = m_dataset.getColumns();
+    StringBuilder builder = new StringBuilder(sequence.length());
+    int start = 0;
+    for (int x = 0; x < columns.size(); x += 1) {
+      int colon = sequence.indexOf(':', start);
+      int end = colon == -1 ? -1 : sequence.indexOf(';', colon);
+      if (end == -1) {
+        return "";
       }
-    }
-    return sequencePairs;
-  }
-
-
-  /**
-   * Checks whether the two sequences is complementary based on sample alleles.
-   */
-  private boolean isViableComplement(@Nonnull String sequence1, @Nonnull String sequence2) {
-
-    String[] seq1 = sequence1.split(";");
-    String[] seq2 = sequence2.split(";");
-
-    for (int x = 0; x < seq1.length; x += 1) {
-      String[] s1 = seq1[x].split(":");
-      String[] s2 = seq2[x].split(":");
-      SampleAllele sampleAllele = m_dataset.getSampleAllele(Integer.valueOf(s1[0]));
-      if (sampleAllele.getAllele1().equals(sampleAllele.getAllele2())) {
-        // expecting homozygous
-        if (!s1[1].equals(s2[1])) {
-          return false;
-        }
-      } else {
-        // expecting heterozygous
-        if (s1[1].equals(s2[1])) {
-          return false;
-        }
+      int code = columns.findCode(x, sequence, colon + 1, end);
+      if (code == -1) {
+        return "";
+      }
+      if (!columns.isHomozygous(x)) {
+        code = code == columns.getAllele1Code(x) ? columns.getAllele2Code(x) : columns.getAllele1Code(x);
       }
+      builder.append(sequence, start, colon + 1)
+          .append(columns.getAllele(x, code))
+          .append(";");
+      start = end + 1;
     }
-
-    return true;
+    return start == sequence.length() ? builder.toString() : "";
   }
 }
@@ -0,0 +1,150 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.util.Arrays;
+import javax.annotation.Nonnull;
+import org.pharmgkb.pharmcat.ParseException;
+
+
+/**
+ * Decodes VCF GT values straight from their characters, without regular expressions or boxing.
+ * <p>
+ * Handles phased ({@code |}) and unphased ({@code /}) separators, missing alleles ({@code .}), multi-digit allele
+ * indexes and haploid calls.  A decoder is reused from one GT value to the next, so it is not thread-safe.
+ */
+class GenotypeDecoder {
+  private int[] m_alleles = new int[2];
+  private int m_numAlleles;
+  private boolean m_isUnphased;
+
+
+  /**
+   * Decodes a GT value.
+   *
+   * @return false if this is a no-call (i.e. contains nothing but {@code .}, {@code |} and {@code /}), in which case
+   * nothing else gets decoded
+   * @throws ParseException if there is an allele that isn't a number
+   */
+  boolean decode(@Nonnull String gt) {
+
+    m_numAlleles = 0;
+    m_isUnphased = false;
+    int length = gt.length();
+    boolean isNoCall = length > 0;
+    for (int x = 0; x < length; x += 1) {
+      char c = gt.charAt(x);
+      if (c != '.' && c != '|' && c != '/') {
+        isNoCall = false;
+        break;
+      }
+    }
+    if (isNoCall) {
+      return false;
+    }
+
+    int start = 0;
+    for (int x = 0; x <= length; x += 1) {
+      char c = x == length ? '|' : gt.charAt(x);
+      if (c == '|' || c == '/') {
+        if (c == '/') {
+          m_isUnphased = true;
+        }
+        // trailing separators are ignored
+        if (x == start && x == length) {
+          break;
+        }
+        addAllele(parseIndex(gt, start, x));
+        start = x + 1;
+      }
+    }
+    if (m_numAlleles == 0) {
+      throw new ParseException("Invalid genotype: '" + gt + "'");
+    }
+    return true;
+  }
+
+  private static int parseIndex(String gt, int start, int end) {
+
+    if (start == end) {
+      throw new ParseException("Invalid genotype: '" + gt + "'");
+    }
+    long idx = 0;
+    for (int x = start; x < end; x += 1) {
+      char c = gt.charAt(x);
+      if (c < '0' || c > '9') {
+        throw new ParseException("Invalid genotype: '" + gt + "'");
+      }
+      idx = idx * 10 + (c - '0');
+      if (idx > Integer.MAX_VALUE) {
+        throw new ParseException("Invalid genotype: '" + gt + "'");
+      }
+    }
+    return (int)idx;
+  }
+
+  private void addAllele(int idx) {
+    if (m_numAlleles == m_alleles.length) {
+      m_alleles = Arrays.copyOf(m_alleles, m_alleles.length * 2);
+    }
+    m_alleles[m_numAlleles] = idx;
+    m_numAlleles += 1;
+  }
+
+
+  /**
+   * Gets the number of alleles in the last decoded GT value (i.e. its ploidy).
+   */
+  int getNumAlleles() {
+    return m_numAlleles;
+  }
+
+  /**
+   * Gets the index of an allele in the last decoded GT value.
+   */
+  int getAllele(int idx) {
+    if (idx >= m_numAlleles) {
+      throw new IndexOutOfBoundsException("Only have " + m_numAlleles + " alleles");
+    }
+    return m_alleles[idx];
+  }
+
+  /**
+   * True if the last decoded GT value has an unphased ({@code /}) separator.
+   */
+  boolean isUnphased() {
+    return m_isUnphased;
+  }
+
+
+  /**
+   * True if the allele is made up of nothing but A, C, G and T (in either case).
+   */
+  static boolean isBases(@Nonnull String allele) {
+
+    if (allele.isEmpty()) {
+      return false;
+    }
+    for (int x = 0; x < allele.length(); x += 1) {
+      switch (allele.charAt(x)) {
+        case 'A':
+        case 'a':
+        case 'C':
+        case 'c':
+        case 'G':
+        case 'g':
+        case 'T':
+        case 't':
+          break;
+        default:
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * True if the allele has an ambiguous base (N, in either case).
+   */
+  static boolean hasAmbiguousBase(@Nonnull String allele) {
+    return allele.indexOf('N') != -1 || allele.indexOf('n') != -1;
+  }
+}
@@ -0,0 +1,287 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.pharmgkb.pharmcat.definition.B37PositionMap;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Index of locations of interest, keyed by (contig, VCF position) packed into a {@code long} and stored in an
+ * open-addressing hash table, so that lookups don't allocate.
+ * <p>
+ * Contig names are normalized (a leading {@code chr} is dropped, and {@code MT} is the same as {@code M}), so VCF files
+ * that name contigs {@code 1} instead of {@code chr1} still match the allele definitions without having to be renamed
+ * first.  Every locus gets a dense ID, in the order they are first seen.
+ * <p>
+ * This is immutable (other than internal caches), so it can be shared between threads.
+ */
+class LocusIndex {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private static final long EMPTY = -1;
+  private final VariantLocus[] m_loci;
+  // chr:position keys, in the definition's contig naming
+  private final String[] m_keys;
+  // positions the loci are looked up by
+  private final int[] m_vcfPositions;
+  // open-addressing table of packed (contig ID, position) -> locus ID
+  private final long[] m_tableKeys;
+  private final int[] m_tableValues;
+  private final int m_mask;
+  // <normalized contig, contig ID>
+  private final Map<String, Integer> m_contigIds = new HashMap<>();
+  // sorted positions, indexed by contig ID
+  private final int[][] m_positions;
+  // <contig as named in the data, contig ID (-1 if not of interest)>
+  private final ConcurrentHashMap<String, Integer> m_contigCache = new ConcurrentHashMap<>();
+  private volatile LocusIndex m_b37Index;
+
+
+  LocusIndex(@Nonnull Collection<VariantLocus> loci) {
+    this(loci, VariantLocus::getVcfPosition);
+  }
+
+  /**
+   * Constructor for an index that looks loci up by some other position (e.g. their position on a different assembly).
+   * Loci for which {@code vcfPosition} returns -1 are left out.
+   */
+  private LocusIndex(@Nonnull Collection<VariantLocus> loci, @Nonnull ToIntFunction<VariantLocus> vcfPosition) {
+
+    List<VariantLocus> uniqueLoci = new ArrayList<>(loci.size());
+    List<SortedSet<Integer>> positions = new ArrayList<>();
+    int capacity = Integer.highestOneBit(Math.max(2, loci.size()) * 2) * 2;
+    m_tableKeys = new long[capacity];
+    Arrays.fill(m_tableKeys, EMPTY);
+    m_tableValues = new int[capacity];
+    m_mask = capacity - 1;
+
+    for (VariantLocus vl : loci) {
+      int position = vcfPosition.applyAsInt(vl);
+      if (position == -1) {
+        continue;
+      }
+      // only contigs with positions get an ID, so every contig's positions are non-empty
+      int contigId = m_contigIds.computeIfAbsent(normalizeContig(vl.getChromosome()), c -> {
+        positions.add(new TreeSet<>());
+        return positions.size() - 1;
+      });
+      long key = pack(contigId, position);
+      int slot = findSlot(key);
+      if (m_tableKeys[slot] == key) {
+        // first one wins
+        continue;
+      }
+      m_tableKeys[slot] = key;
+      m_tableValues[slot] = uniqueLoci.size();
+      uniqueLoci.add(vl);
+      positions.get(contigId).add(position);
+    }
+
+    m_loci = uniqueLoci.toArray(new VariantLocus[0]);
+    m_keys = new String[m_loci.length];
+    m_vcfPositions = new int[m_loci.length];
+    for (int x = 0; x < m_loci.length; x += 1) {
+      m_keys[x] = m_loci[x].getVcfChrPosition();
+      m_vcfPositions[x] = vcfPosition.applyAsInt(m_loci[x]);
+    }
+    m_positions = new int[positions.size()][];
+    for (int x = 0; x < positions.size(); x += 1) {
+      m_positions[x] = positions.get(x).stream()
+          .mapToInt(Integer::intValue)
+          .toArray();
+    }
+  }
+
+
+  /**
+   * Gets an index of the same loci, looked up by their GRCh37 positions instead (see {@link B37PositionMap}).  Keys
+   * are still the allele definitions' {@code chr:position}.  Loci that don't have a GRCh37 position are left out (with
+   * a warning, since they will be reported as missing), so contig IDs may not match the ones in this index.
+   */
+  @Nonnull LocusIndex getB37Index() {
+
+    LocusIndex index = m_b37Index;
+    if (index == null) {
+      synchronized (this) {
+        if (m_b37Index == null) {
+          B37PositionMap positionMap;
+          try {
+            positionMap = new B37PositionMap();
+          } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot read GRCh37 positions", ex);
+          }
+          List<String> unmapped = new ArrayList<>();
+          for (VariantLocus vl : m_loci) {
+            if (positionMap.getVcfPosition(vl) == -1) {
+              unmapped.add(vl.getVcfChrPosition());
+            }
+          }
+          if (!unmapped.isEmpty()) {
+            sf_logger.warn("No GRCh37 position for {} position(s), they cannot be read from GRCh37 data: {}",
+                unmapped.size(), String.join(", ", unmapped));
+          }
+          m_b37Index = new LocusIndex(Arrays.asList(m_loci), positionMap::getVcfPosition);
+        }
+        index = m_b37Index;
+      }
+    }
+    return index;
+  }
+
+
+  /**
+   * Normalizes a contig name by dropping any leading {@code chr} and treating {@code MT} as {@code M}.
+   */
+  static @Nonnull String normalizeContig(@Nonnull String contig) {
+
+    String name = contig;
+    if (name.length() > 3 && name.regionMatches(true, 0, "chr", 0, 3)) {
+      name = name.substring(3);
+    }
+    if (name.equalsIgnoreCase("MT")) {
+      return "M";
+    }
+    return name.toUpperCase();
+  }
+
+  private static long pack(int contigId, long position) {
+    return ((long)contigId << 32) | position;
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+
+  private int findSlot(long key) {
+    int slot = hash(key) & m_mask;
+    while (m_tableKeys[slot] != EMPTY && m_tableKeys[slot] != key) {
+      slot = (slot + 1) & m_mask;
+    }
+    return slot;
+  }
+
+
+  /**
+   * Gets the number of loci in this index.
+   */
+  int size() {
+    return m_loci.length;
+  }
+
+  /**
+   * Gets the number of distinct (normalized) contigs with loci.
+   */
+  int getNumContigs() {
+    return m_positions.length;
+  }
+
+  /**
+   * Gets the ID of a contig, as named in the data being read.
+   *
+   * @return the contig ID, or -1 if there are no loci on the contig
+   */
+  int getContigId(@Nonnull String contig) {
+    Integer id = m_contigCache.get(contig);
+    if (id == null) {
+      id = m_contigIds.getOrDefault(normalizeContig(contig), -1);
+      m_contigCache.put(contig, id);
+    }
+    return id;
+  }
+
+  /**
+   * Gets the sorted VCF positions of the loci on a contig.
+   */
+  @Nonnull int[] getPositions(int contigId) {
+    return m_positions[contigId];
+  }
+
+
+  /**
+   * Finds the ID of the locus at the given contig and VCF position.
+   *
+   * @return the locus ID, or -1 if it isn't a location of interest
+   */
+  int find(int contigId, long position) {
+
+    if (contigId < 0 || position < 0 || position > Integer.MAX_VALUE) {
+      return -1;
+    }
+    long key = pack(contigId, position);
+    int slot = findSlot(key);
+    return m_tableKeys[slot] == key ? m_tableValues[slot] : -1;
+  }
+
+  /**
+   * Finds the ID of the locus at the given contig (as named in the data being read) and VCF position.
+   *
+   * @return the locus ID, or -1 if it isn't a location of interest
+   */
+  int find(@Nonnull String contig, long position) {
+    return find(getContigId(contig), position);
+  }
+
+  /**
+   * Finds the ID of a locus.
+   *
+   * @return the locus ID, or -1 if it isn't in this index
+   */
+  int find(@Nonnull VariantLocus locus) {
+    return find(locus.getChromosome(), locus.getVcfPosition());
+  }
+
+
+  /**
+   * Gets the locus with the given ID.
+   */
+  @Nonnull VariantLocus get(int id) {
+    return m_loci[id];
+  }
+
+  /**
+   * Gets the VCF position the locus with the given ID is looked up by.
+   */
+  int getVcfPosition(int id) {
+    return m_vcfPositions[id];
+  }
+
+  /**
+   * Gets the {@code chr:position} key for the locus with the given ID, using the allele definition's contig name.
+   */
+  @Nonnull String getKey(int id) {
+    return m_keys[id];
+  }
+
+  /**
+   * Gets the {@code chr:position} key for a locus, using the allele definition's contig name.
+   * This only allocates if the locus isn't in this index.
+   */
+  @Nonnull String getKey(@Nonnull VariantLocus locus) {
+    int id = find(locus);
+    return id == -1 ? locus.getVcfChrPosition() : m_keys[id];
+  }
+
+  /**
+   * Gets the locus at the given contig (as named in the data being read) and VCF position.
+   */
+  @Nullable VariantLocus get(@Nonnull String contig, long position) {
+    int id = find(contig, position);
+    return id == -1 ? null : m_loci[id];
+  }
+}
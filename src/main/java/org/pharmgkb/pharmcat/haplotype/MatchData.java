@@ -45,6 +45,7 @@ public class MatchData {
   private SortedSet<VariantLocus> m_mismatchedAlleles = new TreeSet<>();
   private List<NamedAllele> m_haplotypes;
   private Set<String> m_permutations;
+  private AlleleColumns m_columns;
 
 
   /**
@@ -58,6 +59,22 @@ public class MatchData {
    */
   public MatchData(@Nonnull SortedMap<String, SampleAllele> alleleMap, @Nonnull VariantLocus[] allPositions,
       @Nullable SortedSet<VariantLocus> extraPositions, @Nullable SortedSet<VariantLocus> ignoredPositions) {
+    this(alleleMap, null, allPositions, extraPositions, ignoredPositions);
+  }
+
+  /**
+   * Constructor.
+   * Organizes the {@link SampleAllele} data related for the gene of interest.
+   *
+   * @param alleleMap map of chr:positions to {@link SampleAllele}s from VCF
+   * @param locusIndex index used to look up chr:position keys without building them, may be null
+   * @param allPositions all {@link VariantLocus} positions of interest for the gene
+   * @param extraPositions extra positions to track sample alleles for
+   * @param ignoredPositions ignored positions due to ignored named alleles
+   */
+  MatchData(@Nonnull SortedMap<String, SampleAllele> alleleMap, @Nullable LocusIndex locusIndex,
+      @Nonnull VariantLocus[] allPositions, @Nullable SortedSet<VariantLocus> extraPositions,
+      @Nullable SortedSet<VariantLocus> ignoredPositions) {
 
     if (ignoredPositions != null) {
       m_ignoredPositions.addAll(ignoredPositions);
@@ -65,7 +82,7 @@ public MatchData(@Nonnull SortedMap<String, SampleAllele> alleleMap, @Nonnull Va
 
     List<VariantLocus> positions = new ArrayList<>();
     for (VariantLocus variant : allPositions) {
-      String chrPos = variant.getVcfChrPosition();
+      String chrPos = locusIndex == null ? variant.getVcfChrPosition() : locusIndex.getKey(variant);
       SampleAllele allele = alleleMap.get(chrPos);
       if (allele == null) {
         m_missingPositions.add(variant);
@@ -82,7 +99,7 @@ public MatchData(@Nonnull SortedMap<String, SampleAllele> alleleMap, @Nonnull Va
     m_positions = positions.toArray(new VariantLocus[0]);
     if (extraPositions != null) {
       for (VariantLocus vl : extraPositions) {
-        SampleAllele allele = alleleMap.get(vl.getVcfChrPosition());
+        SampleAllele allele = alleleMap.get(locusIndex == null ? vl.getVcfChrPosition() : locusIndex.getKey(vl));
         if (allele != null) {
           m_extraPositions.add(new Variant(vl, allele));
         } else {
@@ -114,6 +131,7 @@ void checkAlleles(DefinitionFile definitionFile) {
    */
   void marshallHaplotypes(List<NamedAllele> allHaplotypes) {
 
+    m_columns = null;
     if (m_missingPositions.isEmpty() && m_ignoredPositions.isEmpty()) {
       m_haplotypes = allHaplotypes;
 
@@ -142,6 +160,16 @@ void marshallHaplotypes(List<NamedAllele> allHaplotypes) {
   }
 
 
+  /**
+   * Uses haplotypes that have already been organized (via {@link #marshallHaplotypes(List)}, and
+   * {@link #defaultMissingAllelesToReference()} if applicable) for data with the same positions.
+   */
+  void useHaplotypes(@Nonnull List<NamedAllele> haplotypes) {
+    m_haplotypes = haplotypes;
+    m_columns = null;
+  }
+
+
   /**
    * Assumes that missing alleles in {@link NamedAllele}s should be the reference.
    */
@@ -176,6 +204,7 @@ void defaultMissingAllelesToReference() {
     }
 
     m_haplotypes = updatedHaplotypes;
+    m_columns = null;
   }
 
 
@@ -193,10 +222,12 @@ public int getNumSampleAlleles() {
 
   /**
    * Gets all permutations of sample alleles at positions of interest.
+   * <p>
+   * Permutations are only generated up front when matching with bitsets, so they are generated on first use otherwise.
    */
   public @Nonnull Set<String> getPermutations() {
     if (m_permutations == null) {
-      throw new IllegalStateException("Not initialized - call generateSamplePermutations()");
+      generateSamplePermutations();
     }
     return m_permutations;
   }
@@ -206,11 +237,33 @@ public int getNumSampleAlleles() {
    */
   void generateSamplePermutations() {
 
-    m_permutations = CombinationUtil.generatePermutations(
-        m_sampleMap.values().stream()
-            .sorted()
-            .collect(Collectors.toList())
-    );
+    m_permutations = CombinationUtil.generatePermutations(getSampleAlleles());
+  }
+
+  /**
+   * Checks if sample permutations have been generated (via {@link #generateSamplePermutations()}).
+   */
+  boolean hasPermutations() {
+    return m_permutations != null;
+  }
+
+  /**
+   * Gets the sample alleles and haplotypes in columnar form, for use when matching.
+   */
+  @Nonnull AlleleColumns getColumns() {
+    if (m_columns == null) {
+      m_columns = new AlleleColumns(this);
+    }
+    return m_columns;
+  }
+
+  /**
+   * Gets the sample alleles at positions of interest, in the order used to build permutations.
+   */
+  @Nonnull List<SampleAllele> getSampleAlleles() {
+    return m_sampleMap.values().stream()
+        .sorted()
+        .collect(Collectors.toList());
   }
 
 
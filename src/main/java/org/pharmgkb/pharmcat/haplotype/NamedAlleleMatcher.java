@@ -1,27 +1,48 @@
 package org.pharmgkb.pharmcat.haplotype;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.SortedSetMultimap;
 import org.pharmgkb.common.io.util.CliHelper;
+import org.pharmgkb.common.util.PathUtils;
 import org.pharmgkb.pharmcat.definition.model.DefinitionExemption;
 import org.pharmgkb.pharmcat.definition.model.NamedAllele;
 import org.pharmgkb.pharmcat.definition.model.VariantLocus;
 import org.pharmgkb.pharmcat.haplotype.model.DiplotypeMatch;
 import org.pharmgkb.pharmcat.haplotype.model.Result;
 import org.pharmgkb.pharmcat.util.DataManager;
+import org.pharmgkb.pharmcat.util.VcfSidecarIndex;
 
 
 /**
@@ -32,11 +53,26 @@
 @ThreadSafe
 public class NamedAlleleMatcher {
   public static final String VERSION = "1.0.0";
+  /** Input name used when reading VCF data from stdin. */
+  public static final String STDIN_NAME = "stdin";
+  // maximum number of marshalled haplotype lists to keep (one per gene and set of missing positions)
+  private static final int HAPLOTYPE_CACHE_SIZE = 1000;
   private DefinitionReader m_definitionReader;
   private ImmutableMap<String, VariantLocus> m_locationsOfInterest;
+  private LocusIndex m_locusIndex;
+  private SliceCache m_sliceCache;
+  private Path m_sidecarDir;
   private boolean m_assumeReferenceInDefinitions;
   private boolean m_topCandidateOnly;
   private boolean m_printWarnings;
+  private boolean m_useBitsets;
+  private boolean m_comparePermutations;
+  private ForkJoinPool m_pool;
+  private DiplotypeCache m_diplotypeCache;
+  // <gene, assumeReference and missing positions, haplotypes>
+  private final Cache<String, List<NamedAllele>> m_haplotypeCache = CacheBuilder.newBuilder()
+      .maximumSize(HAPLOTYPE_CACHE_SIZE)
+      .build();
 
 
   /**
@@ -59,6 +95,7 @@ public NamedAlleleMatcher(@Nonnull DefinitionReader definitionReader, boolean as
     Preconditions.checkNotNull(definitionReader);
     m_definitionReader = definitionReader;
     m_locationsOfInterest = calculateLocationsOfInterest(m_definitionReader);
+    m_locusIndex = new LocusIndex(m_locationsOfInterest.values());
     m_assumeReferenceInDefinitions = assumeReference;
     m_topCandidateOnly = topCandidateOnly;
   }
@@ -69,22 +106,96 @@ public NamedAlleleMatcher printWarnings() {
     return this;
   }
 
+  /**
+   * Reads sample data from PGx slices (see {@link SliceCache}) in the given directory whenever there is a usable one,
+   * instead of from the original VCF file.
+   */
+  public NamedAlleleMatcher useSlices(@Nonnull Path sliceDir) {
+    m_sliceCache = new SliceCache(sliceDir, m_locationsOfInterest);
+    return this;
+  }
+
+  /**
+   * Keeps position indexes (see {@link VcfSidecarIndex}) of large plain text VCF files in the given directory, so that
+   * later runs only need to read the parts of the files with positions of interest.  Indexes are built the first time a
+   * file is read.
+   */
+  public NamedAlleleMatcher useSidecarIndexes(@Nonnull Path sidecarDir) {
+    m_sidecarDir = sidecarDir;
+    return this;
+  }
+
+  /**
+   * Generates all sample permutations and matches them to haplotypes with bitsets (see {@link BitsetMatcher}) instead
+   * of searching for matching permutations with {@link PermutationSearch}.
+   */
+  public NamedAlleleMatcher useBitsets() {
+    m_useBitsets = true;
+    return this;
+  }
+
+  /**
+   * Generates all sample permutations and compares them to haplotypes one by one (i.e. the original regex matching),
+   * without {@link PermutationSearch} or bitsets.  This is only used to check the other ways of matching against.
+   */
+  NamedAlleleMatcher comparePermutations() {
+    m_comparePermutations = true;
+    return this;
+  }
+
+  /**
+   * Calls each gene as a separate task on the given pool.  Results are the same as when calling genes one at a time.
+   */
+  public NamedAlleleMatcher usePool(@Nonnull ForkJoinPool pool) {
+    m_pool = pool;
+    return this;
+  }
+
+  /**
+   * Caches up to {@code maxSize} gene calls so that samples with the same genotypes for a gene don't get called again
+   * (see {@link DiplotypeCache}).
+   */
+  public NamedAlleleMatcher cacheCalls(long maxSize) {
+    m_diplotypeCache = new DiplotypeCache(maxSize);
+    return this;
+  }
+
+  /**
+   * Gets the cache of gene calls, if {@link #cacheCalls(long)} has been called.
+   */
+  public @Nullable DiplotypeCache getDiplotypeCache() {
+    return m_diplotypeCache;
+  }
+
 
   public static void main(String[] args) {
 
     try {
       CliHelper cliHelper = new CliHelper(MethodHandles.lookup().lookupClass())
-          .addOption("vcf", "vcf-in", "VCF file", true, "vcf")
+          .addOption("vcf", "vcf-in", "VCF or BCF file (optionally bgzipped and indexed), directory of VCF files " +
+              "for one sample (e.g. one per chromosome), or - to read from stdin", true, "vcf")
           .addOption("json", "json-out", "file to save results to (in JSON format)", false, "json")
           .addOption("html", "html-out", "file to save results to (in HTML format)", false, "html")
           .addOption("d", "definition-dir", "directory of allele definition files", false, "d")
+          .addOption("all", "all-samples", "call all samples in VCF file (output file names will include sample ID)")
+          .addOption("slices", "slice-dir", "directory of PGx slices to read sample data from when available (see " +
+              "SliceExtractor)", false, "dir")
+          .addOption("samples", "sample-ids", "comma-separated IDs of samples to call (output file names will " +
+              "include sample ID)", false, "ids")
+          .addOption("sidecar", "sidecar-dir", "directory to keep position indexes of large uncompressed VCF files " +
+              "in, so later runs can skip to positions of interest", false, "dir")
+          .addOption("bitset", "bitset-matching", "generate all permutations and match them to haplotypes with bitsets")
+          .addOption("t", "threads", "number of threads to call genes on", false, "n")
+          .addOption("cache", "cache-size", "number of gene calls to reuse across samples with the same genotypes",
+              false, "n")
           ;
 
       if (!cliHelper.parse(args)) {
         System.exit(1);
       }
 
-      Path vcfFile = cliHelper.getValidFile("vcf", false);
+      boolean useStdin = cliHelper.getValue("vcf").equals("-");
+      Path vcfFile = useStdin ? null : cliHelper.getPath("vcf");
       Path definitionDir;
       if (cliHelper.hasOption("d")) {
         definitionDir = cliHelper.getValidDirectory("d", false);
@@ -101,27 +212,150 @@ public static void main(String[] args) {
 
       NamedAlleleMatcher namedAlleleMatcher = new NamedAlleleMatcher(definitionReader)
           .printWarnings();
-      Result result = namedAlleleMatcher.call(vcfFile);
-
-      ResultSerializer resultSerializer = new ResultSerializer();
-      if (cliHelper.hasOption("json")) {
-        resultSerializer.toJson(result, cliHelper.getPath("json"));
+      if (cliHelper.hasOption("slices")) {
+        namedAlleleMatcher.useSlices(cliHelper.getPath("slices"));
+      }
+      if (cliHelper.hasOption("sidecar")) {
+        namedAlleleMatcher.useSidecarIndexes(cliHelper.getPath("sidecar"));
       }
-      if (cliHelper.hasOption("html")) {
-        resultSerializer.toHtml(result, cliHelper.getPath("html"));
+      if (cliHelper.hasOption("bitset")) {
+        namedAlleleMatcher.useBitsets();
       }
+      if (cliHelper.hasOption("cache")) {
+        int cacheSize = cliHelper.getIntValue("cache");
+        if (cacheSize < 1) {
+          System.out.println("Cache size must be at least 1 (got " + cacheSize + ")");
+          System.exit(1);
+        }
+        namedAlleleMatcher.cacheCalls(cacheSize);
+      }
+      ForkJoinPool pool = null;
+      if (cliHelper.hasOption("t")) {
+        int numThreads = cliHelper.getIntValue("t");
+        if (numThreads < 1) {
+          System.out.println("Number of threads must be at least 1 (got " + numThreads + ")");
+          System.exit(1);
+        }
+        pool = new ForkJoinPool(numThreads);
+        namedAlleleMatcher.usePool(pool);
+      }
+      try {
+        ResultSerializer resultSerializer = new ResultSerializer();
+        if (cliHelper.hasOption("all") || cliHelper.hasOption("samples")) {
+          BiConsumer<String, Result> resultConsumer = (sampleId, result) -> {
+            try {
+              if (cliHelper.hasOption("json")) {
+                resultSerializer.toJson(result, forSample(cliHelper.getPath("json"), sampleId));
+              }
+              if (cliHelper.hasOption("html")) {
+                resultSerializer.toHtml(result, forSample(cliHelper.getPath("html"), sampleId));
+              }
+            } catch (IOException ex) {
+              throw new UncheckedIOException(ex);
+            }
+          };
+          if (cliHelper.hasOption("samples")) {
+            List<String> sampleIds = Splitter.on(',').trimResults().omitEmptyStrings()
+                .splitToList(cliHelper.getValue("samples"));
+            if (useStdin) {
+              namedAlleleMatcher.callSamples(System.in, STDIN_NAME, sampleIds, resultConsumer);
+            } else {
+              namedAlleleMatcher.callSamples(vcfFile, sampleIds, resultConsumer);
+            }
+          } else if (useStdin) {
+            namedAlleleMatcher.callSamples(System.in, STDIN_NAME, resultConsumer);
+          } else {
+            namedAlleleMatcher.callSamples(vcfFile, resultConsumer);
+          }
+          if (namedAlleleMatcher.getDiplotypeCache() != null) {
+            System.out.println(namedAlleleMatcher.getDiplotypeCache());
+          }
 
+        } else {
+          Result result = useStdin ? namedAlleleMatcher.call(System.in, STDIN_NAME) : namedAlleleMatcher.call(vcfFile);
+          if (cliHelper.hasOption("json")) {
+            resultSerializer.toJson(result, cliHelper.getPath("json"));
+          }
+          if (cliHelper.hasOption("html")) {
+            resultSerializer.toHtml(result, cliHelper.getPath("html"));
+          }
+        }
+      } finally {
+        if (pool != null) {
+          pool.shutdown();
+        }
+      }
     } catch (Exception ex) {
       ex.printStackTrace();
     }
   }
 
 
+  /**
+   * Inserts sample ID before the file extension (e.g. {@code foo.json} becomes {@code foo.NA12878.json}), or appends it
+   * if there is no extension (e.g. {@code foo} becomes {@code foo.NA12878}).
+   */
+  static Path forSample(Path file, String sampleId) {
+    String filename = file.getFileName().toString();
+    int idx = filename.lastIndexOf(".");
+    if (idx == -1) {
+      return file.resolveSibling(filename + "." + sampleId);
+    }
+    return file.resolveSibling(filename.substring(0, idx) + "." + sampleId + filename.substring(idx));
+  }
+
+
   /**
    * Builds a new VCF reader for the given file.
    */
   VcfReader buildVcfReader(Path vcfFile) throws IOException {
-    return new VcfReader(m_locationsOfInterest, vcfFile);
+    return buildVcfReader(vcfFile, false);
+  }
+
+  /**
+   * Builds a new VCF reader for VCF files that have data for the same sample.
+   */
+  VcfReader buildVcfReader(List<Path> vcfFiles) throws IOException {
+    return new VcfReader(m_locationsOfInterest, vcfFiles);
+  }
+
+  /**
+   * Builds a new VCF reader for the given file.
+   *
+   * @param allSamples true to read all samples, false to only read the first one
+   */
+  VcfReader buildVcfReader(Path vcfFile, boolean allSamples) throws IOException {
+    if (m_sliceCache != null) {
+      VcfReader vcfReader = m_sliceCache.read(vcfFile, allSamples);
+      if (vcfReader != null) {
+        return vcfReader;
+      }
+    }
+    return new VcfReader(m_locationsOfInterest, vcfFile, allSamples, m_sidecarDir);
+  }
+
+  /**
+   * Builds a new VCF reader for some of the samples in the given file.
+   */
+  VcfReader buildVcfReader(Path vcfFile, Collection<String> sampleIds) throws IOException {
+    return new VcfReader(m_locationsOfInterest, vcfFile, sampleIds);
+  }
+
+  /**
+   * Builds a new VCF reader for some of the samples in the given file.
+   *
+   * @param sampleIdxs (0-based) indexes of the samples to read
+   */
+  VcfReader buildVcfReader(Path vcfFile, int[] sampleIdxs) throws IOException {
+    return new VcfReader(m_locationsOfInterest, vcfFile, sampleIdxs);
+  }
+
+
+  /**
+   * Gets all locations of interest, keyed by {@code <chr:position>}.
+   */
+  ImmutableMap<String, VariantLocus> getLocationsOfInterest() {
+    return m_locationsOfInterest;
   }
 
 
@@ -159,36 +393,281 @@ private static ImmutableMap<String, VariantLocus> calculateLocationsOfInterest(D
 
   /**
    * Calls diplotypes for the given VCF file for all genes for which a definition exists.
+   * If the VCF file has multiple samples, only the first one is called.
+   * <p>
+   * This can also be a directory of VCF files that all have data for the same sample (e.g. one file per chromosome).
    */
   public Result call(@Nonnull Path vcfFile) throws IOException {
 
+    if (Files.isDirectory(vcfFile)) {
+      return call(listVcfFiles(vcfFile), PathUtils.getFilename(vcfFile));
+    }
     VcfReader vcfReader = buildVcfReader(vcfFile);
-    SortedMap<String, SampleAllele> alleles = vcfReader.getAlleleMap();
-    ResultBuilder resultBuilder = new ResultBuilder(m_definitionReader)
-        .forFile(vcfFile, vcfReader.getWarnings().asMap());
+    return call(vcfReader, new ResultBuilder(m_definitionReader)
+        .forFile(vcfFile, vcfReader.getWarnings().asMap()));
+  }
+
+  /**
+   * Calls diplotypes for VCF files that all have data for the same sample (e.g. one file per chromosome) for all genes
+   * for which a definition exists.  Only the first sample in each file is called.
+   *
+   * @param inputName the name to record as the input in the {@link Result}
+   */
+  public Result call(@Nonnull List<Path> vcfFiles, @Nonnull String inputName) throws IOException {
+
+    VcfReader vcfReader = buildVcfReader(vcfFiles);
+    return call(vcfReader, new ResultBuilder(m_definitionReader)
+        .forInput(inputName, null, vcfReader.getWarnings().asMap()));
+  }
+
+  /**
+   * Lists the VCF (and BCF) files in a directory, sorted by name.
+   */
+  static List<Path> listVcfFiles(Path dir) throws IOException {
+
+    try (Stream<Path> stream = Files.list(dir)) {
+      List<Path> files = stream
+          .filter(f -> {
+            String name = f.getFileName().toString();
+            return name.endsWith(".vcf") || name.endsWith(".vcf.gz") || name.endsWith(".bcf");
+          })
+          .sorted()
+          .collect(Collectors.toList());
+      Preconditions.checkArgument(!files.isEmpty(), "No VCF files in %s", dir);
+      return files;
+    }
+  }
+
+  /**
+   * Calls diplotypes for VCF data from a stream (plain text or gzipped) for all genes for which a definition exists.
+   * If the VCF data has multiple samples, only the first one is called.
+   *
+   * @param inputName the name to record as the input in the {@link Result} (e.g. "stdin")
+   */
+  public Result call(@Nonnull InputStream vcfStream, @Nonnull String inputName) throws IOException {
+
+    VcfReader vcfReader = new VcfReader(m_locationsOfInterest, vcfStream, false);
+    return call(vcfReader, new ResultBuilder(m_definitionReader)
+        .forInput(inputName, null, vcfReader.getWarnings().asMap()));
+  }
+
+  /**
+   * Calls diplotypes for VCF data from a channel (plain text or gzipped) for all genes for which a definition exists.
+   * If the VCF data has multiple samples, only the first one is called.
+   *
+   * @param inputName the name to record as the input in the {@link Result}
+   */
+  public Result call(@Nonnull ReadableByteChannel vcfChannel, @Nonnull String inputName) throws IOException {
+    return call(Channels.newInputStream(vcfChannel), inputName);
+  }
+
+  private Result call(VcfReader vcfReader, ResultBuilder resultBuilder) {
+
     if (m_printWarnings) {
-      vcfReader.getWarnings().keySet()
-          .forEach(key -> {
-            System.out.println(key);
-            vcfReader.getWarnings().get(key)
-                .forEach(msg -> System.out.println("\t" + msg));
-          });
+      printWarnings(vcfReader.getWarnings());
     }
-    // call haplotypes
-    for (String gene : m_definitionReader.getGenes()) {
-      DefinitionExemption exemption = m_definitionReader.getExemption(gene);
-      MatchData data = initializeCallData(alleles, gene);
-      List<DiplotypeMatch> matches = null;
-      if (data.getNumSampleAlleles() > 0) {
-        boolean topCandidateOnly = exemption == null ? m_topCandidateOnly : !exemption.isAllHits();
-        matches = callDiplotypes(data, topCandidateOnly);
+    return call(vcfReader.getAlleleMap(), resultBuilder);
+  }
+
+
+  /**
+   * Calls diplotypes for every sample in the given VCF file for all genes for which a definition exists.
+   * The VCF file is only read once, and results are handed to {@code resultConsumer} one sample at a time, in the
+   * order samples appear in the VCF file.
+   *
+   * @param resultConsumer receives the sample ID and its {@link Result}
+   */
+  public void callSamples(@Nonnull Path vcfFile, @Nonnull BiConsumer<String, Result> resultConsumer)
+      throws IOException {
+
+    VcfReader vcfReader = buildVcfReader(vcfFile, true);
+    callSamples(vcfReader, (sampleId) -> new ResultBuilder(m_definitionReader)
+        .forFile(vcfFile, sampleId, vcfReader.getWarnings(sampleId).asMap()), resultConsumer);
+  }
+
+  /**
+   * Calls diplotypes for every sample in VCF data from a stream (plain text or gzipped) for all genes for which a
+   * definition exists.
+   *
+   * @param inputName the name to record as the input in each {@link Result} (e.g. "stdin")
+   * @param resultConsumer receives the sample ID and its {@link Result}
+   */
+  public void callSamples(@Nonnull InputStream vcfStream, @Nonnull String inputName,
+      @Nonnull BiConsumer<String, Result> resultConsumer) throws IOException {
+
+    VcfReader vcfReader = new VcfReader(m_locationsOfInterest, vcfStream, true);
+    callSamples(vcfReader, (sampleId) -> new ResultBuilder(m_definitionReader)
+        .forInput(inputName, sampleId, vcfReader.getWarnings(sampleId).asMap()), resultConsumer);
+  }
+
+  /**
+   * Calls diplotypes for some of the samples in the given VCF file for all genes for which a definition exists.
+   * Only the columns for these samples get parsed.  Results are handed to {@code resultConsumer} one sample at a time,
+   * in the order samples appear in the VCF file.
+   *
+   * @param sampleIds IDs of the samples to call
+   * @param resultConsumer receives the sample ID and its {@link Result}
+   */
+  public void callSamples(@Nonnull Path vcfFile, @Nonnull Collection<String> sampleIds,
+      @Nonnull BiConsumer<String, Result> resultConsumer) throws IOException {
+
+    VcfReader vcfReader = buildVcfReader(vcfFile, sampleIds);
+    callSamples(vcfReader, (sampleId) -> new ResultBuilder(m_definitionReader)
+        .forFile(vcfFile, sampleId, vcfReader.getWarnings(sampleId).asMap()), resultConsumer);
+  }
+
+  /**
+   * Calls diplotypes for some of the samples in VCF data from a stream (plain text or gzipped) for all genes for which
+   * a definition exists.
+   *
+   * @param inputName the name to record as the input in each {@link Result} (e.g. "stdin")
+   * @param sampleIds IDs of the samples to call
+   * @param resultConsumer receives the sample ID and its {@link Result}
+   */
+  public void callSamples(@Nonnull InputStream vcfStream, @Nonnull String inputName,
+      @Nonnull Collection<String> sampleIds, @Nonnull BiConsumer<String, Result> resultConsumer) throws IOException {
+
+    VcfReader vcfReader = new VcfReader(m_locationsOfInterest, vcfStream, sampleIds);
+    callSamples(vcfReader, (sampleId) -> new ResultBuilder(m_definitionReader)
+        .forInput(inputName, sampleId, vcfReader.getWarnings(sampleId).asMap()), resultConsumer);
+  }
+
+  private void callSamples(VcfReader vcfReader, Function<String, ResultBuilder> resultBuilderFactory,
+      BiConsumer<String, Result> resultConsumer) {
+
+    for (String sampleId : vcfReader.getSamples()) {
+      SortedSetMultimap<String, String> warnings = vcfReader.getWarnings(sampleId);
+      if (m_printWarnings && !warnings.isEmpty()) {
+        System.out.println(sampleId + ":");
+        printWarnings(warnings);
       }
+      resultConsumer.accept(sampleId, call(vcfReader.getAlleleMap(sampleId), resultBuilderFactory.apply(sampleId)));
+    }
+  }
+
+
+  private void printWarnings(SortedSetMultimap<String, String> warnings) {
+    warnings.keySet()
+        .forEach(key -> {
+          System.out.println(key);
+          warnings.get(key)
+              .forEach(msg -> System.out.println("\t" + msg));
+        });
+  }
+
 
-      resultBuilder.gene(gene, data, matches);
+  /**
+   * Calls diplotypes for a single sample's alleles.
+   */
+  private Result call(SortedMap<String, SampleAllele> alleles, ResultBuilder resultBuilder) {
+
+    if (m_pool == null) {
+      for (String gene : m_definitionReader.getGenes()) {
+        callGene(alleles, gene).addTo(resultBuilder);
+      }
+    } else {
+      // call genes concurrently, but add results in the same order
+      List<ForkJoinTask<GeneResult>> tasks = new ArrayList<>();
+      for (String gene : m_definitionReader.getGenes()) {
+        tasks.add(m_pool.submit(() -> callGene(alleles, gene)));
+      }
+      for (ForkJoinTask<GeneResult> task : tasks) {
+        task.join().addTo(resultBuilder);
+      }
     }
     return resultBuilder.build();
   }
 
+  /**
+   * Calls the diplotypes for a single gene.
+   */
+  private GeneResult callGene(SortedMap<String, SampleAllele> alleles, String gene) {
+
+    DefinitionExemption exemption = m_definitionReader.getExemption(gene);
+    MatchData data = initializeCallData(alleles, gene);
+    List<DiplotypeMatch> matches = null;
+    if (data.getNumSampleAlleles() > 0) {
+      boolean topCandidateOnly = exemption == null ? m_topCandidateOnly : !exemption.isAllHits();
+      if (m_diplotypeCache != null) {
+        matches = m_diplotypeCache.get(m_definitionReader.getDefinitionFile(gene), data,
+            () -> callDiplotypes(data, topCandidateOnly));
+      } else {
+        matches = callDiplotypes(data, topCandidateOnly);
+      }
+    }
+    return new GeneResult(gene, data, matches);
+  }
+
+
+  /**
+   * Calls diplotypes for a single gene for a cohort of samples.
+   * <p>
+   * All samples are first checked against all haplotypes together, 64 samples at a time (see {@link CohortFilter}), so
+   * that each sample then only has to be matched against the haplotypes that could match it.  Results are the same as
+   * when calling samples one at a time.
+   *
+   * @param samples the alleles for each sample (e.g. from {@link VcfReader#getAlleleMap(String)})
+   * @return the diplotypes for each sample, in the same order as {@code samples} (null if the sample has no data for
+   * the gene)
+   */
+  public @Nonnull List<List<DiplotypeMatch>> callCohort(@Nonnull String gene,
+      @Nonnull List<SortedMap<String, SampleAllele>> samples) {
+    Preconditions.checkArgument(m_definitionReader.getGenes().contains(gene), "Unknown gene: %s", gene);
+
+    DefinitionExemption exemption = m_definitionReader.getExemption(gene);
+    List<NamedAllele> alleles = m_definitionReader.getHaplotypes(gene);
+    VariantLocus[] positions = m_definitionReader.getPositions(gene);
+    boolean assumeReference = m_assumeReferenceInDefinitions;
+    boolean topCandidateOnly = m_topCandidateOnly;
+    if (exemption != null) {
+      SortedSet<VariantLocus> unusedPositions = findUnusedPositions(exemption, positions, alleles);
+      positions = Arrays.stream(positions)
+          .filter(vl -> !unusedPositions.contains(vl))
+          .toArray(VariantLocus[]::new);
+      alleles = alleles.stream()
+          .filter(a -> !exemption.shouldIgnore(a.getName()))
+          .collect(Collectors.toList());
+      assumeReference = exemption.isAssumeReference();
+      topCandidateOnly = !exemption.isAllHits();
+    }
+    CohortFilter filter = new CohortFilter(positions, m_locusIndex::getKey, alleles, assumeReference, samples);
+
+    List<List<DiplotypeMatch>> results = new ArrayList<>();
+    for (int x = 0; x < samples.size(); x += 1) {
+      MatchData data = initializeCallData(samples.get(x), gene);
+      if (data.getNumSampleAlleles() == 0) {
+        results.add(null);
+        continue;
+      }
+      int sample = x;
+      Predicate<NamedAllele> candidates = hap -> filter.mayMatch(sample, hap.getName());
+      boolean top = topCandidateOnly;
+      if (m_diplotypeCache != null) {
+        results.add(m_diplotypeCache.get(m_definitionReader.getDefinitionFile(gene), data,
+            () -> callDiplotypes(data, top, candidates)));
+      } else {
+        results.add(callDiplotypes(data, top, candidates));
+      }
+    }
+    return results;
+  }
+
+  private static class GeneResult {
+    private final String m_gene;
+    private final MatchData m_data;
+    private final List<DiplotypeMatch> m_matches;
+
+    GeneResult(String gene, MatchData data, List<DiplotypeMatch> matches) {
+      m_gene = gene;
+      m_data = data;
+      m_matches = matches;
+    }
+
+    void addTo(ResultBuilder resultBuilder) {
+      resultBuilder.gene(m_gene, m_data, m_matches);
+    }
+  }
+
 
   /**
    * Initializes data required to call a diplotype.
@@ -208,7 +687,7 @@ public Result call(@Nonnull Path vcfFile) throws IOException {
     }
 
     // grab SampleAlleles for all positions related to current gene
-    MatchData data = new MatchData(alleleMap, allPositions, extraPositions, unusedPositions);
+    MatchData data = new MatchData(alleleMap, m_locusIndex, allPositions, extraPositions, unusedPositions);
     data.checkAlleles(m_definitionReader.getDefinitionFile(gene));
     if (data.getNumSampleAlleles() == 0) {
       return data;
@@ -219,15 +698,32 @@ public Result call(@Nonnull Path vcfFile) throws IOException {
           .filter(a -> !exemption.shouldIgnore(a.getName()))
           .collect(Collectors.toList());
     }
-    // handle missing positions (if any)
-    data.marshallHaplotypes(alleles);
-
     boolean assumeReference = exemption != null ? exemption.isAssumeReference() : m_assumeReferenceInDefinitions;
-    if (assumeReference) {
-      data.defaultMissingAllelesToReference();
+    // haplotypes only depend on which positions are missing, so reuse them if possible
+    StringBuilder keyBuilder = new StringBuilder()
+        .append(gene)
+        .append(assumeReference ? "\tref\t" : "\t\t");
+    for (VariantLocus vl : allPositions) {
+      keyBuilder.append(data.getMissingPositions().contains(vl) ? '1' : '0');
+    }
+    String key = keyBuilder.toString();
+    List<NamedAllele> haplotypes = m_haplotypeCache.getIfPresent(key);
+    if (haplotypes != null) {
+      data.useHaplotypes(haplotypes);
+    } else {
+      // handle missing positions (if any)
+      data.marshallHaplotypes(alleles);
+      if (assumeReference) {
+        data.defaultMissingAllelesToReference();
+      }
+      haplotypes = Collections.unmodifiableList(data.getHaplotypes());
+      data.useHaplotypes(haplotypes);
+      m_haplotypeCache.put(key, haplotypes);
     }
 
-    data.generateSamplePermutations();
+    if (m_useBitsets || m_comparePermutations) {
+      data.generateSamplePermutations();
+    }
     return data;
   }
 
@@ -289,10 +785,19 @@ private Set<VariantLocus> findIgnorablePositions(VariantLocus[] allPositions, Na
    *
    */
   protected List<DiplotypeMatch> callDiplotypes(MatchData data, boolean topCandidateOnly) {
+    return callDiplotypes(data, topCandidateOnly, null);
+  }
+
+  /**
+   * Calls the possible diplotypes for a single gene, only considering haplotypes that pass {@code candidates}.
+   */
+  private List<DiplotypeMatch> callDiplotypes(MatchData data, boolean topCandidateOnly,
+      @Nullable Predicate<NamedAllele> candidates) {
 
     // find matched pairs
-    List<DiplotypeMatch> pairs = new DiplotypeMatcher(data)
-        .compute();
+    List<DiplotypeMatch> pairs = new DiplotypeMatcher(data, m_useBitsets)
+        .candidates(candidates)
+        .compute(topCandidateOnly);
     if (topCandidateOnly && pairs.size() > 1) {
       int topScore = pairs.get(0).getScore();
       pairs = pairs.stream()
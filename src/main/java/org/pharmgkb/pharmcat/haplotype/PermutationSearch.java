@@ -0,0 +1,178 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import com.google.common.base.Preconditions;
+import org.pharmgkb.pharmcat.definition.model.NamedAllele;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+import org.pharmgkb.pharmcat.haplotype.model.HaplotypeMatch;
+
+
+/**
+ * Matches a sample's allele permutations to haplotypes without generating all permutations up front.
+ * <p>
+ * Positions are walked in order, following the same branching as
+ * {@link CombinationUtil#generatePermutations(List)}, while keeping track of the haplotypes that are still consistent
+ * with the alleles picked so far (as a bitset over haplotypes).  A branch is dropped as soon as no haplotype is left, so
+ * the amount of work depends on the number of partial permutations that still match something instead of on the total
+ * number of permutations.
+ * <p>
+ * This gives the same results as matching the output of {@link MatchData#generateSamplePermutations()}.
+ */
+class PermutationSearch {
+  private final AlleleColumns m_columns;
+  private final List<HaplotypeMatch> m_haplotypeMatches = new ArrayList<>();
+  private final int m_numWords;
+
+
+  /**
+   * Constructor.
+   *
+   * @throws IllegalArgumentException if the data can't be searched (see {@link #canSearch(MatchData)})
+   */
+  PermutationSearch(@Nonnull MatchData dataset) {
+    Preconditions.checkArgument(canSearch(dataset), "Sample alleles do not line up with haplotype positions");
+
+    m_columns = dataset.getColumns();
+    m_columns.getHaplotypes().stream()
+        .map(HaplotypeMatch::new)
+        .forEach(m_haplotypeMatches::add);
+    m_numWords = m_columns.getNumHaplotypeWords();
+  }
+
+
+  /**
+   * Checks if the data can be searched, which requires the sample alleles to line up one-to-one with the (sorted)
+   * positions haplotype patterns are built over.  If they don't, permutations need to be generated and matched
+   * instead.
+   */
+  static boolean canSearch(@Nonnull MatchData dataset) {
+
+    List<SampleAllele> sampleAlleles = dataset.getSampleAlleles();
+    VariantLocus[] positions = Arrays.stream(dataset.getPositions()).sorted().toArray(VariantLocus[]::new);
+    if (positions.length != sampleAlleles.size()) {
+      return false;
+    }
+    Set<Integer> vcfPositions = new HashSet<>();
+    for (int x = 0; x < positions.length; x += 1) {
+      if (!vcfPositions.add(positions[x].getVcfPosition()) ||
+          sampleAlleles.get(x).getPosition() != positions[x].getVcfPosition()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Finds all haplotypes that match at least one permutation, along with the permutations they match.
+   */
+  @Nonnull SortedSet<HaplotypeMatch> search() {
+    return search(null);
+  }
+
+  /**
+   * Finds all haplotypes that pass {@code candidates} and match at least one permutation, along with the permutations
+   * they match.
+   */
+  @Nonnull SortedSet<HaplotypeMatch> search(@Nullable Predicate<NamedAllele> candidates) {
+
+    long[] haplotypes = new long[m_numWords];
+    for (int h = 0; h < m_haplotypeMatches.size(); h += 1) {
+      if (candidates == null || candidates.test(m_haplotypeMatches.get(h).getHaplotype())) {
+        haplotypes[h >> 6] |= 1L << h;
+      }
+    }
+    if (m_columns.size() > 0) {
+      search(0, true, haplotypes, new StringBuilder());
+      if (m_columns.isPhased(0)) {
+        search(0, false, haplotypes, new StringBuilder());
+      }
+    }
+
+    SortedSet<HaplotypeMatch> matches = new TreeSet<>();
+    for (HaplotypeMatch hm : m_haplotypeMatches) {
+      if (!hm.getSequences().isEmpty()) {
+        matches.add(hm);
+      }
+    }
+    return matches;
+  }
+
+  private void search(int x, boolean firstAllele, long[] candidates, StringBuilder seq) {
+
+    if (x == m_columns.size()) {
+      String sequence = seq.toString();
+      for (int w = 0; w < m_numWords; w += 1) {
+        long bits = candidates[w];
+        while (bits != 0) {
+          m_haplotypeMatches.get((w << 6) + Long.numberOfTrailingZeros(bits)).addSequence(sequence);
+          bits &= bits - 1;
+        }
+      }
+      return;
+    }
+
+    if (m_columns.isPhased(x)) {
+      searchAllele(x, firstAllele ? m_columns.getAllele1Code(x) : m_columns.getAllele2Code(x), firstAllele,
+          candidates, seq);
+    } else {
+      searchAllele(x, m_columns.getAllele1Code(x), firstAllele, candidates, seq);
+      if (!m_columns.isHomozygous(x)) {
+        searchAllele(x, m_columns.getAllele2Code(x), firstAllele, candidates, seq);
+      }
+    }
+  }
+
+  private void searchAllele(int x, int code, boolean firstAllele, long[] candidates, StringBuilder seq) {
+
+    long[] allowed = m_columns.getHaplotypeBits(x, code);
+    long[] remaining = new long[m_numWords];
+    boolean hasCandidates = false;
+    for (int w = 0; w < m_numWords; w += 1) {
+      remaining[w] = candidates[w] & allowed[w];
+      hasCandidates |= remaining[w] != 0;
+    }
+    if (!hasCandidates) {
+      return;
+    }
+    int length = seq.length();
+    seq.append(m_columns.getSampleAllele(x).getPosition())
+        .append(":")
+        .append(m_columns.getAllele(x, code))
+        .append(";");
+    search(x + 1, firstAllele, remaining, seq);
+    seq.setLength(length);
+  }
+
+
+  /**
+   * Gets the only permutation of the sample's alleles, if there is just one (i.e. the sample is homozygous at every
+   * position that is considered).
+   *
+   * @return the permutation, or null if there is more than one
+   */
+  @Nullable String getOnlyPermutation() {
+
+    boolean checkPhased = m_columns.size() > 0 && m_columns.isPhased(0);
+    StringBuilder seq = new StringBuilder();
+    for (int x = 0; x < m_columns.size(); x += 1) {
+      if ((checkPhased || !m_columns.isPhased(x)) && !m_columns.isHomozygous(x)) {
+        return null;
+      }
+      seq.append(m_columns.getSampleAllele(x).getPosition())
+          .append(":")
+          .append(m_columns.getAllele(x, m_columns.getAllele1Code(x)))
+          .append(";");
+    }
+    return seq.toString();
+  }
+}
@@ -1,6 +1,5 @@
 package org.pharmgkb.pharmcat.haplotype;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
@@ -11,6 +10,7 @@
 import java.util.Set;
 import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import com.google.common.base.Preconditions;
 import org.pharmgkb.common.util.PathUtils;
 import org.pharmgkb.pharmcat.definition.model.DefinitionExemption;
@@ -46,12 +46,36 @@ public Result build() {
 
 
   public ResultBuilder forFile(@Nonnull Path vcfFile, Map<String, Collection<String>> warnings) {
+    return forFile(vcfFile, null, warnings);
+  }
+
+  /**
+   * Sets up metadata for a specific sample in the given VCF file.
+   *
+   * @param sampleId the ID of the sample, only necessary if the VCF file has multiple samples
+   */
+  public ResultBuilder forFile(@Nonnull Path vcfFile, @Nullable String sampleId,
+      Map<String, Collection<String>> warnings) {
     Preconditions.checkNotNull(vcfFile);
-    Preconditions.checkArgument(vcfFile.toString().endsWith(".vcf"));
-    Preconditions.checkArgument(Files.isRegularFile(vcfFile));
+    Preconditions.checkArgument(vcfFile.toString().endsWith(".vcf") || vcfFile.toString().endsWith(".vcf.gz") ||
+        vcfFile.toString().endsWith(".bcf"));
+    // the VCF file doesn't have to still exist if the data came from a slice (see SliceCache)
+
+    return forInput(PathUtils.getFilename(vcfFile), sampleId, warnings);
+  }
+
+  /**
+   * Sets up metadata for a specific sample in VCF data that did not come from a file (e.g. stdin).
+   *
+   * @param inputName the name to record as the input (e.g. "stdin")
+   * @param sampleId the ID of the sample, only necessary if the VCF data has multiple samples
+   */
+  public ResultBuilder forInput(@Nonnull String inputName, @Nullable String sampleId,
+      Map<String, Collection<String>> warnings) {
+    Preconditions.checkNotNull(inputName);
 
     m_result.setMetadata(new Metadata(NamedAlleleMatcher.VERSION, m_definitionReader.getGenomeBuild(),
-        PathUtils.getFilename(vcfFile), new Date()));
+        inputName, sampleId, new Date()));
     if (warnings != null) {
       m_result.setVcfWarnings(warnings);
     }
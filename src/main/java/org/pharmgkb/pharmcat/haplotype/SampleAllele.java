@@ -1,5 +1,10 @@
 package org.pharmgkb.pharmcat.haplotype;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -29,6 +34,8 @@ public class SampleAllele implements Comparable<SampleAllele> {
   private String m_allele2;
   private boolean m_isPhased;
   private List<String> m_vcfAlleles;
+  // true if alleles are already in allele definition format
+  private boolean m_isDefinitionFormat;
 
   public SampleAllele(@Nonnull String chromosome, long position, @Nonnull String a1, @Nullable String a2,
       boolean isPhased, @Nonnull List<String> vcfAlleles) {
@@ -50,6 +57,21 @@ public SampleAllele(@Nonnull String chromosome, long position, @Nonnull String a
     m_vcfAlleles = vcfAlleles;
   }
 
+  /**
+   * Creates a homozygous reference call for the given {@link VariantLocus} (e.g. because it is inside a gVCF reference
+   * block).  Alleles are in allele definition format.
+   */
+  static SampleAllele forReference(@Nonnull VariantLocus variant) {
+    Preconditions.checkArgument(variant.getReferenceAllele() != null, "No reference allele for %s",
+        variant.getVcfChrPosition());
+    String ref = variant.getReferenceAllele();
+    SampleAllele sampleAllele = new SampleAllele(variant.getChromosome(), variant.getVcfPosition(), ref, ref, true,
+        Collections.singletonList(ref));
+    sampleAllele.m_isDefinitionFormat = true;
+    return sampleAllele;
+  }
+
+
   public String getChromosome() {
     return m_chromosome;
   }
@@ -94,6 +116,47 @@ public int compareTo(@Nonnull SampleAllele o) {
   }
 
 
+  /**
+   * Writes this {@link SampleAllele} in the binary format used by slice files (see {@link SliceCache}).
+   */
+  void write(@Nonnull DataOutput out) throws IOException {
+
+    SliceCache.writeString(out, m_chromosome);
+    out.writeInt(m_position);
+    SliceCache.writeString(out, m_allele1);
+    out.writeBoolean(m_allele2 != null);
+    if (m_allele2 != null) {
+      SliceCache.writeString(out, m_allele2);
+    }
+    out.writeBoolean(m_isPhased);
+    out.writeInt(m_vcfAlleles.size());
+    for (String allele : m_vcfAlleles) {
+      SliceCache.writeString(out, allele);
+    }
+    out.writeBoolean(m_isDefinitionFormat);
+  }
+
+  /**
+   * Reads a {@link SampleAllele} written by {@link #write(DataOutput)}.
+   */
+  static SampleAllele read(@Nonnull DataInput in) throws IOException {
+
+    String chromosome = SliceCache.readString(in);
+    int position = in.readInt();
+    String a1 = SliceCache.readString(in);
+    String a2 = in.readBoolean() ? SliceCache.readString(in) : null;
+    boolean isPhased = in.readBoolean();
+    int numVcfAlleles = in.readInt();
+    List<String> vcfAlleles = new ArrayList<>(numVcfAlleles);
+    for (int x = 0; x < numVcfAlleles; x += 1) {
+      vcfAlleles.add(SliceCache.readString(in));
+    }
+    SampleAllele sampleAllele = new SampleAllele(chromosome, position, a1, a2, isPhased, vcfAlleles);
+    sampleAllele.m_isDefinitionFormat = in.readBoolean();
+    return sampleAllele;
+  }
+
+
   /**
    * Checks if VCF alleles indicates a deletion.
    * This is a trivial check that there are different allele lengths; this could be improved.
@@ -113,7 +176,7 @@ public boolean isVcfAlleleADeletion() {
    */
   public SampleAllele forVariant(VariantLocus variant) {
 
-    if (variant.getType() == VariantType.SNP) {
+    if (variant.getType() == VariantType.SNP || m_isDefinitionFormat) {
       return this;
     }
     String a1 = m_allele1;
@@ -0,0 +1,248 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Cache of "PGx slices": the sample genotypes a {@link VcfReader} pulls out of a VCF file for the locations of
+ * interest, saved to a small binary file so that samples can be called again (e.g. after the allele definitions have
+ * been updated) without re-reading the original VCF file.
+ * <p>
+ * Slice files are named after the VCF file and a hash of the locations of interest they were extracted for
+ * ({@code <vcf file name>.<hash>.pgxslice}).  A slice is used if it was extracted for the same locations of interest,
+ * or for a superset of them.  It is ignored if the VCF file it came from has changed since (based on size and last
+ * modified time).
+ */
+public class SliceCache {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  public static final String FILE_EXTENSION = ".pgxslice";
+  private static final int MAGIC = 0x50475853;
+  private static final int VERSION = 2;
+  private final Path m_dir;
+  private final ImmutableMap<String, VariantLocus> m_locationsOfInterest;
+  private final String m_hash;
+
+
+  /**
+   * Constructor.
+   *
+   * @param dir directory slice files are kept in
+   * @param locationsOfInterest set of chr:positions slices need to have
+   */
+  public SliceCache(@Nonnull Path dir, @Nonnull ImmutableMap<String, VariantLocus> locationsOfInterest) {
+    Preconditions.checkNotNull(dir);
+    Preconditions.checkNotNull(locationsOfInterest);
+    m_dir = dir;
+    m_locationsOfInterest = locationsOfInterest;
+    m_hash = hash(locationsOfInterest.keySet());
+  }
+
+
+  /**
+   * Gets the hash identifying a set of locations of interest.
+   */
+  static @Nonnull String hash(@Nonnull Set<String> chrPositions) {
+    return Hashing.sha256()
+        .hashString(String.join("\n", new TreeSet<>(chrPositions)), StandardCharsets.UTF_8)
+        .toString()
+        .substring(0, 16);
+  }
+
+  /**
+   * Gets the hash identifying the locations of interest this cache is for.
+   */
+  public @Nonnull String getHash() {
+    return m_hash;
+  }
+
+  /**
+   * Gets the slice file for a VCF file, for the current locations of interest.
+   */
+  public @Nonnull Path getSliceFile(@Nonnull Path vcfFile) {
+    return m_dir.resolve(vcfFile.getFileName() + "." + m_hash + FILE_EXTENSION);
+  }
+
+
+  /**
+   * Reads all samples in a VCF file and saves a slice for them.
+   *
+   * @return the slice file
+   */
+  public @Nonnull Path write(@Nonnull Path vcfFile) throws IOException {
+    return write(vcfFile, new VcfReader(m_locationsOfInterest, vcfFile, true));
+  }
+
+  /**
+   * Saves a slice of data that has already been read from a VCF file.
+   *
+   * @return the slice file
+   */
+  public @Nonnull Path write(@Nonnull Path vcfFile, @Nonnull VcfReader vcfReader) throws IOException {
+
+    Files.createDirectories(m_dir);
+    Path sliceFile = getSliceFile(vcfFile);
+    // write to a temp file first, so nobody ever sees a partial slice
+    Path tmpFile = Files.createTempFile(m_dir, vcfFile.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new GZIPOutputStream(Files.newOutputStream(tmpFile))))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, m_hash);
+        writeString(out, toSource(vcfFile));
+        out.writeLong(Files.size(vcfFile));
+        out.writeLong(Files.getLastModifiedTime(vcfFile).toMillis());
+        out.writeInt(m_locationsOfInterest.size());
+        for (String chrPos : new TreeSet<>(m_locationsOfInterest.keySet())) {
+          writeString(out, chrPos);
+        }
+        vcfReader.writeSlice(out);
+      }
+      Files.move(tmpFile, sliceFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmpFile);
+    }
+    sf_logger.debug("Wrote {}", sliceFile);
+    return sliceFile;
+  }
+
+
+  /**
+   * Reads data for all samples in a VCF file from a slice, if there is one that is usable.
+   *
+   * @return the slice's data, or null if the VCF file needs to be read
+   */
+  public @Nullable VcfReader read(@Nonnull Path vcfFile) throws IOException {
+    return read(vcfFile, true);
+  }
+
+  /**
+   * Reads data for a VCF file from a slice, if there is one that is usable.  The data is the same as what
+   * {@link VcfReader} would read from the VCF file itself.
+   *
+   * @param allSamples true to read all samples, false to only read the first one
+   * @return the slice's data, or null if the VCF file needs to be read
+   */
+  public @Nullable VcfReader read(@Nonnull Path vcfFile, boolean allSamples) throws IOException {
+
+    if (!Files.isDirectory(m_dir)) {
+      return null;
+    }
+    List<Path> candidates = new ArrayList<>();
+    Path sliceFile = getSliceFile(vcfFile);
+    if (Files.isRegularFile(sliceFile)) {
+      candidates.add(sliceFile);
+    }
+    // slices for other sets of locations of interest may still have everything we need
+    String prefix = vcfFile.getFileName() + ".";
+    try (Stream<Path> stream = Files.list(m_dir)) {
+      candidates.addAll(stream
+          .filter(f -> {
+            String name = f.getFileName().toString();
+            return name.startsWith(prefix) && name.endsWith(FILE_EXTENSION) && !f.equals(sliceFile);
+          })
+          .sorted()
+          .collect(Collectors.toList()));
+    }
+
+    for (Path file : candidates) {
+      try {
+        VcfReader reader = read(file, vcfFile, allSamples);
+        if (reader != null) {
+          sf_logger.debug("Using {} for {}", file, vcfFile);
+          return reader;
+        }
+      } catch (IOException ex) {
+        sf_logger.warn("Ignoring unreadable slice " + file, ex);
+      }
+    }
+    return null;
+  }
+
+  private @Nullable VcfReader read(Path sliceFile, Path vcfFile, boolean allSamples) throws IOException {
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new GZIPInputStream(Files.newInputStream(sliceFile))))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        sf_logger.debug("{} is not a usable slice file", sliceFile);
+        return null;
+      }
+      String hash = readString(in);
+      if (!readString(in).equals(toSource(vcfFile))) {
+        return null;
+      }
+      long size = in.readLong();
+      long lastModified = in.readLong();
+      if (Files.exists(vcfFile) && (Files.size(vcfFile) != size ||
+          Files.getLastModifiedTime(vcfFile).toMillis() != lastModified)) {
+        sf_logger.debug("{} has changed since {} was written", vcfFile, sliceFile);
+        return null;
+      }
+      int numPositions = in.readInt();
+      Set<String> positions = new HashSet<>();
+      for (int x = 0; x < numPositions; x += 1) {
+        positions.add(readString(in));
+      }
+      if (!hash.equals(m_hash) && !positions.containsAll(m_locationsOfInterest.keySet())) {
+        sf_logger.debug("{} does not have all locations of interest", sliceFile);
+        return null;
+      }
+      return VcfReader.readSlice(in, allSamples);
+    }
+  }
+
+  private static String toSource(Path vcfFile) {
+    return vcfFile.toAbsolutePath().normalize().toString();
+  }
+
+
+  /**
+   * Writes a string of any length (unlike {@link DataOutput#writeUTF(String)}).
+   */
+  static void writeString(@Nonnull DataOutput out, @Nonnull String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads a string written by {@link #writeString(DataOutput, String)}.
+   */
+  static @Nonnull String readString(@Nonnull DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Invalid string length: " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,62 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import org.pharmgkb.common.io.util.CliHelper;
+import org.pharmgkb.pharmcat.util.DataManager;
+
+
+/**
+ * Extracts the sample genotypes for all locations of interest (including extra positions from definition exemptions)
+ * from VCF files into PGx slices (see {@link SliceCache}), so that {@link NamedAlleleMatcher} can call them again
+ * later without re-reading the VCF files.
+ */
+public class SliceExtractor {
+
+
+  public static void main(String[] args) {
+
+    try {
+      CliHelper cliHelper = new CliHelper(MethodHandles.lookup().lookupClass())
+          .addOption("vcf", "vcf-in", "VCF or BCF file, or directory of them (each file is extracted on its own)", true,
+              "vcf")
+          .addOption("o", "output-dir", "directory to save slices to", true, "o")
+          .addOption("d", "definition-dir", "directory of allele definition files", false, "d")
+          ;
+
+      if (!cliHelper.parse(args)) {
+        System.exit(1);
+      }
+
+      Path vcfPath = cliHelper.getPath("vcf");
+      Path definitionDir;
+      if (cliHelper.hasOption("d")) {
+        definitionDir = cliHelper.getValidDirectory("d", false);
+      } else {
+        definitionDir = DataManager.DEFAULT_DEFINITION_DIR;
+      }
+
+      DefinitionReader definitionReader = new DefinitionReader();
+      definitionReader.read(definitionDir);
+      if (definitionReader.getGenes().size() == 0) {
+        System.out.println("Did not find any allele definitions at " + definitionDir);
+        System.exit(1);
+      }
+
+      List<Path> vcfFiles = Files.isDirectory(vcfPath) ? NamedAlleleMatcher.listVcfFiles(vcfPath) :
+          Collections.singletonList(vcfPath);
+      SliceCache sliceCache = new SliceCache(cliHelper.getPath("o"),
+          new NamedAlleleMatcher(definitionReader).getLocationsOfInterest());
+      for (Path vcfFile : vcfFiles) {
+        Path sliceFile = sliceCache.write(vcfFile);
+        System.out.println("Saved " + vcfFile + " to " + sliceFile);
+      }
+
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,348 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.annotation.Nonnull;
+
+
+/**
+ * Filters raw VCF data so that only header lines and data lines for positions of interest get through to the parser.
+ * <p>
+ * Only the CHROM and POS columns are looked at, straight from the bytes, and checked against the sorted positions of
+ * interest on the contig (from a {@link LocusIndex}, so contig naming doesn't have to match), so skipped lines never
+ * get decoded or tokenized.
+ * <p>
+ * Lines on a contig of interest that have an {@code END} (i.e. gVCF reference blocks) are also let through if they
+ * cover a position of interest.
+ * <p>
+ * If the file is coordinate-sorted, this stops reading once it has passed the last position of interest on every
+ * contig of interest.  Sort order is checked as lines go by.  If the file turns out to be unsorted (a contig shows up
+ * again after another one, or positions go backwards) before then, the whole file is read.
+ */
+class VcfLineFilter extends InputStream {
+  private static final int BUFFER_SIZE = 65536;
+  private static final int LINE_START = 0;
+  private static final int PASS = 1;
+  private static final int SKIP = 2;
+  private final InputStream m_in;
+  private byte[] m_buffer = new byte[BUFFER_SIZE];
+  private int m_start;
+  private int m_end;
+  private int m_state = LINE_START;
+  private final LocusIndex m_locusIndex;
+  // sorted positions of interest, indexed by contig ID
+  private final int[][] m_positions;
+  private final boolean[] m_finished;
+  private int m_numFinished;
+  private final Set<String> m_seenContigs = new HashSet<>();
+  private byte[] m_currentContig;
+  private int m_currentContigId = -1;
+  private long m_currentPosition;
+  private boolean m_isSorted = true;
+  private boolean m_stoppedEarly;
+  private long m_numSkipped;
+
+
+  VcfLineFilter(@Nonnull InputStream in, @Nonnull LocusIndex locusIndex) {
+    m_in = in;
+    m_locusIndex = locusIndex;
+    m_positions = new int[locusIndex.getNumContigs()][];
+    for (int x = 0; x < m_positions.length; x += 1) {
+      m_positions[x] = locusIndex.getPositions(x);
+    }
+    m_finished = new boolean[m_positions.length];
+  }
+
+
+  /**
+   * True if the input has been coordinate-sorted so far.
+   */
+  boolean isSorted() {
+    return m_isSorted;
+  }
+
+  /**
+   * True if reading stopped before the end of the input because there could not be any more positions of interest.
+   */
+  boolean stoppedEarly() {
+    return m_stoppedEarly;
+  }
+
+  /**
+   * Gets the number of data lines that were skipped.
+   */
+  long getNumSkipped() {
+    return m_numSkipped;
+  }
+
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int rez = read(b, 0, 1);
+    return rez == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+
+    if (len == 0) {
+      return 0;
+    }
+    while (true) {
+      if (m_state == LINE_START && !startLine()) {
+        return -1;
+      }
+      if (m_start == m_end && !fill()) {
+        return -1;
+      }
+      int newline = indexOf('\n', m_start, m_end);
+      int stop = newline == -1 ? m_end : newline + 1;
+      if (m_state == SKIP) {
+        m_start = stop;
+        if (newline != -1) {
+          m_state = LINE_START;
+        }
+        continue;
+      }
+      int count = Math.min(len, stop - m_start);
+      System.arraycopy(m_buffer, m_start, b, off, count);
+      m_start += count;
+      if (newline != -1 && m_start == stop) {
+        m_state = LINE_START;
+      }
+      return count;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    m_in.close();
+  }
+
+
+  /**
+   * Decides whether the line starting at {@code m_start} should be passed on or skipped.
+   *
+   * @return false if there is nothing more to read
+   */
+  private boolean startLine() throws IOException {
+
+    if (m_stoppedEarly) {
+      return false;
+    }
+    int tab1 = -1;
+    int tab2 = -1;
+    int idx = 0;
+    while (tab2 == -1) {
+      for (; m_start + idx < m_end; idx += 1) {
+        byte c = m_buffer[m_start + idx];
+        if ((idx == 0 && c == '#') || c == '\n') {
+          // header or something we don't understand, let the parser deal with it
+          m_state = PASS;
+          return true;
+        }
+        if (c == '\t') {
+          if (tab1 == -1) {
+            tab1 = idx;
+          } else {
+            tab2 = idx;
+            break;
+          }
+        }
+      }
+      if (tab2 == -1 && !fill()) {
+        m_state = PASS;
+        return m_start < m_end;
+      }
+    }
+
+    if (keepLine(m_start, m_start + tab1, m_start + tab2)) {
+      m_state = PASS;
+      return true;
+    }
+    if (m_stoppedEarly) {
+      return false;
+    }
+    if (m_currentContigId != -1 && coversPositionOfInterest(tab2)) {
+      m_state = PASS;
+      return true;
+    }
+    m_numSkipped += 1;
+    m_state = SKIP;
+    return true;
+  }
+
+  private boolean keepLine(int lineStart, int tab1, int tab2) {
+
+    long pos = parsePosition(tab1 + 1, tab2);
+    if (pos == -1) {
+      return true;
+    }
+    if (!isCurrentContig(lineStart, tab1)) {
+      startContig(lineStart, tab1);
+    } else if (pos < m_currentPosition) {
+      m_isSorted = false;
+    }
+    m_currentPosition = pos;
+
+    if (m_currentContigId == -1) {
+      return false;
+    }
+    int[] positions = m_positions[m_currentContigId];
+    if (m_isSorted && pos > positions[positions.length - 1]) {
+      finishContig(m_currentContigId);
+    }
+    return pos <= Integer.MAX_VALUE && Arrays.binarySearch(positions, (int)pos) >= 0;
+  }
+
+  /**
+   * Checks if the line starting at {@code m_start} has an {@code END} in its INFO column that reaches the next position
+   * of interest.
+   *
+   * @param idx offset of the tab after POS, relative to {@code m_start}
+   */
+  private boolean coversPositionOfInterest(int idx) throws IOException {
+
+    int[] positions = m_positions[m_currentContigId];
+    int next = Arrays.binarySearch(positions, (int)Math.min(m_currentPosition, Integer.MAX_VALUE));
+    if (next < 0) {
+      next = -next - 1;
+    }
+    if (next >= positions.length) {
+      return false;
+    }
+
+    // INFO is the 8th column
+    int numTabs = 2;
+    int infoStart = -1;
+    for (idx += 1; ; idx += 1) {
+      if (m_start + idx == m_end && !fill()) {
+        return false;
+      }
+      byte c = m_buffer[m_start + idx];
+      if (c == '\n') {
+        if (infoStart == -1) {
+          return false;
+        }
+        break;
+      }
+      if (c == '\t') {
+        numTabs += 1;
+        if (numTabs == 7) {
+          infoStart = idx + 1;
+        } else if (numTabs == 8) {
+          break;
+        }
+      }
+    }
+
+    // look for END=
+    int start = m_start + infoStart;
+    int end = m_start + idx;
+    for (int x = start; x + 4 < end; x += 1) {
+      if ((x == start || m_buffer[x - 1] == ';') && m_buffer[x] == 'E' && m_buffer[x + 1] == 'N' &&
+          m_buffer[x + 2] == 'D' && m_buffer[x + 3] == '=') {
+        int valueEnd = x + 4;
+        while (valueEnd < end && m_buffer[valueEnd] != ';') {
+          valueEnd += 1;
+        }
+        long endPos = parsePosition(x + 4, valueEnd);
+        return endPos >= positions[next];
+      }
+    }
+    return false;
+  }
+
+  private boolean isCurrentContig(int start, int end) {
+
+    if (m_currentContig == null || m_currentContig.length != end - start) {
+      return false;
+    }
+    for (int x = 0; x < m_currentContig.length; x += 1) {
+      if (m_currentContig[x] != m_buffer[start + x]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void startContig(int start, int end) {
+
+    String contig = new String(m_buffer, start, end - start, StandardCharsets.UTF_8);
+    if (!m_seenContigs.add(contig)) {
+      m_isSorted = false;
+    }
+    m_currentContig = Arrays.copyOfRange(m_buffer, start, end);
+    m_currentContigId = m_locusIndex.getContigId(contig);
+  }
+
+  private void finishContig(int contigId) {
+
+    if (!m_finished[contigId]) {
+      m_finished[contigId] = true;
+      m_numFinished += 1;
+    }
+    if (m_isSorted && m_numFinished == m_finished.length) {
+      m_stoppedEarly = true;
+    }
+  }
+
+  /**
+   * Parses the POS column without allocating.
+   *
+   * @return the position, or -1 if it isn't a number
+   */
+  private long parsePosition(int start, int end) {
+
+    if (start == end || end - start > 18) {
+      return -1;
+    }
+    long pos = 0;
+    for (int x = start; x < end; x += 1) {
+      byte c = m_buffer[x];
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      pos = pos * 10 + (c - '0');
+    }
+    return pos;
+  }
+
+
+  private int indexOf(char b, int start, int end) {
+    for (int x = start; x < end; x += 1) {
+      if (m_buffer[x] == b) {
+        return x;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Reads more data into the buffer, moving unread data to the front (and growing the buffer if necessary).
+   *
+   * @return false if at end of input
+   */
+  private boolean fill() throws IOException {
+
+    if (m_start > 0) {
+      System.arraycopy(m_buffer, m_start, m_buffer, 0, m_end - m_start);
+      m_end -= m_start;
+      m_start = 0;
+    }
+    if (m_end == m_buffer.length) {
+      m_buffer = Arrays.copyOf(m_buffer, m_buffer.length * 2);
+    }
+    int read = m_in.read(m_buffer, m_end, m_buffer.length - m_end);
+    if (read == -1) {
+      return false;
+    }
+    m_end += read;
+    return true;
+  }
+}
@@ -1,22 +1,57 @@
 package org.pharmgkb.pharmcat.haplotype;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
 import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
 import com.google.common.collect.SortedSetMultimap;
+import com.google.common.collect.TreeRangeSet;
 import com.google.common.collect.TreeMultimap;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.pharmgkb.common.comparator.ChromosomePositionComparator;
 import org.pharmgkb.parser.vcf.VcfLineParser;
 import org.pharmgkb.parser.vcf.VcfParser;
@@ -25,8 +60,15 @@
 import org.pharmgkb.parser.vcf.model.VcfPosition;
 import org.pharmgkb.parser.vcf.model.VcfSample;
 import org.pharmgkb.pharmcat.ParseException;
+import org.pharmgkb.pharmcat.definition.AssemblyMap;
 import org.pharmgkb.pharmcat.definition.model.VariantLocus;
 import org.pharmgkb.pharmcat.definition.model.VariantType;
+import org.pharmgkb.pharmcat.util.BgzfInputStream;
+import org.pharmgkb.pharmcat.util.ByteBufferInputStream;
+import org.pharmgkb.pharmcat.util.ChunkUtils;
+import org.pharmgkb.pharmcat.util.ParallelBgzfInputStream;
+import org.pharmgkb.pharmcat.util.TabixIndex;
+import org.pharmgkb.pharmcat.util.VcfSidecarIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,26 +81,192 @@
  */
 public class VcfReader implements VcfLineParser {
   private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
-  private static final Pattern sf_gtDelimiter = Pattern.compile("[|/]");
-  private static final Pattern sf_noCallPattern = Pattern.compile("^[.|/]+$");
-  private static final Pattern sf_allelePattern = Pattern.compile("^[AaCcGgTt]+$");
-  private ImmutableMap<String, VariantLocus> m_locationsOfInterest;
+  private static final Pattern sf_contigPattern = Pattern.compile("^##contig=<ID=([^,>]+)", Pattern.MULTILINE);
+  private static final Pattern sf_assemblyPattern = Pattern.compile("^##contig=<[^\n]*?assembly=\"?([^,>\"\n]+)",
+      Pattern.MULTILINE);
+  private static final String sf_duplicateWarning = "Duplicate entry: first valid position wins";
+  private static final String sf_multipleSamplesWarning = "Multiple samples found, only using first entry";
+  // symbolic ALT alleles used in gVCF files to stand for any other allele
+  private static final Set<String> sf_nonRefAlleles = ImmutableSet.of("<NON_REF>", "<*>");
+  // uncompressed files at least this big get scanned in parallel, in chunks of about this size
+  static long PARALLEL_MIN_FILE_SIZE = 64 * 1024 * 1024;
+  static long PARALLEL_CHUNK_SIZE = 16 * 1024 * 1024;
+  // unindexed BGZF files at least this big get inflated in parallel
+  static long PARALLEL_INFLATE_MIN_FILE_SIZE = 1024 * 1024;
+  // uncompressed files at least this big get a sidecar position index
+  static long SIDECAR_MIN_FILE_SIZE = 16 * 1024 * 1024;
+  // positions of interest, by their positions in the allele definitions (GRCh38)
+  private final LocusIndex m_definitionIndex;
+  // positions of interest, by their positions in the assembly the VCF data is from
+  private LocusIndex m_locusIndex;
+  private boolean m_allSamples;
+  // directory to keep sidecar indexes of large plain text VCF files in, null to not use them
+  private Path m_sidecarDir;
+  // samples to read when only reading a subset of them (by ID and/or index), null otherwise
+  private Collection<String> m_selectedSampleIds;
+  private int[] m_selectedSampleIdxs;
+  // (0-based) columns of the samples being read, in the data being parsed
+  private int[] m_sampleColumns;
   private String m_genomeBuild;
-  // <chr:position, allele>
-  private SortedMap<String, SampleAllele> m_alleleMap = new TreeMap<>(ChromosomePositionComparator.getComparator());
-  // <chr:position, warning>
-  private SortedSetMultimap<String, String> m_warnings = TreeMultimap.create();
+  private List<String> m_sampleIds = new ArrayList<>();
+  private Map<String, Integer> m_sampleIdx = new HashMap<>();
+  // per sample: <chr:position, allele>
+  private List<SortedMap<String, SampleAllele>> m_alleleMaps = new ArrayList<>();
+  // per sample: <chr:position, warning>
+  private List<SortedSetMultimap<String, String>> m_warnings = new ArrayList<>();
+  // per sample: <contig ID, homozygous reference gVCF blocks>
+  private List<Map<Integer, RangeSet<Integer>>> m_referenceBlocks = new ArrayList<>();
+  // chr:positions the first sample gets a "multiple samples" warning for when only reading the first sample
+  private Set<String> m_multipleSamplePositions = new HashSet<>();
+  private final GenotypeDecoder m_genotypeDecoder = new GenotypeDecoder();
 
 
   /**
    * Constructor.
    * Reads in VCF file and pull the sample's alleles for positions of interest.
+   * Only the first sample in the VCF file will be read.
    *
    * @param locationsOfInterest set of chr:positions to pull alleles for
    */
   public VcfReader(ImmutableMap<String, VariantLocus> locationsOfInterest, Path vcfFile) throws IOException {
-    m_locationsOfInterest = locationsOfInterest;
+    this(locationsOfInterest, vcfFile, false);
+  }
+
+  /**
+   * Constructor.
+   * Reads in VCF file and pull the sample's alleles for positions of interest.
+   *
+   * @param locationsOfInterest set of chr:positions to pull alleles for
+   * @param allSamples true to read alleles for all samples in the VCF file, false to only read the first sample
+   */
+  public VcfReader(ImmutableMap<String, VariantLocus> locationsOfInterest, Path vcfFile, boolean allSamples)
+      throws IOException {
+    this(locationsOfInterest, vcfFile, allSamples, null);
+  }
+
+  /**
+   * Constructor.
+   * Reads in VCF file and pull the sample's alleles for positions of interest.
+   *
+   * @param locationsOfInterest set of chr:positions to pull alleles for
+   * @param allSamples true to read alleles for all samples in the VCF file, false to only read the first sample
+   * @param sidecarDir directory to keep {@link VcfSidecarIndex}es of large plain text VCF files in, or null to not use
+   * them
+   */
+  public VcfReader(ImmutableMap<String, VariantLocus> locationsOfInterest, Path vcfFile, boolean allSamples,
+      @Nullable Path sidecarDir) throws IOException {
+    this(locationsOfInterest, allSamples);
+    m_sidecarDir = sidecarDir;
     read(vcfFile);
+    resolveReferenceBlocks();
+  }
+
+  /**
+   * Constructor.
+   * Reads in VCF file and pull the alleles for positions of interest for a subset of its samples.  The sample columns
+   * that aren't wanted are skipped without being parsed, so this is much cheaper than reading all samples in a wide VCF
+   * file.
+   *
+   * @param locationsOfInterest set of chr:positions to pull alleles for
+   * @param sampleIds IDs of the samples to read
+   * @throws IllegalArgumentException if a sample isn't in the VCF file
+   */
+  public VcfReader(ImmutableMap<String, VariantLocus> locationsOfInterest, Path vcfFile,
+      Collection<String> sampleIds) throws IOException {
+    this(locationsOfInterest, true, Preconditions.checkNotNull(sampleIds), null);
+    read(vcfFile);
+    resolveReferenceBlocks();
+  }
+
+  /**
+   * Constructor.
+   * Reads in VCF file and pull the alleles for positions of interest for a subset of its samples.  The sample columns
+   * that aren't wanted are skipped without being parsed.
+   *
+   * @param locationsOfInterest set of chr:positions to pull alleles for
+   * @param sampleIdxs (0-based) indexes of the samples to read
+   * @throws IllegalArgumentException if a sample index is out of range
+   */
+  public VcfReader(ImmutableMap<String, VariantLocus> locationsOfInterest, Path vcfFile, int[] sampleIdxs)
+      throws IOException {
+    this(locationsOfInterest, true, null, Preconditions.checkNotNull(sampleIdxs));
+    read(vcfFile);
+    resolveReferenceBlocks();
+  }
+
+  /**
+   * Constructor.
+   * Reads VCF data from a stream (e.g. stdin) and pull the sample's alleles for positions of interest.
+   * The data may be plain text or gzipped.  The stream is read to the end, but it is up to the caller to close it.
+   *
+   * @param locationsOfInterest set of chr:positions to pull alleles for
+   * @param allSamples true to read alleles for all samples in the VCF file, false to only read the first sample
+   */
+  public VcfReader(ImmutableMap<String, VariantLocus> locationsOfInterest, InputStream vcfStream, boolean allSamples)
+      throws IOException {
+    this(locationsOfInterest, allSamples);
+    Preconditions.checkNotNull(vcfStream);
+    readStream(vcfStream);
+    resolveReferenceBlocks();
+  }
+
+  /**
+   * Constructor.
+   * Reads VCF data from a stream (e.g. stdin) and pull the alleles for positions of interest for a subset of its
+   * samples.  The data may be plain text or gzipped.  The stream is read to the end, but it is up to the caller to
+   * close it.
+   *
+   * @param locationsOfInterest set of chr:positions to pull alleles for
+   * @param sampleIds IDs of the samples to read
+   * @throws IllegalArgumentException if a sample isn't in the VCF data
+   */
+  public VcfReader(ImmutableMap<String, VariantLocus> locationsOfInterest, InputStream vcfStream,
+      Collection<String> sampleIds) throws IOException {
+    this(locationsOfInterest, true, Preconditions.checkNotNull(sampleIds), null);
+    Preconditions.checkNotNull(vcfStream);
+    readStream(vcfStream);
+    resolveReferenceBlocks();
+  }
+
+  /**
+   * Constructor.
+   * Reads in VCF files that all have data for the same sample (e.g. one file per chromosome) and pulls the sample's
+   * alleles for positions of interest.  Only the first sample in each VCF file will be read.
+   * <p>
+   * Files that can't contain positions of interest are skipped, and the rest are read concurrently.
+   *
+   * @param locationsOfInterest set of chr:positions to pull alleles for
+   */
+  public VcfReader(ImmutableMap<String, VariantLocus> locationsOfInterest, List<Path> vcfFiles) throws IOException {
+    this(locationsOfInterest, false);
+    Preconditions.checkNotNull(vcfFiles);
+    Preconditions.checkArgument(!vcfFiles.isEmpty(), "No VCF files");
+    readSplit(vcfFiles);
+    resolveReferenceBlocks();
+  }
+
+  /**
+   * Constructor for reading part of a VCF file.
+   */
+  private VcfReader(ImmutableMap<String, VariantLocus> locationsOfInterest, boolean allSamples) {
+    this(locationsOfInterest, allSamples, null, null);
+  }
+
+  private VcfReader(ImmutableMap<String, VariantLocus> locationsOfInterest, boolean allSamples,
+      @Nullable Collection<String> selectedSampleIds, @Nullable int[] selectedSampleIdxs) {
+    this(new LocusIndex(locationsOfInterest.values()), allSamples, selectedSampleIds, selectedSampleIdxs);
+  }
+
+  /**
+   * Constructor for reading part of a VCF file, or a subset of its samples.
+   */
+  private VcfReader(LocusIndex locusIndex, boolean allSamples, @Nullable Collection<String> selectedSampleIds,
+      @Nullable int[] selectedSampleIdxs) {
+    m_definitionIndex = locusIndex;
+    m_locusIndex = locusIndex;
+    m_allSamples = allSamples;
+    m_selectedSampleIds = selectedSampleIds;
+    m_selectedSampleIdxs = selectedSampleIdxs;
   }
 
 
@@ -72,56 +280,778 @@ public VcfReader(ImmutableMap<String, VariantLocus> locationsOfInterest, Path vc
 
 
   /**
-   * Gets sample data.
+   * Gets the IDs of the samples that were read, in the order they appear in the VCF file.
+   */
+  public @Nonnull List<String> getSamples() {
+    return m_sampleIds;
+  }
+
+
+  /**
+   * Gets sample data for the first sample.
    *
    * @return map of {@code <chr:position, SampleAllele>}
    */
   public SortedMap<String, SampleAllele> getAlleleMap() {
-    return m_alleleMap;
+    return m_alleleMaps.get(0);
+  }
+
+  /**
+   * Gets sample data for the specified sample.
+   *
+   * @return map of {@code <chr:position, SampleAllele>}
+   */
+  public SortedMap<String, SampleAllele> getAlleleMap(@Nonnull String sampleId) {
+    return m_alleleMaps.get(lookupSample(sampleId));
   }
 
 
   /**
-   * Gets warnings from reading data, keyed to chromosomal position.
+   * Gets warnings from reading data for the first sample, keyed to chromosomal position.
    */
   public SortedSetMultimap<String, String> getWarnings() {
-    return m_warnings;
+    return m_warnings.get(0);
+  }
+
+  /**
+   * Gets warnings from reading data for the specified sample, keyed to chromosomal position.
+   */
+  public SortedSetMultimap<String, String> getWarnings(@Nonnull String sampleId) {
+    return m_warnings.get(lookupSample(sampleId));
+  }
+
+  private int lookupSample(String sampleId) {
+    Integer idx = m_sampleIdx.get(sampleId);
+    Preconditions.checkArgument(idx != null, "Unknown sample: %s", sampleId);
+    return idx;
+  }
+
+
+  /**
+   * Writes the samples' data (but not the gVCF reference blocks, which have already been resolved) in the binary format
+   * used by slice files (see {@link SliceCache}).
+   */
+  void writeSlice(@Nonnull DataOutput out) throws IOException {
+
+    out.writeBoolean(m_genomeBuild != null);
+    if (m_genomeBuild != null) {
+      SliceCache.writeString(out, m_genomeBuild);
+    }
+    out.writeBoolean(m_allSamples);
+    out.writeInt(m_multipleSamplePositions.size());
+    for (String chrPos : new TreeSet<>(m_multipleSamplePositions)) {
+      SliceCache.writeString(out, chrPos);
+    }
+    out.writeInt(m_sampleIds.size());
+    for (String sampleId : m_sampleIds) {
+      SliceCache.writeString(out, sampleId);
+    }
+    out.writeInt(m_alleleMaps.size());
+    for (int x = 0; x < m_alleleMaps.size(); x += 1) {
+      SortedMap<String, SampleAllele> alleleMap = m_alleleMaps.get(x);
+      out.writeInt(alleleMap.size());
+      for (Map.Entry<String, SampleAllele> entry : alleleMap.entrySet()) {
+        SliceCache.writeString(out, entry.getKey());
+        entry.getValue().write(out);
+      }
+      SortedSetMultimap<String, String> warnings = m_warnings.get(x);
+      out.writeInt(warnings.keySet().size());
+      for (String chrPos : warnings.keySet()) {
+        SliceCache.writeString(out, chrPos);
+        out.writeInt(warnings.get(chrPos).size());
+        for (String msg : warnings.get(chrPos)) {
+          SliceCache.writeString(out, msg);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads samples' data written by {@link #writeSlice(DataOutput)}.
+   * <p>
+   * When only reading the first sample, the result is the same as reading the first sample from the original VCF data,
+   * including the warnings about there being multiple samples.
+   *
+   * @param allSamples true to read all samples, false to only read the first one
+   * @return the data, or null if all samples are wanted but the slice only has the first one
+   */
+  static @Nullable VcfReader readSlice(@Nonnull DataInput in, boolean allSamples) throws IOException {
+
+    // nothing left to read from VCF data, so no need for a locus index
+    VcfReader reader = new VcfReader((LocusIndex)null, allSamples, null, null);
+    if (in.readBoolean()) {
+      reader.m_genomeBuild = SliceCache.readString(in);
+    }
+    if (allSamples && !in.readBoolean()) {
+      return null;
+    }
+    if (!allSamples) {
+      in.readBoolean();
+    }
+    int numMultipleSamplePositions = in.readInt();
+    for (int x = 0; x < numMultipleSamplePositions; x += 1) {
+      reader.m_multipleSamplePositions.add(SliceCache.readString(in));
+    }
+    int numSamples = in.readInt();
+    for (int x = 0; x < numSamples; x += 1) {
+      String sampleId = SliceCache.readString(in);
+      if (allSamples || x == 0) {
+        reader.m_sampleIds.add(sampleId);
+        reader.m_sampleIdx.put(sampleId, x);
+      }
+    }
+    int numMaps = in.readInt();
+    for (int x = 0; x < numMaps; x += 1) {
+      SortedMap<String, SampleAllele> alleleMap = new TreeMap<>(ChromosomePositionComparator.getComparator());
+      int numAlleles = in.readInt();
+      for (int y = 0; y < numAlleles; y += 1) {
+        String chrPos = SliceCache.readString(in);
+        alleleMap.put(chrPos, SampleAllele.read(in));
+      }
+      SortedSetMultimap<String, String> warnings = TreeMultimap.create();
+      int numWarnings = in.readInt();
+      for (int y = 0; y < numWarnings; y += 1) {
+        String chrPos = SliceCache.readString(in);
+        int numMessages = in.readInt();
+        for (int z = 0; z < numMessages; z += 1) {
+          warnings.put(chrPos, SliceCache.readString(in));
+        }
+      }
+      if (allSamples || x == 0) {
+        reader.m_alleleMaps.add(alleleMap);
+        reader.m_warnings.add(warnings);
+        reader.m_referenceBlocks.add(new HashMap<>());
+      }
+    }
+    if (!allSamples) {
+      for (String chrPos : reader.m_multipleSamplePositions) {
+        reader.m_warnings.get(0).put(chrPos, sf_multipleSamplesWarning);
+      }
+    }
+    return reader;
   }
 
 
   /**
    * Read VCF file.
+   * <p>
+   * Plain text ({@code .vcf}), gzipped ({@code .vcf.gz}) and BCF ({@code .bcf}) files are supported.  If a gzipped or
+   * BCF file has been compressed with {@code bgzip} and has a tabix ({@code .tbi}) or CSI ({@code .csi}) index
+   * alongside it, only the parts of the file that can contain positions of interest will be read (otherwise, large BGZF
+   * files are inflated on multiple threads).  Large plain text files are scanned in chunks on multiple threads, unless
+   * a sidecar directory has been specified, in which case they get a {@link VcfSidecarIndex} built for them the first
+   * time they are read, which is used the same way.
    */
   private void read(Path vcfFile) throws IOException {
 
     Preconditions.checkNotNull(vcfFile);
     Preconditions.checkArgument(Files.isRegularFile(vcfFile), "%s is not a file", vcfFile);
     Preconditions.checkArgument(Files.isReadable(vcfFile), "%s is not readable", vcfFile);
-    Preconditions.checkArgument(vcfFile.toString().endsWith(".vcf"), "%s is not a VCF file", vcfFile);
-
-    // <chr:position, allele>
-    try (BufferedReader reader = Files.newBufferedReader(vcfFile)) {
-      // read VCF file
-      VcfParser vcfParser = new VcfParser.Builder()
-          .fromReader(reader)
-          .parseWith(this)
-          .build();
-      for (ContigMetadata cm : vcfParser.parseMetadata().getContigs().values()) {
-        if (cm.getAssembly() != null) {
-          if (m_genomeBuild == null) {
-            m_genomeBuild = cm.getAssembly();
-          } else if (!m_genomeBuild.equals(cm.getAssembly())) {
-            throw new IllegalStateException("VCF file uses different assemblies (" + m_genomeBuild + " and " +
-                cm.getAssembly() + ")");
+    String filename = vcfFile.toString();
+    Preconditions.checkArgument(filename.endsWith(".vcf") || filename.endsWith(".vcf.gz") || filename.endsWith(".bcf"),
+        "%s is not a VCF file", vcfFile);
+
+    if (filename.endsWith(".bcf")) {
+      Path indexFile = TabixIndex.findIndex(vcfFile);
+      if (indexFile != null && BgzfInputStream.isBgzfFile(vcfFile)) {
+        readBcfIndexed(vcfFile, indexFile);
+      } else if (isParallelInflatable(vcfFile)) {
+        try (InputStream in = new BufferedInputStream(new ParallelBgzfInputStream(vcfFile))) {
+          readBcf(in);
+        }
+      } else {
+        try (InputStream in = Files.newInputStream(vcfFile)) {
+          readStream(in);
+        }
+      }
+    } else if (filename.endsWith(".vcf.gz")) {
+      Path indexFile = TabixIndex.findIndex(vcfFile);
+      if (indexFile != null && BgzfInputStream.isBgzfFile(vcfFile)) {
+        readIndexed(vcfFile, indexFile);
+      } else if (isParallelInflatable(vcfFile)) {
+        try (InputStream in = new ParallelBgzfInputStream(vcfFile)) {
+          read(in);
+        }
+      } else {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(vcfFile))) {
+          read(in);
+        }
+      }
+    } else {
+      VcfSidecarIndex index = null;
+      if (m_sidecarDir != null) {
+        index = VcfSidecarIndex.load(vcfFile, m_sidecarDir);
+        if (index == null && Files.size(vcfFile) >= SIDECAR_MIN_FILE_SIZE) {
+          index = VcfSidecarIndex.loadOrBuild(vcfFile, m_sidecarDir);
+        }
+      }
+      if (index != null && index.isSorted()) {
+        readSidecarIndexed(vcfFile, index);
+      } else if (Files.size(vcfFile) >= PARALLEL_MIN_FILE_SIZE) {
+        readParallel(vcfFile);
+      } else {
+        try (InputStream in = Files.newInputStream(vcfFile)) {
+          read(in);
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks if a compressed file without an index is worth inflating on multiple threads.
+   */
+  private static boolean isParallelInflatable(Path file) throws IOException {
+    return Files.size(file) >= PARALLEL_INFLATE_MIN_FILE_SIZE && Runtime.getRuntime().availableProcessors() > 1 &&
+        BgzfInputStream.isBgzfFile(file);
+  }
+
+  /**
+   * Reads an uncompressed VCF file using its sidecar index, skipping straight to the lines that can contain positions
+   * of interest.
+   */
+  private void readSidecarIndexed(Path vcfFile, VcfSidecarIndex index) throws IOException {
+
+    try (FileChannel channel = FileChannel.open(vcfFile, StandardOpenOption.READ)) {
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, index.getHeaderLength());
+      useAssembly(parseAssembly(StandardCharsets.UTF_8.decode(header.duplicate()).toString()));
+      List<TabixIndex.Chunk> chunks = queryIndex(index);
+      sf_logger.debug("Reading {} chunks from {}", chunks.size(), vcfFile);
+
+      Vector<InputStream> streams = new Vector<>();
+      streams.add(new ByteBufferInputStream(header));
+      for (TabixIndex.Chunk chunk : chunks) {
+        streams.add(new ByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, chunk.getStart(),
+            chunk.getEnd() - chunk.getStart())));
+      }
+      try (InputStream in = new SequenceInputStream(streams.elements())) {
+        read(in);
+      }
+    }
+  }
+
+  /**
+   * Gets the (merged) sidecar index chunks that can contain positions of interest.
+   */
+  private List<TabixIndex.Chunk> queryIndex(VcfSidecarIndex index) {
+
+    List<TabixIndex.Chunk> chunks = new ArrayList<>();
+    for (String contig : index.getContigs()) {
+      int contigId = m_locusIndex.getContigId(contig);
+      if (contigId == -1) {
+        continue;
+      }
+      for (int pos : m_locusIndex.getPositions(contigId)) {
+        chunks.addAll(index.query(contig, pos, pos));
+      }
+    }
+    return TabixIndex.merge(chunks);
+  }
+
+  /**
+   * Reads VCF data from a stream, checking for the gzip magic number to decide if it needs to be decompressed, then
+   * for the BCF magic number to decide if it's VCF or BCF.
+   */
+  private void readStream(InputStream vcfStream) throws IOException {
+
+    InputStream in = new BufferedInputStream(new CloseShieldInputStream(vcfStream));
+    in.mark(2);
+    int b1 = in.read();
+    int b2 = in.read();
+    in.reset();
+    if (b1 == 0x1f && b2 == 0x8b) {
+      in = new BufferedInputStream(new GZIPInputStream(in));
+    }
+    in.mark(3);
+    byte[] magic = new byte[3];
+    int numRead = in.read(magic);
+    in.reset();
+    if (numRead == 3 && magic[0] == 'B' && magic[1] == 'C' && magic[2] == 'F') {
+      readBcf(in);
+    } else {
+      read(in);
+    }
+  }
+
+  /**
+   * Reads a BGZF-compressed VCF file using its index, skipping straight to the blocks that can contain positions of
+   * interest.
+   */
+  private void readIndexed(Path vcfFile, Path indexFile) throws IOException {
+
+    try (BgzfInputStream bgzf = new BgzfInputStream(vcfFile)) {
+      byte[] header = readHeader(bgzf);
+      useAssembly(parseAssembly(new String(header, StandardCharsets.UTF_8)));
+      // CSI indexes may not include sequence names, in which case they follow the order of the contig metadata
+      TabixIndex index = TabixIndex.read(indexFile, parseContigs(header));
+
+      Vector<InputStream> streams = new Vector<>();
+      streams.add(new ByteArrayInputStream(header));
+      for (TabixIndex.Chunk chunk : queryIndex(index)) {
+        streams.add(bgzf.range(chunk.getStart(), chunk.getEnd()));
+      }
+      sf_logger.debug("Reading {} chunks from {}", streams.size() - 1, vcfFile);
+
+      try (InputStream in = new SequenceInputStream(streams.elements())) {
+        read(in);
+      }
+    }
+  }
+
+  /**
+   * Reads a BGZF-compressed BCF file using its index, skipping straight to the blocks that can contain positions of
+   * interest.
+   */
+  private void readBcfIndexed(Path bcfFile, Path indexFile) throws IOException {
+
+    try (BgzfInputStream bgzf = new BgzfInputStream(bcfFile)) {
+      BcfReader bcfReader = new BcfReader(bgzf);
+      VcfMetadata metadata = initialize(bcfReader);
+      // CSI indexes for BCF files never include sequence names, they follow the order of the contig metadata
+      TabixIndex index = TabixIndex.read(indexFile, bcfReader.getContigs());
+
+      List<TabixIndex.Chunk> chunks = queryIndex(index);
+      sf_logger.debug("Reading {} chunks from {}", chunks.size(), bcfFile);
+      for (TabixIndex.Chunk chunk : chunks) {
+        bcfReader.readRecords(bgzf.range(chunk.getStart(), chunk.getEnd()), m_locusIndex, m_sampleColumns,
+            metadata, this);
+      }
+    }
+  }
+
+  /**
+   * Reads BCF data.
+   */
+  private void readBcf(InputStream in) throws IOException {
+
+    BcfReader bcfReader = new BcfReader(in);
+    VcfMetadata metadata = initialize(bcfReader);
+    bcfReader.readRecords(in, m_locusIndex, m_sampleColumns, metadata, this);
+  }
+
+  /**
+   * Parses the VCF header from a BCF file and sets up to read samples.
+   */
+  private VcfMetadata initialize(BcfReader bcfReader) throws IOException {
+
+    VcfParser vcfParser = new VcfParser.Builder()
+        .fromReader(new BufferedReader(new StringReader(bcfReader.getHeaderText())))
+        .parseWith(this)
+        .build();
+    VcfMetadata metadata = vcfParser.parseMetadata();
+    // BCF samples get projected as they are decoded
+    int[] sampleColumns = null;
+    if (isSelectingSamples()) {
+      List<String> sampleNames = new ArrayList<>();
+      for (int x = 0; x < metadata.getNumSamples(); x += 1) {
+        sampleNames.add(metadata.getSampleName(x));
+      }
+      sampleColumns = VcfSampleFilter.selectColumns(sampleNames, m_selectedSampleIds, m_selectedSampleIdxs);
+    }
+    initialize(metadata, sampleColumns);
+    return metadata;
+  }
+
+  /**
+   * Reads VCF files that have data for the same sample (e.g. one per chromosome), skipping files that can't contain
+   * positions of interest.
+   */
+  private void readSplit(List<Path> vcfFiles) throws IOException {
+
+    List<Path> files = new ArrayList<>();
+    for (Path vcfFile : vcfFiles) {
+      if (mayHavePositionsOfInterest(vcfFile)) {
+        files.add(vcfFile);
+      } else {
+        sf_logger.debug("Skipping {}, no positions of interest", vcfFile);
+      }
+    }
+    if (files.isEmpty()) {
+      // still need sample and metadata
+      files.add(vcfFiles.get(0));
+    }
+    sf_logger.debug("Reading {} of {} files", files.size(), vcfFiles.size());
+
+    List<Callable<VcfReader>> tasks = new ArrayList<>();
+    for (Path vcfFile : files) {
+      tasks.add(() -> {
+        VcfReader fileReader = new VcfReader(m_definitionIndex, false, null, null);
+        fileReader.read(vcfFile);
+        return fileReader;
+      });
+    }
+    readConcurrently(tasks, "VCF files");
+  }
+
+  /**
+   * Checks if a VCF file might have positions of interest.
+   * <p>
+   * If the file is indexed, this checks the index.  Otherwise, this checks the contigs declared in the header (split
+   * files may hold more than one contig, so the data itself can't be trusted to tell us this).  Files without contig
+   * metadata and unindexed BCF files are always assumed to have positions of interest.
+   */
+  private boolean mayHavePositionsOfInterest(Path vcfFile) throws IOException {
+
+    Preconditions.checkArgument(Files.isRegularFile(vcfFile), "%s is not a file", vcfFile);
+    String filename = vcfFile.toString();
+    boolean isBcf = filename.endsWith(".bcf");
+    if (isBcf || filename.endsWith(".vcf.gz")) {
+      Path indexFile = TabixIndex.findIndex(vcfFile);
+      if (indexFile != null && BgzfInputStream.isBgzfFile(vcfFile)) {
+        try (BgzfInputStream bgzf = new BgzfInputStream(vcfFile)) {
+          List<String> contigs;
+          String header;
+          if (isBcf) {
+            BcfReader bcfReader = new BcfReader(bgzf);
+            contigs = bcfReader.getContigs();
+            header = bcfReader.getHeaderText();
+          } else {
+            byte[] headerBytes = readHeader(bgzf);
+            contigs = parseContigs(headerBytes);
+            header = new String(headerBytes, StandardCharsets.UTF_8);
           }
+          return !queryIndex(TabixIndex.read(indexFile, contigs), getLocusIndex(parseAssembly(header))).isEmpty();
         }
       }
-      vcfParser.parse();
+      if (isBcf) {
+        return true;
+      }
     }
+
+    try (InputStream fileIn = Files.newInputStream(vcfFile);
+         InputStream in = new BufferedInputStream(filename.endsWith(".gz") ? new GZIPInputStream(fileIn) : fileIn)) {
+      byte[] headerBytes = readHeader(in);
+      List<String> contigs = parseContigs(headerBytes);
+      if (contigs.isEmpty()) {
+        // can't tell what's in the file without reading it
+        return true;
+      }
+      LocusIndex locusIndex = getLocusIndex(parseAssembly(new String(headerBytes, StandardCharsets.UTF_8)));
+      for (String contig : contigs) {
+        if (locusIndex.getContigId(contig) != -1) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Gets the (merged) index chunks that can contain positions of interest.
+   */
+  private List<TabixIndex.Chunk> queryIndex(TabixIndex index) {
+    return queryIndex(index, m_locusIndex);
+  }
+
+  private static List<TabixIndex.Chunk> queryIndex(TabixIndex index, LocusIndex locusIndex) {
+
+    List<TabixIndex.Chunk> chunks = new ArrayList<>();
+    for (String sequence : index.getSequenceNames()) {
+      int contigId = locusIndex.getContigId(sequence);
+      if (contigId == -1) {
+        continue;
+      }
+      for (int pos : locusIndex.getPositions(contigId)) {
+        chunks.addAll(index.query(sequence, pos, pos));
+      }
+    }
+    return TabixIndex.merge(chunks);
   }
 
-  private void addWarning(String chrPos, String msg) {
-    m_warnings.put(chrPos, msg);
+  /**
+   * Reads an uncompressed VCF file by memory-mapping it, splitting it into newline-aligned chunks, and scanning each
+   * chunk on its own thread.  Results are merged in file order, so the first valid entry for a position still wins.
+   */
+  private void readParallel(Path vcfFile) throws IOException {
+
+    byte[] header;
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(vcfFile))) {
+      header = readHeader(in);
+    }
+
+    try (FileChannel channel = FileChannel.open(vcfFile, StandardOpenOption.READ)) {
+      List<Long> boundaries = ChunkUtils.splitLines(channel, header.length, PARALLEL_CHUNK_SIZE);
+      if (boundaries.size() < 2) {
+        // no data
+        read(new ByteArrayInputStream(header));
+        return;
+      }
+      sf_logger.debug("Reading {} in {} chunks", vcfFile, boundaries.size() - 1);
+
+      List<Callable<VcfReader>> tasks = new ArrayList<>();
+      for (int x = 1; x < boundaries.size(); x += 1) {
+        long start = boundaries.get(x - 1);
+        long length = boundaries.get(x) - start;
+        tasks.add(() -> {
+          MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+          VcfReader chunkReader = new VcfReader(m_definitionIndex, m_allSamples, m_selectedSampleIds,
+              m_selectedSampleIdxs);
+          chunkReader.read(new SequenceInputStream(new ByteArrayInputStream(header),
+              new ByteBufferInputStream(buffer)));
+          return chunkReader;
+        });
+      }
+      readConcurrently(tasks, vcfFile.toString());
+    }
+  }
+
+  /**
+   * Runs tasks that each read part of the data on their own thread, then merges their results in order.
+   *
+   * @param description what is being read, for error messages
+   */
+  private void readConcurrently(List<Callable<VcfReader>> tasks, String description) throws IOException {
+
+    int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), tasks.size());
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<VcfReader>> futures = new ArrayList<>();
+      for (Callable<VcfReader> task : tasks) {
+        futures.add(executor.submit(task));
+      }
+      for (Future<VcfReader> future : futures) {
+        merge(future.get());
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading " + description, ex);
+    } catch (ExecutionException ex) {
+      Throwables.throwIfInstanceOf(ex.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(ex.getCause());
+      throw new IOException("Error reading " + description, ex.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Merges data read from a later part of the VCF file (or a later VCF file for the same sample) into this one.
+   */
+  private void merge(VcfReader chunkReader) {
+
+    if (m_alleleMaps.isEmpty()) {
+      m_sampleIds = chunkReader.m_sampleIds;
+      m_sampleIdx = chunkReader.m_sampleIdx;
+      m_genomeBuild = chunkReader.m_genomeBuild;
+      m_alleleMaps = chunkReader.m_alleleMaps;
+      m_warnings = chunkReader.m_warnings;
+      m_referenceBlocks = chunkReader.m_referenceBlocks;
+      m_multipleSamplePositions = chunkReader.m_multipleSamplePositions;
+      useAssembly(m_genomeBuild);
+      return;
+    }
+
+    if (!m_sampleIds.equals(chunkReader.m_sampleIds)) {
+      throw new IllegalStateException("VCF files have different samples (" + m_sampleIds + " and " +
+          chunkReader.m_sampleIds + ")");
+    }
+    if (chunkReader.m_genomeBuild != null) {
+      if (m_genomeBuild == null) {
+        m_genomeBuild = chunkReader.m_genomeBuild;
+      } else if (!m_genomeBuild.equals(chunkReader.m_genomeBuild)) {
+        throw new IllegalStateException("VCF files use different assemblies (" + m_genomeBuild + " and " +
+            chunkReader.m_genomeBuild + ")");
+      }
+    }
+    useAssembly(m_genomeBuild);
+    m_multipleSamplePositions.addAll(chunkReader.m_multipleSamplePositions);
+
+    for (int x = 0; x < m_alleleMaps.size(); x += 1) {
+      Map<Integer, RangeSet<Integer>> referenceBlocks = m_referenceBlocks.get(x);
+      chunkReader.m_referenceBlocks.get(x).forEach((contigId, blocks) ->
+          referenceBlocks.computeIfAbsent(contigId, c -> TreeRangeSet.create()).addAll(blocks));
+
+      SortedMap<String, SampleAllele> alleleMap = m_alleleMaps.get(x);
+      SortedSetMultimap<String, String> warnings = m_warnings.get(x);
+      SortedMap<String, SampleAllele> chunkAlleleMap = chunkReader.m_alleleMaps.get(x);
+      SortedSetMultimap<String, String> chunkWarnings = chunkReader.m_warnings.get(x);
+
+      Set<String> chrPositions = new HashSet<>(chunkAlleleMap.keySet());
+      chrPositions.addAll(chunkWarnings.keySet());
+      for (String chrPos : chrPositions) {
+        if (alleleMap.containsKey(chrPos)) {
+          // already have a valid entry from earlier in the file
+          warnings.put(chrPos, sf_duplicateWarning);
+          continue;
+        }
+        warnings.putAll(chrPos, chunkWarnings.get(chrPos));
+        SampleAllele sampleAllele = chunkAlleleMap.get(chrPos);
+        if (sampleAllele != null) {
+          alleleMap.put(chrPos, sampleAllele);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the IDs from the contig metadata, in order.
+   */
+  private static List<String> parseContigs(byte[] header) {
+
+    List<String> contigs = new ArrayList<>();
+    Matcher m = sf_contigPattern.matcher(new String(header, StandardCharsets.UTF_8));
+    while (m.find()) {
+      contigs.add(m.group(1));
+    }
+    return contigs;
+  }
+
+  /**
+   * Gets the assembly from the contig metadata.
+   *
+   * @return the assembly of the first contig that has one, or null if none do
+   */
+  private static @Nullable String parseAssembly(String header) {
+    Matcher m = sf_assemblyPattern.matcher(header);
+    if (m.find()) {
+      return m.group(1);
+    }
+    return null;
+  }
+
+  /**
+   * Gets the locus index to look up positions of interest in VCF data from the given assembly.
+   * Allele definitions are on GRCh38, so GRCh37 data gets looked up by the translated positions of interest.
+   */
+  private LocusIndex getLocusIndex(@Nullable String assembly) {
+    if (m_definitionIndex != null && AssemblyMap.GRCH37.equals(AssemblyMap.toBuild(assembly))) {
+      return m_definitionIndex.getB37Index();
+    }
+    return m_definitionIndex;
+  }
+
+  /**
+   * Sets up to look up positions of interest in VCF data from the given assembly.
+   */
+  private void useAssembly(@Nullable String assembly) {
+    LocusIndex locusIndex = getLocusIndex(assembly);
+    if (locusIndex != m_locusIndex && locusIndex != m_definitionIndex) {
+      sf_logger.debug("Translating positions of interest to {}", assembly);
+    }
+    m_locusIndex = locusIndex;
+  }
+
+  /**
+   * Reads the header lines (lines starting with {@code #}) from the start of the stream, without consuming anything
+   * past them.
+   */
+  private static byte[] peekHeader(BufferedInputStream in) throws IOException {
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    while (true) {
+      in.mark(1);
+      int b = in.read();
+      if (b != '#') {
+        if (b != -1) {
+          in.reset();
+        }
+        return header.toByteArray();
+      }
+      while (b != -1) {
+        header.write(b);
+        if (b == '\n') {
+          break;
+        }
+        b = in.read();
+      }
+      if (b == -1) {
+        return header.toByteArray();
+      }
+    }
+  }
+
+  /**
+   * Reads the header lines (lines starting with {@code #}) from the start of the stream.
+   * This will consume the first byte of the first data line.
+   */
+  private static byte[] readHeader(InputStream in) throws IOException {
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    boolean lineStart = true;
+    int b;
+    while ((b = in.read()) != -1) {
+      if (lineStart && b != '#') {
+        break;
+      }
+      header.write(b);
+      lineStart = b == '\n';
+    }
+    return header.toByteArray();
+  }
+
+  /**
+   * Reads VCF data.
+   * Lines that can't contain positions of interest are filtered out by {@link VcfLineFilter} before they get parsed.
+   * If only reading a subset of samples, the other sample columns are filtered out by {@link VcfSampleFilter}.
+   */
+  private void read(InputStream vcfStream) throws IOException {
+
+    // need the assembly before anything gets filtered
+    BufferedInputStream buffered = new BufferedInputStream(vcfStream);
+    byte[] header = peekHeader(buffered);
+    useAssembly(parseAssembly(new String(header, StandardCharsets.UTF_8)));
+    InputStream in = new SequenceInputStream(new ByteArrayInputStream(header), buffered);
+
+    VcfLineFilter lineFilter = new VcfLineFilter(in, m_locusIndex);
+    InputStream filtered = lineFilter;
+    if (isSelectingSamples()) {
+      filtered = new VcfSampleFilter(lineFilter, m_selectedSampleIds, m_selectedSampleIdxs);
+    }
+    VcfParser vcfParser = new VcfParser.Builder()
+        .fromReader(new BufferedReader(new InputStreamReader(filtered, StandardCharsets.UTF_8)))
+        .parseWith(this)
+        .build();
+    initialize(vcfParser.parseMetadata(), null);
+    vcfParser.parse();
+    if (!lineFilter.isSorted()) {
+      sf_logger.info("VCF file is not sorted, had to read entire file");
+    }
+    sf_logger.debug("Skipped {} lines{}", lineFilter.getNumSkipped(),
+        lineFilter.stoppedEarly() ? " (stopped after last position of interest)" : "");
+  }
+
+  private boolean isSelectingSamples() {
+    return m_selectedSampleIds != null || m_selectedSampleIdxs != null;
+  }
+
+  /**
+   * Sets up to read samples based on the VCF metadata.
+   *
+   * @param sampleColumns the (0-based) sample columns to read, or null to read the first sample (or all samples if
+   * reading all samples)
+   */
+  private void initialize(VcfMetadata metadata, @Nullable int[] sampleColumns) {
+
+    if (sampleColumns == null) {
+      int numSamples = m_allSamples ? metadata.getNumSamples() : Math.min(1, metadata.getNumSamples());
+      sampleColumns = IntStream.range(0, numSamples).toArray();
+    }
+    m_sampleColumns = sampleColumns;
+    int numSamples = sampleColumns.length;
+    for (int x = 0; x < numSamples; x += 1) {
+      m_sampleIds.add(metadata.getSampleName(sampleColumns[x]));
+      m_sampleIdx.put(metadata.getSampleName(sampleColumns[x]), x);
+    }
+    // always track the first sample, even if the VCF file doesn't have any sample columns
+    for (int x = 0; x < Math.max(1, numSamples); x += 1) {
+      m_alleleMaps.add(new TreeMap<>(ChromosomePositionComparator.getComparator()));
+      m_warnings.add(TreeMultimap.create());
+      m_referenceBlocks.add(new HashMap<>());
+    }
+    for (ContigMetadata cm : metadata.getContigs().values()) {
+      if (cm.getAssembly() != null) {
+        if (m_genomeBuild == null) {
+          m_genomeBuild = cm.getAssembly();
+        } else if (!m_genomeBuild.equals(cm.getAssembly())) {
+          throw new IllegalStateException("VCF file uses different assemblies (" + m_genomeBuild + " and " +
+              cm.getAssembly() + ")");
+        }
+      }
+    }
+    useAssembly(m_genomeBuild);
+  }
+
+  private void addWarning(int sampleIdx, String chrPos, String msg) {
+    m_warnings.get(sampleIdx).put(chrPos, msg);
     sf_logger.warn(msg);
   }
 
@@ -129,112 +1059,191 @@ private void addWarning(String chrPos, String msg) {
   @Override
   public void parseLine(VcfMetadata metadata, VcfPosition position, List<VcfSample> sampleData) {
 
-    String chrPos = position.getChromosome() + ":" + position.getPosition();
+    // keys use the allele definitions' contig names, whatever the VCF file calls them
+    int locusId = m_locusIndex.find(position.getChromosome(), position.getPosition());
+    String chrPos = locusId == -1 ? position.getChromosome() + ":" + position.getPosition() :
+        m_locusIndex.getKey(locusId);
 
     if (sampleData.isEmpty()) {
       sf_logger.warn("Missing sample data on {}", chrPos);
       return;
     }
 
-    VariantLocus varLoc = m_locationsOfInterest.get(chrPos);
-    if (varLoc == null) {
-      sf_logger.warn("Ignoring {}", chrPos);
+    if (position.hasInfo("END") && sf_nonRefAlleles.containsAll(position.getAltBases())) {
+      addReferenceBlock(chrPos, position, sampleData);
       return;
     }
-    if (m_alleleMap.containsKey(chrPos)) {
-      addWarning(chrPos, "Duplicate entry: first valid position wins");
+
+    if (locusId == -1) {
+      sf_logger.warn("Ignoring {}", chrPos);
       return;
     }
+    VariantLocus varLoc = m_locusIndex.get(locusId);
 
-    if (sampleData.size() > 1) {
-      addWarning(chrPos, "Multiple samples found, only using first entry");
-    }
+    // alleles are only normalized when they are first needed
+    List<String> alleles = null;
+    List<String> vcfAlleles = null;
+    int numSamples = m_allSamples ? Math.min(sampleData.size(), m_alleleMaps.size()) : 1;
+    for (int x = 0; x < numSamples; x += 1) {
+      SortedMap<String, SampleAllele> alleleMap = m_alleleMaps.get(x);
+      if (alleleMap.containsKey(chrPos)) {
+        addWarning(x, chrPos, sf_duplicateWarning);
+        continue;
+      }
 
-    String gt = sampleData.get(0).getProperty("GT");
-    if (gt == null) {
-      addWarning(chrPos, "Ignoring: no genotype");
-      return;
-    }
-    if (sf_noCallPattern.matcher(gt).matches()) {
-      addWarning(chrPos, "Ignoring: no call (" + gt + ")");
-      return;
-    }
+      if (x == 0 && metadata.getNumSamples() > 1) {
+        // tracked even when reading all samples, so that slices can be read for just the first sample
+        m_multipleSamplePositions.add(chrPos);
+        if (!m_allSamples) {
+          addWarning(x, chrPos, sf_multipleSamplesWarning);
+        }
+      }
 
-    int[] alleleIdxs = sf_gtDelimiter.splitAsStream(gt)
-        .mapToInt(Integer::parseInt)
-        .toArray();
-    // normalize alleles to use same syntax as haplotype definition
-    List<String> alleles = new ArrayList<>();
-    if (position.getAltBases().size() == 0) {
-      String gt1 = position.getAllele(0);
-      validateAlleles(chrPos, gt1, null);
+      String gt = sampleData.get(x).getProperty("GT");
+      if (gt == null) {
+        addWarning(x, chrPos, "Ignoring: no genotype");
+        continue;
+      }
+      if (!m_genotypeDecoder.decode(gt)) {
+        addWarning(x, chrPos, "Ignoring: no call (" + gt + ")");
+        continue;
+      }
 
-      String g[] = normalizeAlleles(gt1, null);
-      alleles.add(g[0]);
+      if (alleles == null) {
+        alleles = parseAlleles(chrPos, position);
+        vcfAlleles = new ArrayList<>();
+        vcfAlleles.add(position.getRef());
+        vcfAlleles.addAll(position.getAltBases());
+      }
 
-    } else {
-      for (String gt2 : position.getAltBases()) {
-        String gt1 = position.getAllele(0);
-        validateAlleles(chrPos, gt1, gt2);
-
-        String g[] = normalizeAlleles(gt1, gt2);
-        String g1 = g[0];
-        String g2 = g[1];
-        if (alleles.size() == 0) {
-          alleles.add(g1);
-          alleles.add(g2);
-        } else {
-          if (!alleles.get(0).equals(g1)) {
-            throw new IllegalArgumentException("Getting different reference allele for " + chrPos);
-          }
-          alleles.add(g2);
-        }
+      String a1 = alleles.get(m_genotypeDecoder.getAllele(0));
+      String a2 = null;
+      if (m_genotypeDecoder.getNumAlleles() > 1) {
+        a2 = alleles.get(m_genotypeDecoder.getAllele(1));
+      } else {
+        addWarning(x, chrPos, "Only a single allele found");
+      }
+
+      // genotype divided by "|" if phased and "/" if unphased
+      boolean isPhased = true;
+      if (m_genotypeDecoder.isUnphased() && a2 != null && !a1.equalsIgnoreCase(a2)) {
+        isPhased = false;
+      }
+
+      if (m_locusIndex != m_definitionIndex && varLoc.getType() == VariantType.SNP &&
+          varLoc.getReferenceAllele() != null && !varLoc.getReferenceAllele().equalsIgnoreCase(position.getRef())) {
+        addWarning(x, chrPos, "REF (" + position.getRef() + ") does not match GRCh38 reference (" +
+            varLoc.getReferenceAllele() + ")");
       }
+
+      // always use the allele definition's position, even if the VCF file is from a different assembly
+      SampleAllele sampleAllele = new SampleAllele(varLoc.getChromosome(), varLoc.getVcfPosition(), a1, a2, isPhased,
+          vcfAlleles);
+      if (varLoc.getType() == VariantType.DEL && !sampleAllele.isVcfAlleleADeletion()) {
+        // must be deletion if expecting deletion because deletions require anchor bases and -1 in position
+        addWarning(x, chrPos, "Ignoring: expecting deletion but alleles do not appear to be in expected format (got " +
+            sampleAllele.getVcfAlleles().stream().collect(Collectors.joining("/")) + ")");
+        continue;
+      }
+      alleleMap.put(chrPos, sampleAllele);
     }
+  }
 
-    String a1 = alleles.get(alleleIdxs[0]);
-    String a2 = null;
-    if (alleleIdxs.length > 1) {
-      a2 = alleles.get(alleleIdxs[1]);
-    } else {
-      addWarning(chrPos, "Only a single allele found");
+
+  /**
+   * Tracks gVCF reference blocks that samples are homozygous reference for.
+   */
+  private void addReferenceBlock(String chrPos, VcfPosition position, List<VcfSample> sampleData) {
+
+    int contigId = m_locusIndex.getContigId(position.getChromosome());
+    if (contigId == -1) {
+      return;
     }
 
-    // genotype divided by "|" if phased and "/" if unphased
-    boolean isPhased = true;
-    if (gt.contains("/") && a2 != null && !a1.equalsIgnoreCase(a2)) {
-      isPhased = false;
+    long end;
+    try {
+      end = Long.parseLong(position.getInfo("END").get(0));
+    } catch (NumberFormatException ex) {
+      sf_logger.warn("Ignoring reference block with invalid END on {}", chrPos);
+      return;
     }
+    Range<Integer> range = Range.closed((int)position.getPosition(), (int)Math.min(end, Integer.MAX_VALUE));
 
-    List<String> vcfAlleles = new ArrayList<>();
-    vcfAlleles.add(position.getRef());
-    vcfAlleles.addAll(position.getAltBases());
+    int numSamples = m_allSamples ? Math.min(sampleData.size(), m_alleleMaps.size()) : 1;
+    for (int x = 0; x < numSamples; x += 1) {
+      String gt = sampleData.get(x).getProperty("GT");
+      if (gt == null || !m_genotypeDecoder.decode(gt)) {
+        continue;
+      }
+      boolean isHomRef = true;
+      for (int y = 0; y < m_genotypeDecoder.getNumAlleles(); y += 1) {
+        if (m_genotypeDecoder.getAllele(y) != 0) {
+          isHomRef = false;
+          break;
+        }
+      }
+      if (isHomRef) {
+        m_referenceBlocks.get(x).computeIfAbsent(contigId, c -> TreeRangeSet.create())
+            .add(range);
+      }
+    }
+  }
 
-    SampleAllele sampleAllele = new SampleAllele(position.getChromosome(), position.getPosition(), a1, a2, isPhased, vcfAlleles);
-    if (varLoc.getType() == VariantType.DEL && !sampleAllele.isVcfAlleleADeletion()) {
-      // must be deletion if expecting deletion because deletions require anchor bases and -1 in position
-      addWarning(chrPos, "Ignoring: expecting deletion but alleles do not appear to be in expected format (got " +
-          sampleAllele.getVcfAlleles().stream().collect(Collectors.joining("/")) + ")");
-      return;
+  /**
+   * Turns positions of interest that fall inside homozygous reference gVCF blocks into reference calls, unless there
+   * is already data for the position.
+   */
+  private void resolveReferenceBlocks() {
+
+    for (int x = 0; x < m_referenceBlocks.size(); x += 1) {
+      Map<Integer, RangeSet<Integer>> referenceBlocks = m_referenceBlocks.get(x);
+      if (referenceBlocks.isEmpty()) {
+        continue;
+      }
+      SortedMap<String, SampleAllele> alleleMap = m_alleleMaps.get(x);
+      SortedSetMultimap<String, String> warnings = m_warnings.get(x);
+      int count = 0;
+      for (int id = 0; id < m_locusIndex.size(); id += 1) {
+        VariantLocus vl = m_locusIndex.get(id);
+        RangeSet<Integer> blocks = referenceBlocks.get(m_locusIndex.getContigId(vl.getChromosome()));
+        String chrPos = m_locusIndex.getKey(id);
+        if (blocks == null || vl.getReferenceAllele() == null || alleleMap.containsKey(chrPos) ||
+            warnings.containsKey(chrPos) || !blocks.contains(m_locusIndex.getVcfPosition(id))) {
+          continue;
+        }
+        alleleMap.put(chrPos, SampleAllele.forReference(vl));
+        count += 1;
+      }
+      sf_logger.debug("Found {} positions in reference blocks", count);
     }
-    m_alleleMap.put(chrPos, sampleAllele);
   }
 
 
   /**
-   * Normalize alleles from VCF to match syntax from allele definitions
+   * Normalize the REF and ALT alleles of a VCF position to use the same syntax as the haplotype definitions.
+   *
+   * @return list of alleles, indexed the same way as GT values
    */
-  private String[] normalizeAlleles(@Nonnull String refAllele, @Nullable String varAllele) {
-    Preconditions.checkNotNull(refAllele);
+  private List<String> parseAlleles(String chrPos, VcfPosition position) {
 
-    refAllele = refAllele.toUpperCase();
+    String ref = position.getAllele(0);
+    List<String> alts = position.getAltBases();
+    if (alts.isEmpty()) {
+      validateAlleles(chrPos, ref, null);
+    }
+    for (String alt : alts) {
+      if (!sf_nonRefAlleles.contains(alt)) {
+        validateAlleles(chrPos, ref, alt);
+      }
+    }
 
-    if (varAllele != null) {
-      varAllele = varAllele.toUpperCase();
-      return new String[] { refAllele, varAllele };
-    } else {
-      return new String[] { refAllele };
+    // toUpperCase() doesn't allocate if there's nothing to change
+    List<String> alleles = new ArrayList<>(alts.size() + 1);
+    alleles.add(ref.toUpperCase());
+    for (String alt : alts) {
+      alleles.add(alt.toUpperCase());
     }
+    return alleles;
   }
 
 
@@ -248,11 +1257,11 @@ private static void validateAlleles(@Nonnull String chrPos, @Nonnull String gt1,
       problems.append("Don't know how to handle ref structural variant '")
           .append(gt1)
           .append("'");
-    } else if (gt1.toUpperCase().contains("N")) {
+    } else if (GenotypeDecoder.hasAmbiguousBase(gt1)) {
       problems.append("Don't know how to handle ambiguous allele in ref '")
           .append(gt1)
           .append("'");
-    } else if (!sf_allelePattern.matcher(gt1).matches()) {
+    } else if (!GenotypeDecoder.isBases(gt1)) {
       problems.append("Unsupported bases in ref '")
           .append(gt1)
           .append("'");
@@ -267,11 +1276,11 @@ private static void validateAlleles(@Nonnull String chrPos, @Nonnull String gt1,
             .append(gt2)
             .append("'");
       } else {
-        if (!sf_allelePattern.matcher(gt1).matches()) {
+        if (!GenotypeDecoder.isBases(gt1)) {
           if (problems.length() > 0) {
             problems.append(System.lineSeparator());
           }
-          if (gt2.toUpperCase().contains("N")) {
+          if (GenotypeDecoder.hasAmbiguousBase(gt2)) {
             problems.append("Don't know how to handle ambiguous allele in alt '")
                 .append(gt2)
                 .append("'");
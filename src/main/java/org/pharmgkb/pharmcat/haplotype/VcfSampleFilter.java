@@ -0,0 +1,317 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import com.google.common.base.Preconditions;
+
+
+/**
+ * Filters raw VCF data down to a subset of its sample columns, so that the parser never sees the others.
+ * <p>
+ * The {@code #CHROM} header line is rewritten to only list the selected samples.  On data lines, the fixed columns are
+ * copied as is, sample columns that weren't selected are skipped without being decoded, and the rest of the line is
+ * dropped once the last selected column has been copied.  If {@code GT} is the first FORMAT key (as the VCF spec
+ * requires when it is present), every other FORMAT key is dropped as well.
+ */
+class VcfSampleFilter extends InputStream {
+  private static final int BUFFER_SIZE = 65536;
+  // number of columns before the first sample column
+  private static final int NUM_FIXED_COLUMNS = 9;
+  private static final byte[] sf_gt = new byte[] { 'G', 'T' };
+  private final InputStream m_in;
+  private final Collection<String> m_sampleIds;
+  private final int[] m_sampleIdxs;
+  private byte[] m_buffer = new byte[BUFFER_SIZE];
+  private int m_start;
+  private int m_end;
+  private byte[] m_out = new byte[BUFFER_SIZE];
+  private int m_outStart;
+  private int m_outEnd;
+  // sorted (0-based) sample columns to keep, null until the #CHROM line has been read
+  private int[] m_columns;
+
+
+  /**
+   * Constructor.  Samples are selected by ID and/or by (0-based) index.
+   */
+  VcfSampleFilter(@Nonnull InputStream in, @Nullable Collection<String> sampleIds, @Nullable int[] sampleIdxs) {
+    Preconditions.checkArgument(sampleIds != null || sampleIdxs != null, "No samples selected");
+    m_in = in;
+    m_sampleIds = sampleIds;
+    m_sampleIdxs = sampleIdxs;
+  }
+
+
+  /**
+   * Works out which sample columns have been selected.
+   *
+   * @param sampleNames the names of all the samples in the file, in order
+   * @return sorted, distinct (0-based) sample columns
+   * @throws IllegalArgumentException if a selected sample isn't in the file
+   */
+  static int[] selectColumns(@Nonnull List<String> sampleNames, @Nullable Collection<String> sampleIds,
+      @Nullable int[] sampleIdxs) {
+
+    TreeSet<Integer> columns = new TreeSet<>();
+    if (sampleIds != null) {
+      Map<String, Integer> nameIdx = new HashMap<>();
+      for (int x = sampleNames.size() - 1; x >= 0; x -= 1) {
+        nameIdx.put(sampleNames.get(x), x);
+      }
+      for (String sampleId : sampleIds) {
+        Integer idx = nameIdx.get(sampleId);
+        Preconditions.checkArgument(idx != null, "Unknown sample: %s", sampleId);
+        columns.add(idx);
+      }
+    }
+    if (sampleIdxs != null) {
+      for (int idx : sampleIdxs) {
+        Preconditions.checkArgument(idx >= 0 && idx < sampleNames.size(),
+            "Sample index %s out of range (VCF has %s samples)", idx, sampleNames.size());
+        columns.add(idx);
+      }
+    }
+    return columns.stream()
+        .mapToInt(Integer::intValue)
+        .toArray();
+  }
+
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int rez = read(b, 0, 1);
+    return rez == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+
+    if (len == 0) {
+      return 0;
+    }
+    while (m_outStart == m_outEnd) {
+      if (!nextLine()) {
+        return -1;
+      }
+    }
+    int count = Math.min(len, m_outEnd - m_outStart);
+    System.arraycopy(m_out, m_outStart, b, off, count);
+    m_outStart += count;
+    return count;
+  }
+
+  @Override
+  public void close() throws IOException {
+    m_in.close();
+  }
+
+
+  /**
+   * Reads the next line and writes what should be kept of it to the output buffer.
+   *
+   * @return false if there is nothing more to read
+   */
+  private boolean nextLine() throws IOException {
+
+    int newline = -1;
+    int searchFrom = m_start;
+    while (true) {
+      for (int x = searchFrom; x < m_end; x += 1) {
+        if (m_buffer[x] == '\n') {
+          newline = x;
+          break;
+        }
+      }
+      if (newline != -1) {
+        break;
+      }
+      int scanned = m_end - m_start;
+      if (!fill()) {
+        break;
+      }
+      searchFrom = m_start + scanned;
+    }
+    int lineStart = m_start;
+    int lineEnd = newline == -1 ? m_end : newline;
+    if (lineStart == lineEnd && newline == -1) {
+      return false;
+    }
+    m_start = newline == -1 ? m_end : newline + 1;
+    m_outStart = 0;
+    m_outEnd = 0;
+
+    if (startsWith(lineStart, lineEnd, "#CHROM")) {
+      writeHeader(lineStart, lineEnd);
+    } else if (m_columns == null || m_buffer[lineStart] == '#') {
+      write(lineStart, lineEnd);
+    } else {
+      writeData(lineStart, lineEnd);
+    }
+    if (newline != -1) {
+      write('\n');
+    }
+    return true;
+  }
+
+  private void writeHeader(int lineStart, int lineEnd) {
+
+    List<Integer> tabs = new ArrayList<>();
+    for (int x = lineStart; x < lineEnd; x += 1) {
+      if (m_buffer[x] == '\t') {
+        tabs.add(x);
+      }
+    }
+    tabs.add(lineEnd);
+    List<String> sampleNames = new ArrayList<>();
+    for (int x = NUM_FIXED_COLUMNS - 1; x < tabs.size() - 1; x += 1) {
+      int start = tabs.get(x) + 1;
+      sampleNames.add(new String(m_buffer, start, tabs.get(x + 1) - start, StandardCharsets.UTF_8));
+    }
+    m_columns = selectColumns(sampleNames, m_sampleIds, m_sampleIdxs);
+
+    if (sampleNames.isEmpty()) {
+      write(lineStart, lineEnd);
+      return;
+    }
+    write(lineStart, tabs.get(NUM_FIXED_COLUMNS - 1));
+    for (int column : m_columns) {
+      int start = tabs.get(NUM_FIXED_COLUMNS - 1 + column);
+      write(start, tabs.get(NUM_FIXED_COLUMNS + column));
+    }
+  }
+
+  private void writeData(int lineStart, int lineEnd) {
+
+    // find the start of FORMAT
+    int formatStart = lineStart;
+    for (int numTabs = 0; numTabs < NUM_FIXED_COLUMNS - 1; numTabs += 1) {
+      formatStart = indexOf('\t', formatStart, lineEnd) + 1;
+      if (formatStart == 0) {
+        // not enough columns, let the parser deal with it
+        write(lineStart, lineEnd);
+        return;
+      }
+    }
+    int formatEnd = indexOf('\t', formatStart, lineEnd);
+    if (formatEnd == -1) {
+      write(lineStart, lineEnd);
+      return;
+    }
+    boolean gtOnly = formatEnd - formatStart >= 2 && m_buffer[formatStart] == 'G' && m_buffer[formatStart + 1] == 'T' &&
+        (formatEnd - formatStart == 2 || m_buffer[formatStart + 2] == ':');
+    if (gtOnly) {
+      write(lineStart, formatStart);
+      write(sf_gt, 0, 2);
+    } else {
+      write(lineStart, formatEnd);
+    }
+
+    int column = 0;
+    int columnStart = formatEnd + 1;
+    for (int selected : m_columns) {
+      while (column < selected) {
+        columnStart = indexOf('\t', columnStart, lineEnd) + 1;
+        if (columnStart == 0) {
+          return;
+        }
+        column += 1;
+      }
+      int columnEnd = indexOf('\t', columnStart, lineEnd);
+      if (columnEnd == -1) {
+        columnEnd = lineEnd;
+      }
+      write('\t');
+      write(columnStart, gtOnly ? endOfGt(columnStart, columnEnd) : columnEnd);
+      if (columnEnd == lineEnd) {
+        return;
+      }
+      columnStart = columnEnd + 1;
+      column += 1;
+    }
+  }
+
+  private int endOfGt(int start, int end) {
+    int idx = indexOf(':', start, end);
+    return idx == -1 ? end : idx;
+  }
+
+
+  private boolean startsWith(int start, int end, String prefix) {
+
+    if (end - start < prefix.length()) {
+      return false;
+    }
+    for (int x = 0; x < prefix.length(); x += 1) {
+      if (m_buffer[start + x] != prefix.charAt(x)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int indexOf(char b, int start, int end) {
+    for (int x = start; x < end; x += 1) {
+      if (m_buffer[x] == b) {
+        return x;
+      }
+    }
+    return -1;
+  }
+
+
+  private void write(int start, int end) {
+    write(m_buffer, start, end - start);
+  }
+
+  private void write(byte[] bytes, int start, int length) {
+    ensureCapacity(length);
+    System.arraycopy(bytes, start, m_out, m_outEnd, length);
+    m_outEnd += length;
+  }
+
+  private void write(char c) {
+    ensureCapacity(1);
+    m_out[m_outEnd] = (byte)c;
+    m_outEnd += 1;
+  }
+
+  private void ensureCapacity(int length) {
+    if (m_outEnd + length > m_out.length) {
+      m_out = Arrays.copyOf(m_out, Math.max(m_out.length * 2, m_outEnd + length));
+    }
+  }
+
+  /**
+   * Reads more data into the buffer, moving unread data to the front (and growing the buffer if necessary).
+   *
+   * @return false if at end of input
+   */
+  private boolean fill() throws IOException {
+
+    if (m_start > 0) {
+      System.arraycopy(m_buffer, m_start, m_buffer, 0, m_end - m_start);
+      m_end -= m_start;
+      m_start = 0;
+    }
+    if (m_end == m_buffer.length) {
+      m_buffer = Arrays.copyOf(m_buffer, m_buffer.length * 2);
+    }
+    int read = m_in.read(m_buffer, m_end, m_buffer.length - m_end);
+    if (read == -1) {
+      return false;
+    }
+    m_end += read;
+    return true;
+  }
+}
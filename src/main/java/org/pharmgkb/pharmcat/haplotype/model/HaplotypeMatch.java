@@ -47,6 +47,13 @@ public boolean match(@Nonnull String seq) {
     return false;
   }
 
+  /**
+   * Adds a sequence that is already known to match this haplotype.
+   */
+  public void addSequence(@Nonnull String seq) {
+    m_sequences.add(seq);
+  }
+
   public @Nonnull SortedSet<String> getSequences() {
     return m_sequences;
   }
@@ -17,14 +17,23 @@ public class Metadata {
   @SerializedName("inputFilename")
   private String m_inputFilename;
   @Expose
+  @SerializedName("sampleId")
+  private String m_sampleId;
+  @Expose
   @SerializedName("timestamp")
   private Date m_timetamp;
 
 
   public Metadata(String namedAlleleMatcherVersion, String genomeBuild, String vcfFilename, Date date) {
+    this(namedAlleleMatcherVersion, genomeBuild, vcfFilename, null, date);
+  }
+
+  public Metadata(String namedAlleleMatcherVersion, String genomeBuild, String vcfFilename, String sampleId,
+      Date date) {
     m_namedAlleleMatcherVersion = namedAlleleMatcherVersion;
     m_genomeBuild = genomeBuild;
     m_inputFilename = vcfFilename;
+    m_sampleId = sampleId;
     m_timetamp = date;
   }
 
@@ -41,6 +50,14 @@ public String getInputFilename() {
     return m_inputFilename;
   }
 
+  /**
+   * Gets the ID of the sample (from the VCF header) these results are for.
+   * This is only set when calling multiple samples from the same VCF file.
+   */
+  public String getSampleId() {
+    return m_sampleId;
+  }
+
   public Date getTimetamp() {
     return m_timetamp;
   }
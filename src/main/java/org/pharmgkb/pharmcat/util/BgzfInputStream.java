@@ -0,0 +1,267 @@
+package org.pharmgkb.pharmcat.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.annotation.Nonnull;
+import org.pharmgkb.pharmcat.ParseException;
+
+
+/**
+ * Reads BGZF (blocked GNU zip format) files, as produced by {@code bgzip}.
+ * <p>
+ * BGZF files are a series of concatenated gzip members, which makes it possible to seek to a "virtual offset" (the
+ * file offset of a block in the upper 48 bits and the offset into the uncompressed block in the lower 16 bits), as
+ * used by tabix and CSI indexes.
+ */
+public class BgzfInputStream extends InputStream {
+  static final int BLOCK_HEADER_LENGTH = 18;
+  static final int MAX_BLOCK_SIZE = 65536;
+  private final FileChannel m_channel;
+  private final Inflater m_inflater = new Inflater(true);
+  private final ByteBuffer m_compressed = ByteBuffer.allocate(MAX_BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private final byte[] m_block = new byte[MAX_BLOCK_SIZE];
+  private long m_blockAddress;
+  private long m_nextBlockAddress;
+  private int m_blockLength;
+  private int m_blockOffset;
+
+
+  public BgzfInputStream(@Nonnull Path file) throws IOException {
+    m_channel = FileChannel.open(file, StandardOpenOption.READ);
+  }
+
+
+  /**
+   * Checks whether the given file looks like a BGZF file (i.e. starts with a gzip header with a BGZF extra field).
+   */
+  public static boolean isBgzfFile(@Nonnull Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+      while (header.hasRemaining()) {
+        if (channel.read(header) == -1) {
+          return false;
+        }
+      }
+      return isBgzfHeader(header);
+    }
+  }
+
+  static boolean isBgzfHeader(ByteBuffer header) {
+    return (header.get(0) & 0xff) == 31 && (header.get(1) & 0xff) == 139 && header.get(2) == 8 &&
+        (header.get(3) & 4) != 0 && header.get(12) == 'B' && header.get(13) == 'C';
+  }
+
+
+  /**
+   * Gets the virtual offset of the next byte to be read.
+   */
+  public long getVirtualOffset() {
+    if (m_blockOffset == m_blockLength && m_blockLength > 0) {
+      // at end of current block, which is the same as the start of the next one
+      return m_nextBlockAddress << 16;
+    }
+    return (m_blockAddress << 16) | m_blockOffset;
+  }
+
+  /**
+   * Moves to the given virtual offset.
+   */
+  public void seek(long virtualOffset) throws IOException {
+
+    long address = virtualOffset >>> 16;
+    int offset = (int)(virtualOffset & 0xffff);
+    if (address != m_blockAddress || m_blockLength == 0) {
+      loadBlock(address);
+    }
+    if (offset > m_blockLength) {
+      throw new IOException("Invalid virtual offset " + virtualOffset + " (block only has " + m_blockLength + " bytes)");
+    }
+    m_blockOffset = offset;
+  }
+
+
+  /**
+   * Makes sure there is data available in the current block.
+   *
+   * @return false if at end of file
+   */
+  private boolean ensureData() throws IOException {
+
+    while (m_blockOffset >= m_blockLength) {
+      if (m_nextBlockAddress >= m_channel.size()) {
+        return false;
+      }
+      loadBlock(m_nextBlockAddress);
+    }
+    return true;
+  }
+
+  private void loadBlock(long address) throws IOException {
+
+    m_compressed.clear().limit(BLOCK_HEADER_LENGTH);
+    readFully(address);
+    if (!isBgzfHeader(m_compressed)) {
+      throw new ParseException("Not a BGZF block at file offset " + address);
+    }
+    int blockSize = (m_compressed.getShort(16) & 0xffff) + 1;
+    int extraLength = m_compressed.getShort(10) & 0xffff;
+    m_compressed.limit(blockSize);
+    readFully(address + BLOCK_HEADER_LENGTH);
+
+    m_blockLength = inflate(m_inflater, m_compressed.array(), extraLength, blockSize, m_block);
+    m_blockAddress = address;
+    m_nextBlockAddress = address + blockSize;
+    m_blockOffset = 0;
+  }
+
+  private void readFully(long position) throws IOException {
+    while (m_compressed.hasRemaining()) {
+      int read = m_channel.read(m_compressed, position);
+      if (read == -1) {
+        throw new EOFException("Unexpected end of BGZF file at file offset " + position);
+      }
+      position += read;
+    }
+  }
+
+
+  /**
+   * Inflates a complete BGZF block.
+   *
+   * @param block the raw block, starting with the gzip header
+   * @param extraLength the length of the gzip extra field (XLEN)
+   * @param blockSize the total size of the block
+   * @param out buffer to write uncompressed data to
+   * @return the number of uncompressed bytes
+   */
+  static int inflate(Inflater inflater, byte[] block, int extraLength, int blockSize, byte[] out) {
+    return inflate(inflater, block, 0, extraLength, blockSize, out, 0);
+  }
+
+  /**
+   * Inflates a complete BGZF block that starts at {@code blockOffset} in {@code block}, writing the uncompressed data
+   * to {@code out} starting at {@code outOffset}.
+   *
+   * @return the number of uncompressed bytes
+   */
+  static int inflate(Inflater inflater, byte[] block, int blockOffset, int extraLength, int blockSize, byte[] out,
+      int outOffset) {
+
+    int dataOffset = blockOffset + 12 + extraLength;
+    int dataLength = blockSize - 12 - extraLength - 8;
+    int expectedLength = getUncompressedSize(block, blockOffset, blockSize);
+    inflater.reset();
+    inflater.setInput(block, dataOffset, dataLength);
+    try {
+      int length = 0;
+      while (length < expectedLength && !inflater.finished()) {
+        int rez = inflater.inflate(out, outOffset + length, expectedLength - length);
+        if (rez == 0 && inflater.needsInput()) {
+          break;
+        }
+        length += rez;
+      }
+      if (length != expectedLength) {
+        throw new ParseException("Truncated BGZF block (expected " + expectedLength + " bytes, got " + length + ")");
+      }
+      return length;
+    } catch (DataFormatException ex) {
+      throw new ParseException("Invalid BGZF block", ex);
+    }
+  }
+
+
+  /**
+   * Gets the uncompressed size of a complete BGZF block (from the gzip ISIZE field at the end of the block).
+   */
+  static int getUncompressedSize(byte[] block, int blockOffset, int blockSize) {
+    return ByteBuffer.wrap(block, blockOffset + blockSize - 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+  }
+
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureData()) {
+      return -1;
+    }
+    return m_block[m_blockOffset++] & 0xff;
+  }
+
+  @Override
+  public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureData()) {
+      return -1;
+    }
+    int count = Math.min(len, m_blockLength - m_blockOffset);
+    System.arraycopy(m_block, m_blockOffset, b, off, count);
+    m_blockOffset += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return m_blockLength - m_blockOffset;
+  }
+
+  @Override
+  public void close() throws IOException {
+    m_inflater.end();
+    m_channel.close();
+  }
+
+
+  /**
+   * Gets a stream that reads from {@code start} up to (but not including) {@code end} virtual offsets.
+   * The stream is lazy: nothing is read until the first call to {@code read}.
+   * Closing the returned stream does not close this stream.
+   */
+  public InputStream range(long start, long end) {
+    return new InputStream() {
+      private boolean m_started;
+
+      private boolean ready() throws IOException {
+        if (!m_started) {
+          seek(start);
+          m_started = true;
+        }
+        return ensureData() && getVirtualOffset() < end;
+      }
+
+      @Override
+      public int read() throws IOException {
+        if (!ready()) {
+          return -1;
+        }
+        return m_block[m_blockOffset++] & 0xff;
+      }
+
+      @Override
+      public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        if (!ready()) {
+          return -1;
+        }
+        int count = Math.min(len, m_blockLength - m_blockOffset);
+        if ((end >>> 16) == m_blockAddress) {
+          count = Math.min(count, (int)(end & 0xffff) - m_blockOffset);
+        }
+        System.arraycopy(m_block, m_blockOffset, b, off, count);
+        m_blockOffset += count;
+        return count;
+      }
+    };
+  }
+}
@@ -0,0 +1,52 @@
+package org.pharmgkb.pharmcat.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import javax.annotation.Nonnull;
+
+
+/**
+ * An {@link InputStream} that reads from a {@link ByteBuffer} (e.g. a memory-mapped part of a file).
+ */
+public class ByteBufferInputStream extends InputStream {
+  private final ByteBuffer m_buffer;
+
+
+  public ByteBufferInputStream(@Nonnull ByteBuffer buffer) {
+    m_buffer = buffer;
+  }
+
+
+  @Override
+  public int read() {
+    if (!m_buffer.hasRemaining()) {
+      return -1;
+    }
+    return m_buffer.get() & 0xff;
+  }
+
+  @Override
+  public int read(@Nonnull byte[] b, int off, int len) {
+    if (len == 0) {
+      return 0;
+    }
+    if (!m_buffer.hasRemaining()) {
+      return -1;
+    }
+    int count = Math.min(len, m_buffer.remaining());
+    m_buffer.get(b, off, count);
+    return count;
+  }
+
+  @Override
+  public long skip(long n) {
+    int count = (int)Math.max(0, Math.min(n, m_buffer.remaining()));
+    m_buffer.position(m_buffer.position() + count);
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return m_buffer.remaining();
+  }
+}
@@ -0,0 +1,59 @@
+package org.pharmgkb.pharmcat.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nonnull;
+
+
+/**
+ * Code for splitting text files into newline-aligned chunks that can be read on their own threads.
+ */
+public class ChunkUtils {
+
+  /**
+   * Splits a file into chunks of roughly {@code chunkSize} bytes, each ending at the end of a line (or the file).
+   *
+   * @param start the offset to start from, which must be the start of a line
+   * @return the chunk boundaries, starting with {@code start} and ending with the size of the file (chunk {@code x}
+   * runs from boundary {@code x} up to boundary {@code x + 1})
+   */
+  public static @Nonnull List<Long> splitLines(@Nonnull FileChannel channel, long start, long chunkSize)
+      throws IOException {
+
+    long size = channel.size();
+    List<Long> boundaries = new ArrayList<>();
+    boundaries.add(start);
+    while (boundaries.get(boundaries.size() - 1) < size) {
+      long end = boundaries.get(boundaries.size() - 1) + chunkSize;
+      boundaries.add(end >= size ? size : findLineStart(channel, end));
+    }
+    return boundaries;
+  }
+
+  /**
+   * Finds the start of the first line that begins after {@code position}.
+   *
+   * @return the offset of the start of the line, or the size of the file if there isn't one
+   */
+  private static long findLineStart(@Nonnull FileChannel channel, long position) throws IOException {
+
+    ByteBuffer buffer = ByteBuffer.allocate(8192);
+    long pos = position;
+    while (true) {
+      buffer.clear();
+      int read = channel.read(buffer, pos);
+      if (read == -1) {
+        return channel.size();
+      }
+      for (int x = 0; x < read; x += 1) {
+        if (buffer.get(x) == '\n') {
+          return pos + x + 1;
+        }
+      }
+      pos += read;
+    }
+  }
+}
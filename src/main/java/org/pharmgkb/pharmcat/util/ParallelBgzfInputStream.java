@@ -0,0 +1,209 @@
+package org.pharmgkb.pharmcat.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Inflater;
+import javax.annotation.Nonnull;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.pharmgkb.pharmcat.ParseException;
+
+
+/**
+ * Reads BGZF files from start to end, inflating blocks on a pool of worker threads.
+ * <p>
+ * Compressed data is read sequentially, split into batches of whole BGZF blocks, and each batch is inflated on its own
+ * thread.  Inflated batches are returned in file order, and only a bounded number of batches are in flight at once, so
+ * memory use doesn't depend on the size of the file.
+ * <p>
+ * Use {@link BgzfInputStream} if you need to seek.
+ */
+public class ParallelBgzfInputStream extends InputStream {
+  // number of compressed bytes to hand to each worker
+  static int BATCH_SIZE = 1024 * 1024;
+  private final InputStream m_in;
+  private final ExecutorService m_executor;
+  private final int m_maxPending;
+  private final Deque<Future<byte[]>> m_pending = new ArrayDeque<>();
+  // compressed data left over from the last batch (i.e. the start of an incomplete block)
+  private byte[] m_leftover = new byte[0];
+  private boolean m_eof;
+  private byte[] m_current = new byte[0];
+  private int m_offset;
+
+
+  /**
+   * Constructor, using as many threads as there are processors.
+   */
+  public ParallelBgzfInputStream(@Nonnull Path file) throws IOException {
+    this(Files.newInputStream(file), Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param in the raw (compressed) BGZF data
+   * @param numThreads the number of threads to inflate blocks on
+   */
+  public ParallelBgzfInputStream(@Nonnull InputStream in, int numThreads) {
+    Preconditions.checkNotNull(in);
+    Preconditions.checkArgument(numThreads > 0, "Need at least 1 thread");
+    m_in = in;
+    m_executor = Executors.newFixedThreadPool(numThreads, new ThreadFactoryBuilder()
+        .setNameFormat("bgzf-inflate-%d")
+        .setDaemon(true)
+        .build());
+    m_maxPending = numThreads * 2;
+  }
+
+
+  /**
+   * Makes sure there is inflated data available.
+   *
+   * @return false if at end of file
+   */
+  private boolean ensureData() throws IOException {
+
+    while (m_offset >= m_current.length) {
+      while (!m_eof && m_pending.size() < m_maxPending) {
+        submitBatch();
+      }
+      Future<byte[]> next = m_pending.poll();
+      if (next == null) {
+        return false;
+      }
+      try {
+        m_current = next.get();
+        m_offset = 0;
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while inflating BGZF blocks", ex);
+      } catch (ExecutionException ex) {
+        Throwables.throwIfInstanceOf(ex.getCause(), IOException.class);
+        Throwables.throwIfUnchecked(ex.getCause());
+        throw new IOException("Error inflating BGZF blocks", ex.getCause());
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads the next batch of compressed data and submits the complete blocks in it to be inflated.
+   */
+  private void submitBatch() throws IOException {
+
+    byte[] batch = Arrays.copyOf(m_leftover, Math.max(BATCH_SIZE, BgzfInputStream.MAX_BLOCK_SIZE));
+    int length = m_leftover.length;
+    while (length < batch.length) {
+      int read = m_in.read(batch, length, batch.length - length);
+      if (read == -1) {
+        m_eof = true;
+        break;
+      }
+      length += read;
+    }
+
+    // find the end of the last complete block
+    int end = 0;
+    while (end + BgzfInputStream.BLOCK_HEADER_LENGTH <= length) {
+      ByteBuffer header = ByteBuffer.wrap(batch, end, BgzfInputStream.BLOCK_HEADER_LENGTH).slice()
+          .order(ByteOrder.LITTLE_ENDIAN);
+      if (!BgzfInputStream.isBgzfHeader(header)) {
+        throw new ParseException("Not a BGZF block");
+      }
+      int blockSize = (header.getShort(16) & 0xffff) + 1;
+      if (end + blockSize > length) {
+        break;
+      }
+      end += blockSize;
+    }
+    m_leftover = Arrays.copyOfRange(batch, end, length);
+    if (m_eof && m_leftover.length > 0) {
+      throw new ParseException("Unexpected end of BGZF data (incomplete block)");
+    }
+    if (end == 0) {
+      return;
+    }
+
+    int batchEnd = end;
+    m_pending.add(m_executor.submit(() -> inflate(batch, batchEnd)));
+  }
+
+  /**
+   * Inflates all the blocks in {@code batch} up to {@code end}.
+   */
+  private static byte[] inflate(byte[] batch, int end) {
+
+    int totalSize = 0;
+    for (int pos = 0; pos < end; pos += getBlockSize(batch, pos)) {
+      totalSize += BgzfInputStream.getUncompressedSize(batch, pos, getBlockSize(batch, pos));
+    }
+    byte[] out = new byte[totalSize];
+    Inflater inflater = new Inflater(true);
+    try {
+      int outOffset = 0;
+      for (int pos = 0; pos < end; pos += getBlockSize(batch, pos)) {
+        int extraLength = (batch[pos + 10] & 0xff) | ((batch[pos + 11] & 0xff) << 8);
+        outOffset += BgzfInputStream.inflate(inflater, batch, pos, extraLength, getBlockSize(batch, pos), out,
+            outOffset);
+      }
+    } finally {
+      inflater.end();
+    }
+    return out;
+  }
+
+  private static int getBlockSize(byte[] batch, int blockOffset) {
+    return ((batch[blockOffset + 16] & 0xff) | ((batch[blockOffset + 17] & 0xff) << 8)) + 1;
+  }
+
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureData()) {
+      return -1;
+    }
+    return m_current[m_offset++] & 0xff;
+  }
+
+  @Override
+  public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!ensureData()) {
+      return -1;
+    }
+    int count = Math.min(len, m_current.length - m_offset);
+    System.arraycopy(m_current, m_offset, b, off, count);
+    m_offset += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return m_current.length - m_offset;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Future<byte[]> future : m_pending) {
+      future.cancel(true);
+    }
+    m_pending.clear();
+    m_executor.shutdownNow();
+    m_in.close();
+  }
+}
@@ -0,0 +1,344 @@
+package org.pharmgkb.pharmcat.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import com.google.common.base.Preconditions;
+import org.pharmgkb.pharmcat.ParseException;
+
+
+/**
+ * Reads tabix ({@code .tbi}) and coordinate-sorted index ({@code .csi}) files for BGZF-compressed VCF files, and uses
+ * them to find the chunks of the compressed file that can contain a given region.
+ * <p>
+ * See the <a href="https://samtools.github.io/hts-specs/tabix.pdf">tabix</a> and
+ * <a href="https://samtools.github.io/hts-specs/CSIv1.pdf">CSI</a> specifications for details.
+ */
+public class TabixIndex {
+  private static final int TABIX_MIN_SHIFT = 14;
+  private static final int TABIX_DEPTH = 5;
+  private int m_minShift;
+  private int m_depth;
+  private List<String> m_names = new ArrayList<>();
+  private Map<String, Integer> m_nameIdx = new HashMap<>();
+  private List<Map<Integer, Bin>> m_bins = new ArrayList<>();
+  private List<long[]> m_linearIndex = new ArrayList<>();
+
+
+  private TabixIndex() {
+  }
+
+
+  /**
+   * Finds the index file for the given BGZF-compressed VCF file, looking for {@code .tbi} then {@code .csi}.
+   *
+   * @return the index file, or null if there isn't one
+   */
+  public static @Nullable Path findIndex(@Nonnull Path vcfFile) {
+    for (String ext : new String[] { ".tbi", ".csi" }) {
+      Path file = Paths.get(vcfFile.toString() + ext);
+      if (Files.isRegularFile(file) && Files.isReadable(file)) {
+        return file;
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * Reads a {@code .tbi} or {@code .csi} index file.
+   *
+   * @param indexFile the index file
+   * @param sequenceNames the names of the sequences, in order, to use if the index does not include them (only
+   * applicable to CSI files)
+   */
+  public static @Nonnull TabixIndex read(@Nonnull Path indexFile, @Nullable List<String> sequenceNames)
+      throws IOException {
+    Preconditions.checkNotNull(indexFile);
+
+    TabixIndex index = new TabixIndex();
+    try (DataInputStream in = new DataInputStream(new BgzfInputStream(indexFile))) {
+      byte[] magic = new byte[4];
+      in.readFully(magic);
+      String magicString = new String(magic, 0, 3, StandardCharsets.US_ASCII);
+      if (magicString.equals("TBI") && magic[3] == 1) {
+        index.m_minShift = TABIX_MIN_SHIFT;
+        index.m_depth = TABIX_DEPTH;
+        int numRefs = readInt(in);
+        index.readTabixHeader(in);
+        index.readReferences(in, numRefs, false);
+      } else if (magicString.equals("CSI") && magic[3] == 1) {
+        index.m_minShift = readInt(in);
+        index.m_depth = readInt(in);
+        int auxLength = readInt(in);
+        if (auxLength >= 28) {
+          index.readTabixHeader(in);
+        } else {
+          skipFully(in, auxLength);
+        }
+        int numRefs = readInt(in);
+        index.readReferences(in, numRefs, true);
+      } else {
+        throw new ParseException("Not a tabix or CSI index: " + indexFile);
+      }
+    }
+
+    if (index.m_names.isEmpty() && sequenceNames != null) {
+      index.m_names.addAll(sequenceNames);
+    }
+    for (int x = 0; x < index.m_names.size(); x += 1) {
+      index.m_nameIdx.put(index.m_names.get(x), x);
+    }
+    return index;
+  }
+
+  private void readTabixHeader(DataInputStream in) throws IOException {
+
+    int format = readInt(in);
+    if ((format & 0xffff) != 2) {
+      throw new ParseException("Index is not for a VCF file (format " + format + ")");
+    }
+    // col_seq, col_beg, col_end, meta, skip
+    skipFully(in, 20);
+    int namesLength = readInt(in);
+    byte[] names = new byte[namesLength];
+    in.readFully(names);
+    int start = 0;
+    for (int x = 0; x < names.length; x += 1) {
+      if (names[x] == 0) {
+        m_names.add(new String(names, start, x - start, StandardCharsets.UTF_8));
+        start = x + 1;
+      }
+    }
+  }
+
+  private void readReferences(DataInputStream in, int numRefs, boolean isCsi) throws IOException {
+
+    for (int r = 0; r < numRefs; r += 1) {
+      int numBins = readInt(in);
+      Map<Integer, Bin> bins = new HashMap<>();
+      for (int b = 0; b < numBins; b += 1) {
+        int binId = readInt(in);
+        long minOffset = isCsi ? readLong(in) : 0;
+        int numChunks = readInt(in);
+        Chunk[] chunks = new Chunk[numChunks];
+        for (int c = 0; c < numChunks; c += 1) {
+          chunks[c] = new Chunk(readLong(in), readLong(in));
+        }
+        bins.put(binId, new Bin(minOffset, chunks));
+      }
+      m_bins.add(bins);
+
+      if (isCsi) {
+        m_linearIndex.add(null);
+      } else {
+        int numIntervals = readInt(in);
+        long[] intervals = new long[numIntervals];
+        for (int i = 0; i < numIntervals; i += 1) {
+          intervals[i] = readLong(in);
+        }
+        m_linearIndex.add(intervals);
+      }
+    }
+  }
+
+
+  /**
+   * Gets the names of the sequences (e.g. chromosomes) in this index.
+   */
+  public @Nonnull List<String> getSequenceNames() {
+    return Collections.unmodifiableList(m_names);
+  }
+
+  public boolean hasSequence(@Nonnull String name) {
+    return m_nameIdx.containsKey(name);
+  }
+
+
+  /**
+   * Finds chunks that may contain records overlapping the given region.
+   *
+   * @param sequence the sequence (e.g. chromosome) name
+   * @param start the 1-based start position (inclusive)
+   * @param end the 1-based end position (inclusive)
+   * @return chunks (unmerged, in no particular order)
+   */
+  public @Nonnull List<Chunk> query(@Nonnull String sequence, int start, int end) {
+
+    Integer refIdx = m_nameIdx.get(sequence);
+    if (refIdx == null || refIdx >= m_bins.size()) {
+      return Collections.emptyList();
+    }
+    Map<Integer, Bin> bins = m_bins.get(refIdx);
+    // convert to 0-based, half-open
+    long beg = Math.max(0, start - 1);
+
+    long minOffset = 0;
+    long[] linearIndex = m_linearIndex.get(refIdx);
+    if (linearIndex != null) {
+      int window = (int)(beg >> TABIX_MIN_SHIFT);
+      if (linearIndex.length > 0) {
+        minOffset = linearIndex[Math.min(window, linearIndex.length - 1)];
+      }
+    } else {
+      // CSI: use the offset of the smallest bin containing the start that exists
+      int bin = binFirst(m_depth) + (int)(beg >> m_minShift);
+      while (true) {
+        Bin b = bins.get(bin);
+        if (b != null) {
+          minOffset = b.m_minOffset;
+          break;
+        }
+        if (bin == 0) {
+          break;
+        }
+        bin = (bin - 1) >> 3;
+      }
+    }
+
+    List<Chunk> chunks = new ArrayList<>();
+    for (int binId : regionToBins(beg, end, m_minShift, m_depth)) {
+      Bin bin = bins.get(binId);
+      if (bin == null) {
+        continue;
+      }
+      for (Chunk chunk : bin.m_chunks) {
+        if (chunk.getEnd() > minOffset) {
+          chunks.add(chunk);
+        }
+      }
+    }
+    return chunks;
+  }
+
+
+  /**
+   * Sorts and merges overlapping or adjacent chunks, so that no part of the file is read twice.
+   */
+  public static @Nonnull List<Chunk> merge(@Nonnull Collection<Chunk> chunks) {
+
+    List<Chunk> sorted = new ArrayList<>(chunks);
+    sorted.sort(null);
+    List<Chunk> merged = new ArrayList<>();
+    Chunk current = null;
+    for (Chunk chunk : sorted) {
+      if (current == null) {
+        current = chunk;
+      } else if (chunk.getStart() <= current.getEnd()) {
+        if (chunk.getEnd() > current.getEnd()) {
+          current = new Chunk(current.getStart(), chunk.getEnd());
+        }
+      } else {
+        merged.add(current);
+        current = chunk;
+      }
+    }
+    if (current != null) {
+      merged.add(current);
+    }
+    return merged;
+  }
+
+
+  private static int binFirst(int level) {
+    return ((1 << (level * 3)) - 1) / 7;
+  }
+
+  /**
+   * Calculates the bins that may overlap the given 0-based, half-open region.
+   */
+  private static List<Integer> regionToBins(long beg, long end, int minShift, int depth) {
+
+    List<Integer> bins = new ArrayList<>();
+    end -= 1;
+    int shift = minShift + depth * 3;
+    for (int level = 0, t = 0; level <= depth; shift -= 3, t += 1 << (level * 3), level += 1) {
+      int b = t + (int)(beg >> shift);
+      int e = t + (int)(end >> shift);
+      for (int x = b; x <= e; x += 1) {
+        bins.add(x);
+      }
+    }
+    return bins;
+  }
+
+
+  private static int readInt(DataInputStream in) throws IOException {
+    return Integer.reverseBytes(in.readInt());
+  }
+
+  private static long readLong(DataInputStream in) throws IOException {
+    return Long.reverseBytes(in.readLong());
+  }
+
+  private static void skipFully(InputStream in, int length) throws IOException {
+    int remaining = length;
+    while (remaining > 0) {
+      long skipped = in.skip(remaining);
+      if (skipped <= 0) {
+        throw new EOFException();
+      }
+      remaining -= skipped;
+    }
+  }
+
+
+  private static class Bin {
+    private final long m_minOffset;
+    private final Chunk[] m_chunks;
+
+    Bin(long minOffset, Chunk[] chunks) {
+      m_minOffset = minOffset;
+      m_chunks = chunks;
+    }
+  }
+
+
+  /**
+   * A contiguous range of a file, as a pair of offsets (virtual offsets, for BGZF files).
+   */
+  public static class Chunk implements Comparable<Chunk> {
+    private final long m_start;
+    private final long m_end;
+
+    public Chunk(long start, long end) {
+      m_start = start;
+      m_end = end;
+    }
+
+    public long getStart() {
+      return m_start;
+    }
+
+    public long getEnd() {
+      return m_end;
+    }
+
+    @Override
+    public int compareTo(@Nonnull Chunk o) {
+      int rez = Long.compareUnsigned(m_start, o.getStart());
+      if (rez != 0) {
+        return rez;
+      }
+      return Long.compareUnsigned(m_end, o.getEnd());
+    }
+
+    @Override
+    public String toString() {
+      return (m_start >>> 16) + ":" + (m_start & 0xffff) + "-" + (m_end >>> 16) + ":" + (m_end & 0xffff);
+    }
+  }
+}
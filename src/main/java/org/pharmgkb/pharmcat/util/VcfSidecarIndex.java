@@ -0,0 +1,594 @@
+package org.pharmgkb.pharmcat.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import com.google.common.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * A position index for uncompressed VCF files, for when they can't be bgzipped and indexed with tabix.
+ * <p>
+ * The index maps fixed-size position buckets on each contig to the range of byte offsets holding the lines that
+ * overlap them (taking the {@code END} of gVCF reference blocks into account).  It is built by scanning the file once,
+ * in newline-aligned chunks on multiple threads, looking at nothing but CHROM, POS and INFO.  It is saved to an index
+ * directory ({@code <index dir>/<vcf file name>.pcidx}) so later runs can seek straight to the lines they need.
+ * <p>
+ * A saved index is only used if it was built for the same VCF file, and the file's size and last modified time haven't
+ * changed since.  It is written to a temp file and then moved into place, so any number of processes can build it at
+ * the same time without anyone seeing a partial index.
+ * <p>
+ * Only coordinate-sorted files can be indexed.  If the file isn't sorted, that gets recorded instead, so it isn't
+ * scanned again.
+ */
+public class VcfSidecarIndex {
+  private static final Logger sf_logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  public static final String FILE_EXTENSION = ".pcidx";
+  private static final int MAGIC = 0x50434958;
+  private static final int VERSION = 2;
+  private static final int BUCKET_SHIFT = 14;
+  // size of the chunks that get scanned on their own thread
+  static long CHUNK_SIZE = 16 * 1024 * 1024;
+  private long m_fileSize;
+  private long m_lastModified;
+  private boolean m_isSorted = true;
+  private long m_headerLength;
+  private final List<String> m_contigs = new ArrayList<>();
+  private final Map<String, Integer> m_contigIdx = new HashMap<>();
+  // per contig, indexed by bucket: start offset of the first overlapping line (-1 if none), end offset of the last
+  private final List<long[]> m_starts = new ArrayList<>();
+  private final List<long[]> m_ends = new ArrayList<>();
+
+
+  private VcfSidecarIndex() {
+  }
+
+
+  /**
+   * Gets the sidecar index file for the given VCF file.
+   *
+   * @param indexDir the directory indexes are kept in
+   */
+  public static @Nonnull Path getIndexFile(@Nonnull Path indexDir, @Nonnull Path vcfFile) {
+    return indexDir.resolve(vcfFile.getFileName() + FILE_EXTENSION);
+  }
+
+
+  /**
+   * Loads the sidecar index for the given VCF file, building (and saving) it if it doesn't exist or is out of date.
+   * If the index can't be saved (e.g. the directory isn't writable), the index that was built is still returned.
+   *
+   * @param indexDir the directory indexes are kept in
+   */
+  public static @Nonnull VcfSidecarIndex loadOrBuild(@Nonnull Path vcfFile, @Nonnull Path indexDir)
+      throws IOException {
+
+    VcfSidecarIndex index = load(vcfFile, indexDir);
+    if (index != null) {
+      return index;
+    }
+    index = build(vcfFile);
+    try {
+      index.save(vcfFile, indexDir);
+    } catch (IOException ex) {
+      sf_logger.warn("Cannot save index for " + vcfFile, ex);
+    }
+    return index;
+  }
+
+  /**
+   * Loads the sidecar index for the given VCF file.
+   *
+   * @param indexDir the directory indexes are kept in
+   * @return the index, or null if there is no index or it is out of date
+   */
+  public static @Nullable VcfSidecarIndex load(@Nonnull Path vcfFile, @Nonnull Path indexDir) throws IOException {
+
+    Path indexFile = getIndexFile(indexDir, vcfFile);
+    if (!Files.isRegularFile(indexFile)) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        sf_logger.debug("{} is not a usable index", indexFile);
+        return null;
+      }
+      if (!in.readUTF().equals(toSource(vcfFile))) {
+        sf_logger.debug("{} is for a different file", indexFile);
+        return null;
+      }
+      VcfSidecarIndex index = new VcfSidecarIndex();
+      index.m_fileSize = in.readLong();
+      index.m_lastModified = in.readLong();
+      if (index.m_fileSize != Files.size(vcfFile) ||
+          index.m_lastModified != Files.getLastModifiedTime(vcfFile).toMillis()) {
+        sf_logger.debug("{} is out of date", indexFile);
+        return null;
+      }
+      index.m_isSorted = in.readBoolean();
+      index.m_headerLength = in.readLong();
+      int numContigs = in.readInt();
+      for (int x = 0; x < numContigs; x += 1) {
+        int contigIdx = index.addContig(in.readUTF());
+        int numBuckets = in.readInt();
+        for (int y = 0; y < numBuckets; y += 1) {
+          int bucket = in.readInt();
+          index.ensureBucket(contigIdx, bucket);
+          index.m_starts.get(contigIdx)[bucket] = in.readLong();
+          index.m_ends.get(contigIdx)[bucket] = in.readLong();
+        }
+      }
+      return index;
+    } catch (IOException ex) {
+      // probably got overwritten while we were reading it
+      sf_logger.warn("Cannot read " + indexFile, ex);
+      return null;
+    }
+  }
+
+
+  private static String toSource(Path vcfFile) {
+    return vcfFile.toAbsolutePath().normalize().toString();
+  }
+
+
+  /**
+   * Builds an index by scanning the given VCF file.  The file is split into newline-aligned chunks that are scanned on
+   * their own threads, and the results are stitched together in file order.
+   */
+  public static @Nonnull VcfSidecarIndex build(@Nonnull Path vcfFile) throws IOException {
+
+    VcfSidecarIndex index = new VcfSidecarIndex();
+    index.m_fileSize = Files.size(vcfFile);
+    index.m_lastModified = Files.getLastModifiedTime(vcfFile).toMillis();
+    try (FileChannel channel = FileChannel.open(vcfFile, StandardOpenOption.READ)) {
+      index.m_headerLength = findHeaderEnd(channel);
+      List<Long> boundaries = ChunkUtils.splitLines(channel, index.m_headerLength, CHUNK_SIZE);
+
+      List<Callable<Scanner>> tasks = new ArrayList<>();
+      for (int x = 1; x < boundaries.size(); x += 1) {
+        long start = boundaries.get(x - 1);
+        long end = boundaries.get(x);
+        tasks.add(() -> {
+          Scanner scanner = new Scanner(new VcfSidecarIndex());
+          scanner.scan(channel, start, end);
+          return scanner;
+        });
+      }
+      int numThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), tasks.size()));
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      try {
+        List<Future<Scanner>> futures = new ArrayList<>();
+        for (Callable<Scanner> task : tasks) {
+          futures.add(executor.submit(task));
+        }
+        long lastPos = 0;
+        for (Future<Scanner> future : futures) {
+          lastPos = index.append(future.get(), lastPos);
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while indexing " + vcfFile, ex);
+      } catch (ExecutionException ex) {
+        Throwables.throwIfInstanceOf(ex.getCause(), IOException.class);
+        Throwables.throwIfUnchecked(ex.getCause());
+        throw new IOException("Error indexing " + vcfFile, ex.getCause());
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+    sf_logger.debug("Indexed {} contigs in {}{}", index.m_contigs.size(), vcfFile,
+        index.m_isSorted ? "" : " (not sorted)");
+    return index;
+  }
+
+  /**
+   * Finds the end of the header (i.e. the start of the first line that doesn't start with {@code #}).
+   */
+  private static long findHeaderEnd(FileChannel channel) throws IOException {
+
+    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    long offset = 0;
+    boolean lineStart = true;
+    while (true) {
+      buffer.clear();
+      int read = channel.read(buffer, offset);
+      if (read == -1) {
+        return offset;
+      }
+      for (int x = 0; x < read; x += 1) {
+        byte c = buffer.get(x);
+        if (lineStart && c != '#') {
+          return offset + x;
+        }
+        lineStart = c == '\n';
+      }
+      offset += read;
+    }
+  }
+
+  /**
+   * Adds what was found in the next chunk of the file to this index.
+   *
+   * @param lastPos the position of the last data line added so far
+   * @return the position of the last data line added
+   */
+  private long append(Scanner chunk, long lastPos) {
+
+    VcfSidecarIndex chunkIndex = chunk.m_index;
+    if (!m_isSorted || chunk.m_firstPos == -1) {
+      return lastPos;
+    }
+    if (!chunkIndex.m_isSorted) {
+      m_isSorted = false;
+      return lastPos;
+    }
+    for (int x = 0; x < chunkIndex.m_contigs.size(); x += 1) {
+      String contig = chunkIndex.m_contigs.get(x);
+      Integer contigIdx = m_contigIdx.get(contig);
+      if (contigIdx != null) {
+        // can only carry on with the last contig from the previous chunk
+        if (x > 0 || contigIdx != m_contigs.size() - 1 || chunk.m_firstPos < lastPos) {
+          m_isSorted = false;
+          return lastPos;
+        }
+      } else {
+        contigIdx = addContig(contig);
+      }
+      long[] chunkStarts = chunkIndex.m_starts.get(x);
+      long[] chunkEnds = chunkIndex.m_ends.get(x);
+      for (int bucket = 0; bucket < chunkStarts.length; bucket += 1) {
+        if (chunkStarts[bucket] == -1) {
+          continue;
+        }
+        ensureBucket(contigIdx, bucket);
+        if (m_starts.get(contigIdx)[bucket] == -1) {
+          m_starts.get(contigIdx)[bucket] = chunkStarts[bucket];
+        }
+        m_ends.get(contigIdx)[bucket] = chunkEnds[bucket];
+      }
+    }
+    return chunk.m_lastPos;
+  }
+
+  /**
+   * Saves this index to the given index directory.
+   *
+   * @param indexDir the directory indexes are kept in
+   */
+  public void save(@Nonnull Path vcfFile, @Nonnull Path indexDir) throws IOException {
+
+    Files.createDirectories(indexDir);
+    Path indexFile = getIndexFile(indexDir, vcfFile);
+    Path tmpFile = Files.createTempFile(indexDir, indexFile.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(toSource(vcfFile));
+        out.writeLong(m_fileSize);
+        out.writeLong(m_lastModified);
+        out.writeBoolean(m_isSorted);
+        out.writeLong(m_headerLength);
+        out.writeInt(m_contigs.size());
+        for (int x = 0; x < m_contigs.size(); x += 1) {
+          out.writeUTF(m_contigs.get(x));
+          long[] starts = m_starts.get(x);
+          long[] ends = m_ends.get(x);
+          int numBuckets = 0;
+          for (long start : starts) {
+            if (start != -1) {
+              numBuckets += 1;
+            }
+          }
+          out.writeInt(numBuckets);
+          for (int y = 0; y < starts.length; y += 1) {
+            if (starts[y] != -1) {
+              out.writeInt(y);
+              out.writeLong(starts[y]);
+              out.writeLong(ends[y]);
+            }
+          }
+        }
+      }
+      Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmpFile);
+    }
+  }
+
+
+  /**
+   * True if the VCF file is coordinate-sorted.  If it isn't, {@link #query(String, int, int)} can't be used.
+   */
+  public boolean isSorted() {
+    return m_isSorted;
+  }
+
+  /**
+   * Gets the length of the header (i.e. the offset of the first data line).
+   */
+  public long getHeaderLength() {
+    return m_headerLength;
+  }
+
+  /**
+   * Gets the names of the contigs in the VCF file, in the order they appear.
+   */
+  public @Nonnull List<String> getContigs() {
+    return Collections.unmodifiableList(m_contigs);
+  }
+
+  /**
+   * Finds the range of the VCF file that holds all lines overlapping the given region.
+   *
+   * @param start the 1-based start position (inclusive)
+   * @param end the 1-based end position (inclusive)
+   * @return chunks of plain file offsets (unmerged, in no particular order)
+   */
+  public @Nonnull List<TabixIndex.Chunk> query(@Nonnull String contig, int start, int end) {
+
+    if (!m_isSorted) {
+      throw new IllegalStateException("VCF file is not sorted");
+    }
+    Integer contigIdx = m_contigIdx.get(contig);
+    if (contigIdx == null) {
+      return Collections.emptyList();
+    }
+    long[] starts = m_starts.get(contigIdx);
+    long[] ends = m_ends.get(contigIdx);
+    long chunkStart = -1;
+    long chunkEnd = -1;
+    for (int bucket = start >> BUCKET_SHIFT; bucket <= end >> BUCKET_SHIFT && bucket < starts.length; bucket += 1) {
+      if (starts[bucket] == -1) {
+        continue;
+      }
+      if (chunkStart == -1 || starts[bucket] < chunkStart) {
+        chunkStart = starts[bucket];
+      }
+      chunkEnd = Math.max(chunkEnd, ends[bucket]);
+    }
+    if (chunkStart == -1) {
+      return Collections.emptyList();
+    }
+    return Collections.singletonList(new TabixIndex.Chunk(chunkStart, chunkEnd));
+  }
+
+
+  private int addContig(String contig) {
+    int idx = m_contigs.size();
+    m_contigs.add(contig);
+    m_contigIdx.put(contig, idx);
+    m_starts.add(new long[0]);
+    m_ends.add(new long[0]);
+    return idx;
+  }
+
+  private void ensureBucket(int contigIdx, int bucket) {
+
+    long[] starts = m_starts.get(contigIdx);
+    if (bucket < starts.length) {
+      return;
+    }
+    int length = Math.max(bucket + 1, starts.length * 2);
+    long[] newStarts = Arrays.copyOf(starts, length);
+    Arrays.fill(newStarts, starts.length, length, -1);
+    m_starts.set(contigIdx, newStarts);
+    m_ends.set(contigIdx, Arrays.copyOf(m_ends.get(contigIdx), length));
+  }
+
+  /**
+   * Records a line that covers positions {@code pos} to {@code end} and takes up bytes {@code lineStart} to
+   * {@code lineEnd}.
+   */
+  private void addLine(int contigIdx, long pos, long end, long lineStart, long lineEnd) {
+
+    int lastBucket = (int)(Math.min(Math.max(pos, end), Integer.MAX_VALUE) >> BUCKET_SHIFT);
+    ensureBucket(contigIdx, lastBucket);
+    long[] starts = m_starts.get(contigIdx);
+    long[] ends = m_ends.get(contigIdx);
+    for (int bucket = (int)(pos >> BUCKET_SHIFT); bucket <= lastBucket; bucket += 1) {
+      if (starts[bucket] == -1) {
+        starts[bucket] = lineStart;
+      }
+      ends[bucket] = lineEnd;
+    }
+  }
+
+
+  /**
+   * Scans a chunk of VCF data lines, pulling out CHROM, POS and INFO's {@code END}.  Once past INFO, the rest of the
+   * line is skipped.
+   */
+  private static class Scanner {
+    private static final byte[] END_KEY = "END=".getBytes(StandardCharsets.US_ASCII);
+    private final VcfSidecarIndex m_index;
+    private boolean m_lineStart = true;
+    private boolean m_isHeaderLine;
+    // true if nothing else on the current line matters
+    private boolean m_skipLine;
+    private long m_lineStartOffset;
+    private int m_column;
+    private byte[] m_contig = new byte[64];
+    private int m_contigLength;
+    private long m_pos;
+    private boolean m_validPos;
+    private long m_end;
+    // how much of "END=" has been matched in the current INFO key, or -1 if it doesn't match
+    private int m_endMatch;
+    private int m_currentContig = -1;
+    private byte[] m_currentContigBytes = new byte[0];
+    // position of the first and last data lines in the chunk, -1 if there aren't any
+    private long m_firstPos = -1;
+    private long m_lastPos = -1;
+
+    Scanner(VcfSidecarIndex index) {
+      m_index = index;
+    }
+
+    /**
+     * Scans bytes {@code start} (inclusive) to {@code end} (exclusive), which must be whole lines.
+     */
+    void scan(FileChannel channel, long start, long end) throws IOException {
+
+      ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(1024 * 1024, Math.max(1, end - start)));
+      long offset = start;
+      while (offset < end && m_index.m_isSorted) {
+        buffer.clear();
+        buffer.limit((int)Math.min(buffer.capacity(), end - offset));
+        int read = channel.read(buffer, offset);
+        if (read == -1) {
+          break;
+        }
+        byte[] bytes = buffer.array();
+        for (int x = 0; x < read; x += 1) {
+          if (m_skipLine) {
+            while (x < read && bytes[x] != '\n') {
+              x += 1;
+            }
+            if (x == read) {
+              break;
+            }
+          }
+          scan(bytes[x], offset + x);
+        }
+        offset += read;
+      }
+      if (!m_lineStart) {
+        // no newline at end of file
+        endLine(offset);
+      }
+    }
+
+    private void scan(byte c, long offset) {
+
+      if (m_lineStart) {
+        m_lineStart = false;
+        m_lineStartOffset = offset;
+        m_isHeaderLine = c == '#';
+        m_skipLine = m_isHeaderLine;
+        m_column = 0;
+        m_contigLength = 0;
+        m_pos = 0;
+        m_validPos = true;
+        m_end = -1;
+      }
+      if (c == '\n') {
+        endLine(offset + 1);
+        m_lineStart = true;
+        m_skipLine = false;
+        return;
+      }
+      if (m_isHeaderLine) {
+        return;
+      }
+      if (c == '\t') {
+        m_column += 1;
+        m_endMatch = 0;
+        m_skipLine = m_column > 7;
+        return;
+      }
+
+      switch (m_column) {
+        case 0:
+          if (m_contigLength == m_contig.length) {
+            m_contig = Arrays.copyOf(m_contig, m_contig.length * 2);
+          }
+          m_contig[m_contigLength] = c;
+          m_contigLength += 1;
+          break;
+        case 1:
+          if (c < '0' || c > '9' || m_pos > Integer.MAX_VALUE) {
+            m_validPos = false;
+          } else {
+            m_pos = m_pos * 10 + (c - '0');
+          }
+          break;
+        case 7:
+          if (c == ';') {
+            m_endMatch = 0;
+          } else if (m_endMatch == END_KEY.length) {
+            if (c >= '0' && c <= '9' && m_end < Integer.MAX_VALUE) {
+              m_end = Math.max(0, m_end) * 10 + (c - '0');
+            }
+          } else if (m_endMatch >= 0) {
+            m_endMatch = c == END_KEY[m_endMatch] ? m_endMatch + 1 : -1;
+          }
+          break;
+        default:
+          // don't care
+      }
+    }
+
+    private void endLine(long lineEnd) {
+
+      if (m_isHeaderLine || m_column < 1 || !m_validPos || m_pos == 0) {
+        return;
+      }
+      if (m_currentContig == -1 || !isCurrentContig()) {
+        String contig = new String(m_contig, 0, m_contigLength, StandardCharsets.UTF_8);
+        if (m_index.m_contigIdx.containsKey(contig)) {
+          m_index.m_isSorted = false;
+        }
+        if (!m_index.m_isSorted) {
+          return;
+        }
+        m_currentContig = m_index.addContig(contig);
+        m_currentContigBytes = Arrays.copyOf(m_contig, m_contigLength);
+        m_lastPos = 0;
+      } else if (m_pos < m_lastPos) {
+        m_index.m_isSorted = false;
+      }
+      if (!m_index.m_isSorted) {
+        return;
+      }
+      if (m_firstPos == -1) {
+        m_firstPos = m_pos;
+      }
+      m_lastPos = m_pos;
+      m_index.addLine(m_currentContig, m_pos, m_end, m_lineStartOffset, lineEnd);
+    }
+
+    /**
+     * Checks if the contig on the current line is the same as the one on the previous data line, without allocating
+     * anything (this gets called for every line).
+     */
+    private boolean isCurrentContig() {
+
+      if (m_currentContigBytes.length != m_contigLength) {
+        return false;
+      }
+      for (int x = 0; x < m_contigLength; x += 1) {
+        if (m_currentContigBytes[x] != m_contig[x]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
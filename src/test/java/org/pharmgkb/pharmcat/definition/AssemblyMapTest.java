@@ -4,6 +4,7 @@
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 /**
  * JUnit test for {@link AssemblyMap}.
@@ -22,4 +23,13 @@ public void testGet() throws IOException {
     assertEquals(AssemblyMap.GRCH37, assemblyMap.get("NC_000004.11"));
     assertEquals(AssemblyMap.GRCH38, assemblyMap.get("NC_000004.12"));
   }
+
+  @Test
+  public void testToBuild() {
+    assertEquals(AssemblyMap.GRCH37, AssemblyMap.toBuild("hg19"));
+    assertEquals(AssemblyMap.GRCH37, AssemblyMap.toBuild("GRCh37"));
+    assertEquals(AssemblyMap.GRCH38, AssemblyMap.toBuild("\"hg38\""));
+    assertNull(AssemblyMap.toBuild("hg18"));
+    assertNull(AssemblyMap.toBuild(null));
+  }
 }
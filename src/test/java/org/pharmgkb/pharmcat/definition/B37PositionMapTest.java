@@ -0,0 +1,49 @@
+package org.pharmgkb.pharmcat.definition;
+
+import org.junit.Test;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+import org.pharmgkb.pharmcat.definition.model.VariantType;
+import org.pharmgkb.pharmcat.haplotype.DefinitionReader;
+import org.pharmgkb.pharmcat.util.DataManager;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * JUnit test for {@link B37PositionMap}.
+ */
+public class B37PositionMapTest {
+
+  @Test
+  public void testGet() throws Exception {
+
+    B37PositionMap positionMap = new B37PositionMap();
+    // rs776746 (CYP3A5*3)
+    assertEquals(Integer.valueOf(99270539), positionMap.get("chr7", 99672916));
+    // rs4244285 (CYP2C19*2)
+    assertEquals(Integer.valueOf(96541616), positionMap.get("chr10", 94781859));
+    // rs3892097 (CYP2D6*4)
+    assertEquals(Integer.valueOf(42524947), positionMap.get("chr22", 42128945));
+    assertNull(positionMap.get("chr7", 1));
+
+    // deletions are anchored on the preceding base
+    VariantLocus del = new VariantLocus("chr7", 117559592, "g.117559592_117559594delCTT");
+    del.setType(VariantType.DEL);
+    assertEquals(117199646, (int)positionMap.get("chr7", 117559592));
+    assertEquals(117199645, positionMap.getVcfPosition(del));
+  }
+
+
+  @Test
+  public void testAllDefinitions() throws Exception {
+
+    B37PositionMap positionMap = new B37PositionMap();
+    DefinitionReader definitionReader = new DefinitionReader();
+    definitionReader.read(DataManager.DEFAULT_DEFINITION_DIR);
+    for (String gene : definitionReader.getGenes()) {
+      for (VariantLocus vl : definitionReader.getPositions(gene)) {
+        assertNotNull(gene + " " + vl.getVcfChrPosition(), positionMap.get(vl.getChromosome(), vl.getPosition()));
+      }
+    }
+  }
+}
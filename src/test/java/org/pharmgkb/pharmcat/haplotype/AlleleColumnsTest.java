@@ -0,0 +1,72 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.pharmgkb.pharmcat.definition.model.NamedAllele;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * JUnit test for {@link AlleleColumns}.
+ */
+public class AlleleColumnsTest {
+
+  @Test
+  public void testColumns() {
+
+    VariantLocus var1 = new VariantLocus("chr1", 1, "g.1T>A");
+    VariantLocus var2 = new VariantLocus("chr1", 2, "g.2T>A");
+    VariantLocus var3 = new VariantLocus("chr1", 3, "g.3T>A");
+    VariantLocus[] variants = new VariantLocus[] { var1, var2, var3 };
+
+    NamedAllele hap1 = new NamedAllele("*1", "*1", new String[] { "T", "A", "C" });
+    hap1.initialize(variants);
+    NamedAllele hap2 = new NamedAllele("*2", "*2", new String[] { "R", null, "C" });
+    hap2.initialize(variants);
+
+    SortedMap<String, SampleAllele> sampleAlleleMap = new TreeMap<>();
+    sampleAlleleMap.put("chr1:1", new SampleAllele("chr1", 1, "T", "G", false, Lists.newArrayList("T", "G")));
+    sampleAlleleMap.put("chr1:2", new SampleAllele("chr1", 2, "A", "A", true, Lists.newArrayList("A")));
+    sampleAlleleMap.put("chr1:3", new SampleAllele("chr1", 3, "C", null, false, Lists.newArrayList("C")));
+
+    MatchData dataset = new MatchData(sampleAlleleMap, variants, null, null);
+    dataset.marshallHaplotypes(Lists.newArrayList(hap1, hap2));
+    AlleleColumns columns = dataset.getColumns();
+    assertSame(columns, dataset.getColumns());
+    assertEquals(3, columns.size());
+
+    assertSame(var1, columns.getLocus(0));
+    assertFalse(columns.isHomozygous(0));
+    assertFalse(columns.isPhased(0));
+    assertEquals("T", columns.getAllele(0, columns.getAllele1Code(0)));
+    assertEquals("G", columns.getAllele(0, columns.getAllele2Code(0)));
+    // *1 is T, *2 is R (A or G)
+    assertEquals(0b01, columns.getHaplotypeBits(0, columns.getAllele1Code(0))[0]);
+    assertEquals(0b10, columns.getHaplotypeBits(0, columns.getAllele2Code(0))[0]);
+
+    assertTrue(columns.isHomozygous(1));
+    assertTrue(columns.isPhased(1));
+    assertEquals(columns.getAllele1Code(1), columns.getAllele2Code(1));
+    // *2 allows anything
+    assertEquals(0b11, columns.getHaplotypeBits(1, columns.getAllele1Code(1))[0]);
+
+    // missing allele 2 is "null", same as in permutations
+    assertFalse(columns.isHomozygous(2));
+    assertEquals("null", columns.getAllele(2, columns.getAllele2Code(2)));
+    assertEquals(0, columns.getHaplotypeBits(2, columns.getAllele2Code(2))[0]);
+
+    String seq = "1:G;2:A;3:null;";
+    assertEquals(columns.getAllele2Code(0), columns.findCode(0, seq, 2, 3));
+    assertEquals(columns.getAllele2Code(2), columns.findCode(2, seq, 10, 14));
+    assertEquals(-1, columns.findCode(0, "1:C;", 2, 3));
+
+    // changing haplotypes resets columns
+    dataset.defaultMissingAllelesToReference();
+    assertNotSame(columns, dataset.getColumns());
+    assertEquals(0b11, dataset.getColumns().getHaplotypeBits(1, 0)[0]);
+  }
+}
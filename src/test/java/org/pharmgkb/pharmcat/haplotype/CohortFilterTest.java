@@ -0,0 +1,73 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.pharmgkb.pharmcat.definition.model.NamedAllele;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * JUnit test for {@link CohortFilter}.
+ */
+public class CohortFilterTest {
+
+  @Test
+  public void testFilter() {
+
+    VariantLocus var1 = new VariantLocus("chr1", 1, "g.1T>A");
+    VariantLocus var2 = new VariantLocus("chr1", 2, "g.2T>A");
+    VariantLocus[] variants = new VariantLocus[] { var1, var2 };
+
+    NamedAllele hap1 = new NamedAllele("*1", "*1", new String[] { "T", "C" });
+    hap1.initialize(variants);
+    NamedAllele hap2 = new NamedAllele("*2", "*2", new String[] { "A", null });
+    hap2.initialize(variants);
+    NamedAllele hap3 = new NamedAllele("*3", "*3", new String[] { null, "G" });
+    hap3.initialize(variants);
+    List<NamedAllele> haplotypes = Lists.newArrayList(hap1, hap2, hap3);
+
+    // 70 samples, so that the second word is partially used
+    List<SortedMap<String, SampleAllele>> samples = new ArrayList<>();
+    for (int x = 0; x < 70; x += 1) {
+      SortedMap<String, SampleAllele> alleles = new TreeMap<>();
+      if (x % 2 == 0) {
+        alleles.put("chr1:1", new SampleAllele("chr1", 1, "T", "T", false, Lists.newArrayList("T", "A")));
+      } else {
+        alleles.put("chr1:1", new SampleAllele("chr1", 1, "T", "A", false, Lists.newArrayList("T", "A")));
+      }
+      if (x != 69) {
+        alleles.put("chr1:2", new SampleAllele("chr1", 2, "C", "C", false, Lists.newArrayList("C", "G")));
+      }
+      samples.add(alleles);
+    }
+
+    CohortFilter filter = new CohortFilter(variants, VariantLocus::getVcfChrPosition, haplotypes, false, samples);
+    // homozygous reference
+    assertTrue(filter.mayMatch(0, "*1"));
+    assertFalse(filter.mayMatch(0, "*2"));
+    assertFalse(filter.mayMatch(0, "*3"));
+    assertEquals(1, filter.countCandidates(0));
+    // heterozygous at position 1
+    assertTrue(filter.mayMatch(1, "*1"));
+    assertTrue(filter.mayMatch(1, "*2"));
+    assertFalse(filter.mayMatch(1, "*3"));
+    assertEquals(2, filter.countCandidates(65));
+    // missing position 2
+    assertTrue(filter.mayMatch(69, "*3"));
+    assertEquals(3, filter.countCandidates(69));
+    // unknown haplotypes are never filtered out
+    assertTrue(filter.mayMatch(0, "*4"));
+
+    // assuming reference, *3 needs T at position 1
+    filter = new CohortFilter(variants, VariantLocus::getVcfChrPosition, haplotypes, true, samples);
+    assertFalse(filter.mayMatch(68, "*3"));
+    assertTrue(filter.mayMatch(69, "*3"));
+    assertFalse(filter.mayMatch(0, "*2"));
+  }
+}
@@ -0,0 +1,85 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.pharmgkb.common.util.PathUtils;
+import org.pharmgkb.pharmcat.haplotype.model.DiplotypeMatch;
+import org.pharmgkb.pharmcat.haplotype.model.GeneCall;
+import org.pharmgkb.pharmcat.haplotype.model.Result;
+import org.pharmgkb.pharmcat.util.DataManager;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * JUnit test for {@link DiplotypeCache}.
+ */
+public class DiplotypeCacheTest {
+  private static final Path sf_vcfFile =
+      PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-multisample.vcf");
+
+
+  @Test
+  public void testCache() throws Exception {
+
+    DefinitionReader definitionReader = new DefinitionReader();
+    definitionReader.read(DataManager.DEFAULT_DEFINITION_DIR.resolve("CYP3A5_translation.json"));
+    NamedAlleleMatcher namedAlleleMatcher = new NamedAlleleMatcher(definitionReader)
+        .cacheCalls(10);
+    DiplotypeCache cache = namedAlleleMatcher.getDiplotypeCache();
+    assertNotNull(cache);
+
+    List<Result> results = callSamples(namedAlleleMatcher);
+    assertEquals(0, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+
+    // same genotypes, should all be hits
+    List<Result> cachedResults = callSamples(namedAlleleMatcher);
+    assertEquals(3, cache.getHitCount());
+    assertEquals(3, cache.getMissCount());
+    assertEquals(0, cache.getEvictionCount());
+
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*1"), cachedResults.get(0));
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*7"), cachedResults.get(1));
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*3/*3"), cachedResults.get(2));
+    for (int x = 0; x < results.size(); x += 1) {
+      GeneCall call = results.get(x).getGeneCalls().get(0);
+      GeneCall cachedCall = cachedResults.get(x).getGeneCalls().get(0);
+      assertEquals(call.getDiplotypes().size(), cachedCall.getDiplotypes().size());
+      for (DiplotypeMatch dm : cachedCall.getDiplotypes()) {
+        // should point to the data for the sample it was called for
+        assertSame(cachedCall.getMatchData(), dm.getDataset());
+        assertEquals(1, dm.getSequences().size());
+      }
+    }
+  }
+
+
+  @Test
+  public void testEviction() throws Exception {
+
+    DefinitionReader definitionReader = new DefinitionReader();
+    definitionReader.read(DataManager.DEFAULT_DEFINITION_DIR.resolve("CYP3A5_translation.json"));
+    NamedAlleleMatcher namedAlleleMatcher = new NamedAlleleMatcher(definitionReader)
+        .cacheCalls(1);
+    DiplotypeCache cache = namedAlleleMatcher.getDiplotypeCache();
+    assertNotNull(cache);
+
+    callSamples(namedAlleleMatcher);
+    callSamples(namedAlleleMatcher);
+    assertEquals(0, cache.getHitCount());
+    assertEquals(6, cache.getMissCount());
+    assertEquals(5, cache.getEvictionCount());
+  }
+
+
+  private static List<Result> callSamples(NamedAlleleMatcher namedAlleleMatcher) throws Exception {
+
+    List<Result> results = new ArrayList<>();
+    namedAlleleMatcher.callSamples(sf_vcfFile, (sampleId, result) -> results.add(result));
+    return results;
+  }
+}
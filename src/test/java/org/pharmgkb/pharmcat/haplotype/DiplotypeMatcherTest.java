@@ -152,11 +152,27 @@ private List<DiplotypeMatch> computeHaplotypes(List<SampleAllele> alleles) {
         .collect(Collectors.toMap(s -> "chr1:" + s.getPosition(),
         Function.identity(), new NoDuplicateMergeFunction<>(), TreeMap::new));
 
+    // search
     MatchData dataset = new MatchData(sampleAlleleMap, s_positions, null, null);
     dataset.marshallHaplotypes(s_haplotypes);
+    List<DiplotypeMatch> searchMatches = new DiplotypeMatcher(dataset).compute();
+    assertFalse(dataset.hasPermutations());
+
+    // compare all permutations
+    dataset = new MatchData(sampleAlleleMap, s_positions, null, null);
+    dataset.marshallHaplotypes(s_haplotypes);
     dataset.generateSamplePermutations();
+    List<DiplotypeMatch> matches = new DiplotypeMatcher(dataset).compute();
+
+    assertEquals(summarize(matches), summarize(searchMatches));
+    return matches;
+  }
 
-    return new DiplotypeMatcher(dataset).compute();
+  private static List<String> summarize(List<DiplotypeMatch> matches) {
+    return matches.stream()
+        .map(dm -> dm.getName() + " " + dm.getHaplotype1().getSequences() + " " + dm.getHaplotype2().getSequences() +
+            " " + dm.getSequences().stream().map(Arrays::toString).sorted().collect(Collectors.toList()))
+        .collect(Collectors.toList());
   }
 
 
@@ -221,5 +237,80 @@ public void testComparePermutations() throws Exception {
     Iterator<HaplotypeMatch> it = matches.iterator();
     assertEquals(hap1, it.next().getHaplotype());
     assertEquals(hap2, it.next().getHaplotype());
+
+    SortedSet<HaplotypeMatch> bitsetMatches = new DiplotypeMatcher(dataset, true).comparePermutations();
+    assertEquals(2, bitsetMatches.size());
+    Iterator<HaplotypeMatch> regexIt = matches.iterator();
+    for (HaplotypeMatch hm : bitsetMatches) {
+      HaplotypeMatch regexMatch = regexIt.next();
+      assertEquals(regexMatch.getHaplotype(), hm.getHaplotype());
+      assertEquals(regexMatch.getSequences(), hm.getSequences());
+    }
+  }
+
+
+  /**
+   * Makes sure that data that can't be searched with {@link PermutationSearch} falls back to generating permutations.
+   */
+  @Test
+  public void testCanSearch() {
+
+    SortedMap<String, SampleAllele> sampleAlleleMap = new TreeMap<>();
+    sampleAlleleMap.put("chr1:1", new SampleAllele("chr1", 1, "A", "G", false, Lists.newArrayList("A", "G")));
+    sampleAlleleMap.put("chr1:2", new SampleAllele("chr1", 2, "C", "T", false, Lists.newArrayList("C", "T")));
+    sampleAlleleMap.put("chr1:3", new SampleAllele("chr1", 3, "C", "T", false, Lists.newArrayList("C", "T")));
+    MatchData dataset = new MatchData(sampleAlleleMap, s_positions, null, null);
+    dataset.marshallHaplotypes(s_haplotypes);
+    assertTrue(PermutationSearch.canSearch(dataset));
+
+    // same VCF position on two contigs, so sample alleles don't line up with positions
+    VariantLocus var1 = new VariantLocus("chr1", 1, "g.1T>A");
+    VariantLocus var2 = new VariantLocus("chr2", 1, "g.1T>A");
+    VariantLocus[] positions = new VariantLocus[] { var1, var2 };
+    NamedAllele hap1 = new NamedAllele("*1", "*1", new String[] { "T", "T" });
+    hap1.initialize(positions);
+    NamedAllele hap2 = new NamedAllele("*2", "*2", new String[] { "A", "T" });
+    hap2.initialize(positions);
+    sampleAlleleMap = new TreeMap<>();
+    sampleAlleleMap.put("chr1:1", new SampleAllele("chr1", 1, "T", "A", false, Lists.newArrayList("T", "A")));
+    sampleAlleleMap.put("chr2:1", new SampleAllele("chr2", 1, "T", "T", false, Lists.newArrayList("T", "A")));
+    dataset = new MatchData(sampleAlleleMap, positions, null, null);
+    dataset.marshallHaplotypes(Lists.newArrayList(hap1, hap2));
+    assertFalse(PermutationSearch.canSearch(dataset));
+    new DiplotypeMatcher(dataset).compute();
+    assertTrue(dataset.hasPermutations());
+  }
+
+
+  /**
+   * Makes sure that calling a sample with many unphased heterozygous positions doesn't go through every permutation.
+   */
+  @Test(timeout = 10000)
+  public void testManyHeterozygousPositions() {
+
+    int numPositions = 60;
+    VariantLocus[] positions = new VariantLocus[numPositions];
+    String[] refAlleles = new String[numPositions];
+    String[] altAlleles = new String[numPositions];
+    SortedMap<String, SampleAllele> sampleAlleleMap = new TreeMap<>();
+    for (int x = 0; x < numPositions; x += 1) {
+      positions[x] = new VariantLocus("chr1", x + 1, "g." + (x + 1) + "C>T");
+      refAlleles[x] = "C";
+      altAlleles[x] = "T";
+      sampleAlleleMap.put("chr1:" + (x + 1),
+          new SampleAllele("chr1", x + 1, "C", "T", false, Lists.newArrayList("C", "T")));
+    }
+    NamedAllele ref = new NamedAllele("*1", "*1", refAlleles);
+    ref.initialize(positions);
+    NamedAllele alt = new NamedAllele("*2", "*2", altAlleles);
+    alt.initialize(positions);
+
+    MatchData dataset = new MatchData(sampleAlleleMap, positions, null, null);
+    dataset.marshallHaplotypes(Lists.newArrayList(ref, alt));
+    List<DiplotypeMatch> matches = new DiplotypeMatcher(dataset).compute();
+    assertEquals(1, matches.size());
+    assertEquals("*1/*2", matches.get(0).getName());
+    assertEquals(1, matches.get(0).getHaplotype1().getSequences().size());
+    assertEquals(1, matches.get(0).getSequences().size());
   }
 }
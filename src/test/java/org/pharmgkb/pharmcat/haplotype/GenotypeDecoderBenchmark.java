@@ -0,0 +1,124 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Random;
+import java.util.regex.Pattern;
+import org.pharmgkb.common.io.util.CliHelper;
+
+
+/**
+ * Measures how fast {@link GenotypeDecoder} decodes GT values and checks alleles, compared to the regex-based decoding
+ * {@link VcfReader} used to do.
+ * <p>
+ * This is not a unit test.  Run it from the command line.
+ */
+public class GenotypeDecoderBenchmark {
+  private static final Pattern sf_gtDelimiter = Pattern.compile("[|/]");
+  private static final Pattern sf_noCallPattern = Pattern.compile("^[.|/]+$");
+  private static final Pattern sf_allelePattern = Pattern.compile("^[AaCcGgTt]+$");
+  private static final String[] sf_genotypes = new String[] {
+      "0/0", "0/1", "1/1", "0|1", "1|0", "./.", ".|.", ".", "1", "0", "1/2", "12|3"
+  };
+  private static final String[] sf_alleles = new String[] {
+      "A", "C", "G", "T", "AT", "TA", "ACGTACGT", "a", "N", "<DEL>", "*"
+  };
+  // keeps the JIT from throwing away results
+  private static long s_sink;
+
+
+  public static void main(String[] args) {
+    CliHelper cliHelper = new CliHelper(MethodHandles.lookup().lookupClass())
+        .addOption("n", "num-values", "number of values to decode per run (defaults to 10,000,000)", false, "n")
+        .addOption("r", "repeat", "number of times to repeat each measurement (defaults to 5)", false, "r");
+
+    try {
+      if (!cliHelper.parse(args)) {
+        System.exit(1);
+      }
+      int numValues = cliHelper.hasOption("n") ? Integer.parseInt(cliHelper.getValue("n")) : 10000000;
+      int repeat = cliHelper.hasOption("r") ? Integer.parseInt(cliHelper.getValue("r")) : 5;
+
+      Random random = new Random(1);
+      String[] genotypes = new String[numValues];
+      String[] alleles = new String[numValues];
+      for (int x = 0; x < numValues; x += 1) {
+        genotypes[x] = sf_genotypes[random.nextInt(sf_genotypes.length)];
+        alleles[x] = sf_alleles[random.nextInt(sf_alleles.length)];
+      }
+
+      for (int x = 0; x < repeat; x += 1) {
+        System.out.println("Run " + (x + 1));
+        report("  GT (regex)", numValues, time(() -> decodeWithRegex(genotypes)));
+        report("  GT (GenotypeDecoder)", numValues, time(() -> decode(genotypes)));
+        report("  alleles (regex)", numValues, time(() -> checkAllelesWithRegex(alleles)));
+        report("  alleles (GenotypeDecoder)", numValues, time(() -> checkAlleles(alleles)));
+      }
+      System.out.println(s_sink);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+
+
+  private static void decodeWithRegex(String[] genotypes) {
+    long sum = 0;
+    for (String gt : genotypes) {
+      if (sf_noCallPattern.matcher(gt).matches()) {
+        continue;
+      }
+      int[] alleleIdxs = sf_gtDelimiter.splitAsStream(gt)
+          .mapToInt(Integer::parseInt)
+          .toArray();
+      sum += alleleIdxs[0] + alleleIdxs.length + (gt.contains("/") ? 1 : 0);
+    }
+    s_sink += sum;
+  }
+
+  private static void decode(String[] genotypes) {
+    GenotypeDecoder decoder = new GenotypeDecoder();
+    long sum = 0;
+    for (String gt : genotypes) {
+      if (!decoder.decode(gt)) {
+        continue;
+      }
+      sum += decoder.getAllele(0) + decoder.getNumAlleles() + (decoder.isUnphased() ? 1 : 0);
+    }
+    s_sink += sum;
+  }
+
+  private static void checkAllelesWithRegex(String[] alleles) {
+    long sum = 0;
+    for (String allele : alleles) {
+      if (allele.toUpperCase().contains("N")) {
+        sum += 1;
+      } else if (sf_allelePattern.matcher(allele).matches()) {
+        sum += 2;
+      }
+    }
+    s_sink += sum;
+  }
+
+  private static void checkAlleles(String[] alleles) {
+    long sum = 0;
+    for (String allele : alleles) {
+      if (GenotypeDecoder.hasAmbiguousBase(allele)) {
+        sum += 1;
+      } else if (GenotypeDecoder.isBases(allele)) {
+        sum += 2;
+      }
+    }
+    s_sink += sum;
+  }
+
+
+  private static long time(Runnable task) {
+    long start = System.nanoTime();
+    task.run();
+    return System.nanoTime() - start;
+  }
+
+  private static void report(String label, int numValues, long nanos) {
+    double seconds = nanos / 1e9;
+    System.out.println(String.format("%-28s %8.3f s  %,14.0f values/sec", label, seconds, numValues / seconds));
+  }
+}
@@ -0,0 +1,158 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import org.pharmgkb.pharmcat.ParseException;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * JUnit test for {@link GenotypeDecoder}.
+ * <p>
+ * Results are checked against the regex-based decoding that {@link VcfReader} used to do.
+ */
+public class GenotypeDecoderTest {
+  private static final Pattern sf_gtDelimiter = Pattern.compile("[|/]");
+  private static final Pattern sf_noCallPattern = Pattern.compile("^[.|/]+$");
+  private static final Pattern sf_allelePattern = Pattern.compile("^[AaCcGgTt]+$");
+
+
+  @Test
+  public void testDecode() {
+
+    GenotypeDecoder decoder = new GenotypeDecoder();
+    assertTrue(decoder.decode("0/1"));
+    assertEquals(2, decoder.getNumAlleles());
+    assertEquals(0, decoder.getAllele(0));
+    assertEquals(1, decoder.getAllele(1));
+    assertTrue(decoder.isUnphased());
+
+    assertTrue(decoder.decode("12|3"));
+    assertEquals(12, decoder.getAllele(0));
+    assertEquals(3, decoder.getAllele(1));
+    assertFalse(decoder.isUnphased());
+
+    // haploid
+    assertTrue(decoder.decode("1"));
+    assertEquals(1, decoder.getNumAlleles());
+    assertEquals(1, decoder.getAllele(0));
+
+    // triploid
+    assertTrue(decoder.decode("0|1/2"));
+    assertEquals(3, decoder.getNumAlleles());
+    assertEquals(2, decoder.getAllele(2));
+    assertTrue(decoder.isUnphased());
+
+    assertFalse(decoder.decode("."));
+    assertFalse(decoder.decode("./."));
+    assertFalse(decoder.decode(".|."));
+  }
+
+  @Test
+  public void testInvalid() {
+
+    GenotypeDecoder decoder = new GenotypeDecoder();
+    for (String gt : new String[] { "", "0/.", "./1", "/1", "a/1", "-1/0", "0//1", "9999999999/0", "2147483648" }) {
+      try {
+        decoder.decode(gt);
+        fail("Should have failed on '" + gt + "'");
+      } catch (ParseException ex) {
+        // expected
+      }
+    }
+  }
+
+
+  /**
+   * Compares against the old regex-based decoding on lots of random GT values.
+   */
+  @Test
+  public void testDifferential() {
+
+    GenotypeDecoder decoder = new GenotypeDecoder();
+    Random random = new Random(8);
+    String[] tokens = new String[] { "0", "1", "2", "10", "123", ".", "/", "|" };
+    for (int x = 0; x < 100000; x += 1) {
+      StringBuilder builder = new StringBuilder();
+      int length = 1 + random.nextInt(5);
+      for (int y = 0; y < length; y += 1) {
+        builder.append(tokens[random.nextInt(tokens.length)]);
+      }
+      String gt = builder.toString();
+
+      if (gt.endsWith("//") || gt.endsWith("||") || gt.endsWith("/|") || gt.endsWith("|/")) {
+        // old code quietly dropped any number of trailing empty alleles, new code only allows one trailing separator
+        continue;
+      }
+      int[] expected;
+      try {
+        expected = legacyDecode(gt);
+      } catch (NumberFormatException ex) {
+        try {
+          decoder.decode(gt);
+          fail("Should have failed on '" + gt + "'");
+        } catch (ParseException pe) {
+          // expected
+        }
+        continue;
+      }
+
+      boolean isCall = decoder.decode(gt);
+      if (expected == null) {
+        assertFalse(gt, isCall);
+        continue;
+      }
+      assertTrue(gt, isCall);
+      int[] actual = new int[decoder.getNumAlleles()];
+      for (int y = 0; y < actual.length; y += 1) {
+        actual[y] = decoder.getAllele(y);
+      }
+      assertArrayEquals(gt, expected, actual);
+      assertEquals(gt, gt.contains("/"), decoder.isUnphased());
+    }
+  }
+
+  @Test
+  public void testBasesDifferential() {
+
+    Random random = new Random(8);
+    char[] chars = new char[] { 'A', 'C', 'G', 'T', 'a', 'c', 'g', 't', 'N', 'n', '*', '<', '>', '.', 'X' };
+    List<String> alleles = new ArrayList<>(Arrays.asList("", "A", "n", "<DEL>", "*"));
+    for (int x = 0; x < 50000; x += 1) {
+      StringBuilder builder = new StringBuilder();
+      int length = 1 + random.nextInt(6);
+      for (int y = 0; y < length; y += 1) {
+        builder.append(chars[random.nextInt(chars.length)]);
+      }
+      alleles.add(builder.toString());
+    }
+    for (String allele : alleles) {
+      assertEquals(allele, sf_allelePattern.matcher(allele).matches(), GenotypeDecoder.isBases(allele));
+      assertEquals(allele, allele.toUpperCase().contains("N"), GenotypeDecoder.hasAmbiguousBase(allele));
+    }
+  }
+
+
+  /**
+   * The old regex-based decoding.
+   *
+   * @return null if no-call
+   */
+  private static int[] legacyDecode(String gt) {
+    if (sf_noCallPattern.matcher(gt).matches()) {
+      return null;
+    }
+    int[] alleles = sf_gtDelimiter.splitAsStream(gt)
+        .mapToInt(Integer::parseInt)
+        .toArray();
+    if (alleles.length == 0) {
+      throw new NumberFormatException("No alleles");
+    }
+    return alleles;
+  }
+}
@@ -0,0 +1,125 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * JUnit test for {@link LocusIndex}.
+ */
+public class LocusIndexTest {
+
+  @Test
+  public void testNormalizeContig() {
+
+    assertEquals("1", LocusIndex.normalizeContig("chr1"));
+    assertEquals("1", LocusIndex.normalizeContig("1"));
+    assertEquals("X", LocusIndex.normalizeContig("CHRX"));
+    assertEquals("M", LocusIndex.normalizeContig("chrM"));
+    assertEquals("M", LocusIndex.normalizeContig("MT"));
+    assertEquals("M", LocusIndex.normalizeContig("chrMT"));
+    assertEquals("CHR", LocusIndex.normalizeContig("chr"));
+  }
+
+
+  @Test
+  public void testFind() {
+
+    VariantLocus vl1 = new VariantLocus("chr7", 100, "g.100A>G");
+    VariantLocus vl2 = new VariantLocus("chr7", 200, "g.200A>G");
+    VariantLocus vl3 = new VariantLocus("chrM", 100, "g.100A>G");
+    // same position as vl1
+    VariantLocus vl4 = new VariantLocus("7", 100, "g.100A>G");
+    LocusIndex index = new LocusIndex(Arrays.asList(vl1, vl2, vl3, vl4));
+
+    assertEquals(3, index.size());
+    assertEquals(2, index.getNumContigs());
+    assertArrayEquals(new int[] { 100, 200 }, index.getPositions(index.getContigId("7")));
+    assertEquals(-1, index.getContigId("chr8"));
+
+    assertSame(vl1, index.get("7", 100));
+    assertSame(vl1, index.get("chr7", 100));
+    assertSame(vl2, index.get("CHR7", 200));
+    assertSame(vl3, index.get("MT", 100));
+    assertNull(index.get("chr7", 150));
+    assertNull(index.get("chr8", 100));
+    assertNull(index.get("chr7", -1));
+    assertNull(index.get("chr7", 1L << 32 | 100));
+
+    assertEquals("chr7:100", index.getKey(index.find(vl4)));
+    assertEquals("chr7:100", index.getKey(vl4));
+    assertEquals("chr8:5", index.getKey(new VariantLocus("chr8", 5, "g.5A>G")));
+  }
+
+
+  /**
+   * Loci without a GRCh37 position shouldn't leave a contig with no positions behind (e.g. from definitions that aren't
+   * in {@code b37_positions.tsv}).
+   */
+  @Test
+  public void testB37IndexUnmapped() throws Exception {
+
+    VariantLocus mapped = new VariantLocus("chr7", 99672916, "g.99672916T>C");
+    VariantLocus unmapped1 = new VariantLocus("chr7", 12345, "g.12345A>G");
+    VariantLocus unmapped2 = new VariantLocus("chr5", 12345, "g.12345A>G");
+    LocusIndex b37Index = new LocusIndex(Arrays.asList(unmapped2, unmapped1, mapped)).getB37Index();
+
+    assertEquals(1, b37Index.size());
+    assertEquals(1, b37Index.getNumContigs());
+    assertEquals(-1, b37Index.getContigId("chr5"));
+    assertArrayEquals(new int[] { 99270539 }, b37Index.getPositions(b37Index.getContigId("chr7")));
+    assertSame(mapped, b37Index.get("chr7", 99270539));
+
+    String vcf = String.join("\n",
+        "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1",
+        "chr5\t12345\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr7\t99270539\t.\tT\tC\t.\tPASS\t.\tGT\t0/1") + "\n";
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new VcfLineFilter(new ByteArrayInputStream(vcf.getBytes(StandardCharsets.UTF_8)), b37Index),
+        StandardCharsets.UTF_8))) {
+      List<String> lines = new ArrayList<>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.startsWith("#")) {
+          lines.add(line.substring(0, line.indexOf('\t', line.indexOf('\t') + 1)));
+        }
+      }
+      assertEquals(Collections.singletonList("chr7\t99270539"), lines);
+    }
+  }
+
+  /**
+   * Checks the open-addressing table against a {@link HashMap} with lots of collisions.
+   */
+  @Test
+  public void testMany() {
+
+    Random random = new Random(12);
+    Map<String, VariantLocus> expected = new HashMap<>();
+    for (int x = 0; x < 5000; x += 1) {
+      VariantLocus vl = new VariantLocus("chr" + (1 + random.nextInt(22)), random.nextInt(20000),
+          "g.1A>G");
+      expected.putIfAbsent(vl.getVcfChrPosition(), vl);
+    }
+    LocusIndex index = new LocusIndex(expected.values());
+    assertEquals(expected.size(), index.size());
+    for (int chr = 1; chr <= 22; chr += 1) {
+      for (int pos = 0; pos < 20000; pos += 1) {
+        assertSame(expected.get("chr" + chr + ":" + pos), index.get(Integer.toString(chr), pos));
+      }
+    }
+  }
+}
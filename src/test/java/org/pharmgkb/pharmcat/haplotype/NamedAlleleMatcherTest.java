@@ -1,18 +1,36 @@
 package org.pharmgkb.pharmcat.haplotype;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 import javax.annotation.Nonnull;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Sets;
 import org.junit.Test;
 import org.pharmgkb.common.util.PathUtils;
+import org.pharmgkb.pharmcat.definition.model.DefinitionExemption;
 import org.pharmgkb.pharmcat.definition.model.NamedAllele;
 import org.pharmgkb.pharmcat.haplotype.model.DiplotypeMatch;
 import org.pharmgkb.pharmcat.haplotype.model.GeneCall;
+import org.pharmgkb.pharmcat.haplotype.model.HaplotypeMatch;
 import org.pharmgkb.pharmcat.haplotype.model.Result;
 import org.pharmgkb.pharmcat.reporter.model.result.Diplotype;
 import org.pharmgkb.pharmcat.util.DataManager;
@@ -133,6 +151,52 @@ public void testCall() throws Exception {
     assertNotNull(pairs);
     assertEquals(1, pairs.size());
     assertEquals("*1/*2", pairs.iterator().next().getName());
+
+    // permutations only get generated up front when matching with bitsets, but should still be available
+    MatchData matchData = result.getGeneCalls().get(0).getMatchData();
+    assertEquals(CombinationUtil.generatePermutations(matchData.getSampleAlleles()), matchData.getPermutations());
+  }
+
+
+  @Test
+  public void testForSample() {
+
+    Path dir = Paths.get("out");
+    assertEquals(dir.resolve("foo.NA12878.json"), NamedAlleleMatcher.forSample(dir.resolve("foo.json"), "NA12878"));
+    assertEquals(dir.resolve("foo.bar.NA12878.json"),
+        NamedAlleleMatcher.forSample(dir.resolve("foo.bar.json"), "NA12878"));
+    assertEquals(dir.resolve("foo.NA12878"), NamedAlleleMatcher.forSample(dir.resolve("foo"), "NA12878"));
+  }
+
+  @Test
+  public void testCallStream() throws Exception {
+
+    Path vcfFile  = PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/haplotyper.vcf");
+    Path jsonFile = PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/haplotyper.json");
+
+    DefinitionReader definitionReader = new DefinitionReader();
+    definitionReader.read(jsonFile);
+    NamedAlleleMatcher namedAlleleMatcher = new NamedAlleleMatcher(definitionReader);
+
+    Result result;
+    try (InputStream in = Files.newInputStream(vcfFile)) {
+      result = namedAlleleMatcher.call(in, NamedAlleleMatcher.STDIN_NAME);
+    }
+    assertEquals(NamedAlleleMatcher.STDIN_NAME, result.getMetadata().getInputFilename());
+    assertDiplotypePairs(Collections.singletonList("*1/*2"), result);
+
+    // gzipped
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(gzipped)) {
+      Files.copy(vcfFile, out);
+    }
+    try (ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(gzipped.toByteArray()))) {
+      result = namedAlleleMatcher.call(channel, "test");
+      // should not have closed channel
+      assertTrue(channel.isOpen());
+    }
+    assertEquals("test", result.getMetadata().getInputFilename());
+    assertDiplotypePairs(Collections.singletonList("*1/*2"), result);
   }
 
 
@@ -178,4 +242,210 @@ public void testCallDiplotypePath() throws Exception {
     assertEquals(1, pairs.size());
     assertEquals("*1/*2", pairs.get(0).getName());
   }
+
+
+  /**
+   * Makes sure that the default {@link PermutationSearch} and matching all permutations with {@link BitsetMatcher} give
+   * the same results as matching all permutations with regular expressions on all the gene test files.
+   */
+  @Test
+  public void testBitsets() throws Exception {
+
+    DefinitionReader definitionReader = new DefinitionReader();
+    definitionReader.read(DataManager.DEFAULT_DEFINITION_DIR);
+    definitionReader.readExemptions(DataManager.DEFAULT_DEFINITION_DIR.resolve(DataManager.EXEMPTIONS_JSON_FILE_NAME));
+    NamedAlleleMatcher regexMatcher = new NamedAlleleMatcher(definitionReader, true, false)
+        .comparePermutations();
+    NamedAlleleMatcher searchMatcher = new NamedAlleleMatcher(definitionReader, true, false);
+    NamedAlleleMatcher bitsetMatcher = new NamedAlleleMatcher(definitionReader, true, false)
+        .useBitsets();
+
+    for (Path vcfFile : listGeneTestFiles()) {
+      String expected = summarize(regexMatcher.call(vcfFile));
+      assertEquals(vcfFile.toString(), expected, summarize(searchMatcher.call(vcfFile)));
+      assertEquals(vcfFile.toString(), expected, summarize(bitsetMatcher.call(vcfFile)));
+    }
+  }
+
+  /**
+   * Makes sure that only calling top candidates gives the same results as calling everything and keeping the top
+   * scoring diplotypes.
+   */
+  @Test
+  public void testTopCandidates() throws Exception {
+
+    DefinitionReader definitionReader = new DefinitionReader();
+    definitionReader.read(DataManager.DEFAULT_DEFINITION_DIR);
+    NamedAlleleMatcher allMatcher = new NamedAlleleMatcher(definitionReader, true, false);
+    NamedAlleleMatcher topMatcher = new NamedAlleleMatcher(definitionReader, true, true);
+
+    for (Path vcfFile : listGeneTestFiles()) {
+      Result allResult = allMatcher.call(vcfFile);
+      Result topResult = topMatcher.call(vcfFile);
+      for (int x = 0; x < allResult.getGeneCalls().size(); x += 1) {
+        GeneCall geneCall = allResult.getGeneCalls().get(x);
+        DefinitionExemption exemption = definitionReader.getExemption(geneCall.getGene());
+        List<DiplotypeMatch> expected = new ArrayList<>(geneCall.getDiplotypes());
+        if (expected.size() > 1 && (exemption == null || !exemption.isAllHits())) {
+          int topScore = expected.get(0).getScore();
+          expected.removeIf(dm -> dm.getScore() != topScore);
+        }
+        List<DiplotypeMatch> top = new ArrayList<>(topResult.getGeneCalls().get(x).getDiplotypes());
+        assertEquals(vcfFile.toString(), summarize(expected), summarize(top));
+      }
+    }
+  }
+
+  private static String summarize(@Nonnull List<DiplotypeMatch> matches) {
+    return matches.stream()
+        .map(dm -> dm.getName() + " (" + dm.getScore() + ") " + dm.getSequences().stream()
+            .map(Arrays::toString)
+            .sorted()
+            .collect(Collectors.joining(", ")))
+        .collect(Collectors.joining("\n"));
+  }
+
+
+  /**
+   * Makes sure that samples with the same missing positions share haplotypes.
+   */
+  @Test
+  public void testHaplotypeReuse() throws Exception {
+
+    DefinitionReader definitionReader = new DefinitionReader();
+    definitionReader.read(DataManager.DEFAULT_DEFINITION_DIR.resolve("CYP3A5_translation.json"));
+    NamedAlleleMatcher namedAlleleMatcher = new NamedAlleleMatcher(definitionReader);
+
+    List<Result> results = new ArrayList<>();
+    namedAlleleMatcher.callSamples(
+        PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-multisample.vcf"),
+        (sampleId, result) -> results.add(result));
+    assertEquals(3, results.size());
+    List<NamedAllele> haplotypes = results.get(0).getGeneCalls().get(0).getMatchData().getHaplotypes();
+    assertSame(haplotypes, results.get(1).getGeneCalls().get(0).getMatchData().getHaplotypes());
+    assertSame(haplotypes, results.get(2).getGeneCalls().get(0).getMatchData().getHaplotypes());
+    assertDiplotypePairs(Collections.singletonList("*3/*3"), results.get(2));
+  }
+
+
+  /**
+   * Makes sure that calling genes concurrently gives the same results as calling them one at a time.
+   */
+  @Test
+  public void testPool() throws Exception {
+
+    DefinitionReader definitionReader = new DefinitionReader();
+    definitionReader.read(DataManager.DEFAULT_DEFINITION_DIR);
+    definitionReader.readExemptions(DataManager.DEFAULT_DEFINITION_DIR.resolve(DataManager.EXEMPTIONS_JSON_FILE_NAME));
+    NamedAlleleMatcher matcher = new NamedAlleleMatcher(definitionReader, true, false);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      NamedAlleleMatcher poolMatcher = new NamedAlleleMatcher(definitionReader, true, false)
+          .usePool(pool);
+      for (Path vcfFile : listGeneTestFiles()) {
+        Result result = matcher.call(vcfFile);
+        Result poolResult = poolMatcher.call(vcfFile);
+        assertEquals(vcfFile.toString(), summarize(result), summarize(poolResult));
+        assertEquals(vcfFile.toString(), toJson(result), toJson(poolResult));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+
+  /**
+   * Makes sure that calling a gene for a cohort gives the same results as calling samples one at a time.
+   */
+  @Test
+  public void testCohort() throws Exception {
+
+    DefinitionReader definitionReader = new DefinitionReader();
+    definitionReader.read(DataManager.DEFAULT_DEFINITION_DIR);
+    definitionReader.readExemptions(DataManager.DEFAULT_DEFINITION_DIR.resolve(DataManager.EXEMPTIONS_JSON_FILE_NAME));
+    NamedAlleleMatcher matcher = new NamedAlleleMatcher(definitionReader, true, false);
+
+    // more than 64 samples, so that the cohort spans more than one word
+    List<Path> vcfFiles = listGeneTestFiles();
+    List<SortedMap<String, SampleAllele>> samples = new ArrayList<>();
+    List<Result> results = new ArrayList<>();
+    for (Path vcfFile : vcfFiles) {
+      samples.add(matcher.buildVcfReader(vcfFile).getAlleleMap());
+      results.add(matcher.call(vcfFile));
+    }
+    assertTrue(samples.size() > 64);
+
+    for (String gene : definitionReader.getGenes()) {
+      List<List<DiplotypeMatch>> cohortMatches = matcher.callCohort(gene, samples);
+      assertEquals(samples.size(), cohortMatches.size());
+      for (int x = 0; x < samples.size(); x += 1) {
+        GeneCall geneCall = results.get(x).getGeneCalls().stream()
+            .filter(gc -> gc.getGene().equals(gene))
+            .findFirst()
+            .orElse(null);
+        List<DiplotypeMatch> matches = cohortMatches.get(x);
+        if (geneCall == null || matches == null) {
+          assertTrue(matches == null || matches.isEmpty());
+        } else {
+          assertEquals(vcfFiles.get(x) + " " + gene, summarize(new ArrayList<>(geneCall.getDiplotypes())),
+              summarize(matches));
+        }
+      }
+    }
+  }
+
+  private static String toJson(@Nonnull Result result) throws Exception {
+
+    Path jsonFile = Files.createTempFile("pharmcat", ".json");
+    try {
+      new ResultSerializer().toJson(result, jsonFile);
+      // results are built at different times
+      return new String(Files.readAllBytes(jsonFile), StandardCharsets.UTF_8)
+          .replaceFirst("\"timestamp\": \"[^\"]*\"", "");
+    } finally {
+      Files.delete(jsonFile);
+    }
+  }
+
+  private static List<Path> listGeneTestFiles() throws Exception {
+
+    Path dir = PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/cyp2c19/s1s1.vcf").getParent().getParent();
+    List<Path> vcfFiles;
+    try (Stream<Path> stream = Files.walk(dir)) {
+      vcfFiles = stream.filter(f -> f.getParent() != dir && f.toString().endsWith(".vcf"))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+    assertTrue(vcfFiles.size() > 50);
+    return vcfFiles;
+  }
+
+  private static String summarize(@Nonnull Result result) {
+
+    StringBuilder builder = new StringBuilder();
+    for (GeneCall call : result.getGeneCalls()) {
+      builder.append(call.getGene())
+          .append(":\n");
+      for (HaplotypeMatch hm : call.getHaplotypes()) {
+        builder.append("  ")
+            .append(hm.getName())
+            .append(" ")
+            .append(hm.getSequences())
+            .append("\n");
+      }
+      for (DiplotypeMatch dm : call.getDiplotypes()) {
+        builder.append("  ")
+            .append(dm.getName())
+            .append(" (")
+            .append(dm.getScore())
+            .append(") ")
+            .append(dm.getSequences().stream()
+                .map(Arrays::toString)
+                .sorted()
+                .collect(Collectors.joining(", ")))
+            .append("\n");
+      }
+    }
+    return builder.toString();
+  }
 }
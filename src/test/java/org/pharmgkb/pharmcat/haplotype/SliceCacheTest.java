@@ -0,0 +1,113 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.pharmgkb.common.util.PathUtils;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+import org.pharmgkb.pharmcat.haplotype.model.Result;
+import org.pharmgkb.pharmcat.util.DataManager;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * JUnit test for {@link SliceCache}.
+ */
+public class SliceCacheTest {
+
+  @Test
+  public void testReadWrite() throws Exception {
+
+    DefinitionReader definitionReader = new DefinitionReader();
+    definitionReader.read(DataManager.DEFAULT_DEFINITION_DIR.resolve("CYP3A5_translation.json"));
+    NamedAlleleMatcher namedAlleleMatcher = new NamedAlleleMatcher(definitionReader);
+    ImmutableMap<String, VariantLocus> locations = namedAlleleMatcher.getLocationsOfInterest();
+
+    Path tmpDir = Files.createTempDirectory("pharmcat");
+    try {
+      Path vcfFile = tmpDir.resolve("multisample.vcf");
+      Files.copy(PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-multisample.vcf"),
+          vcfFile);
+      Path sliceDir = tmpDir.resolve("slices");
+      SliceCache sliceCache = new SliceCache(sliceDir, locations);
+      assertNull(sliceCache.read(vcfFile));
+
+      Path sliceFile = sliceCache.write(vcfFile);
+      assertEquals(sliceCache.getSliceFile(vcfFile), sliceFile);
+      VcfReader vcfReader = new VcfReader(locations, vcfFile, true);
+      VcfReader sliceReader = sliceCache.read(vcfFile);
+      assertNotNull(sliceReader);
+      assertSameData(vcfReader, sliceReader);
+      // reading just the first sample should give the same data, including the multiple samples warnings
+      VcfReader firstSampleReader = new VcfReader(locations, vcfFile);
+      assertFalse(firstSampleReader.getWarnings().isEmpty());
+      VcfReader firstSampleSliceReader = sliceCache.read(vcfFile, false);
+      assertNotNull(firstSampleSliceReader);
+      assertSameData(firstSampleReader, firstSampleSliceReader);
+
+      // slice for a superset of locations is still usable, but not for a subset
+      ImmutableMap<String, VariantLocus> subset = ImmutableMap.copyOf(locations.entrySet().stream()
+          .limit(3)
+          .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+      SliceCache subsetCache = new SliceCache(sliceDir, subset);
+      assertNotEquals(sliceCache.getHash(), subsetCache.getHash());
+      assertNotNull(subsetCache.read(vcfFile));
+      Files.move(sliceFile, subsetCache.getSliceFile(vcfFile));
+      subsetCache.write(vcfFile);
+      assertNull(sliceCache.read(vcfFile));
+      sliceCache.write(vcfFile);
+
+      // calls should be the same
+      List<Result> vcfResults = new ArrayList<>();
+      namedAlleleMatcher.callSamples(vcfFile, (sampleId, result) -> vcfResults.add(result));
+      Result vcfResult = namedAlleleMatcher.call(vcfFile);
+      List<Result> sliceResults = new ArrayList<>();
+      // delete VCF file to make sure slice gets used
+      Path movedFile = tmpDir.resolve("moved.vcf");
+      Files.move(vcfFile, movedFile);
+      NamedAlleleMatcher sliceMatcher = new NamedAlleleMatcher(definitionReader)
+          .useSlices(sliceDir);
+      sliceMatcher.callSamples(vcfFile, (sampleId, result) -> sliceResults.add(result));
+      Result sliceResult = sliceMatcher.call(vcfFile);
+      assertEquals(vcfResult.getMetadata().getSampleId(), sliceResult.getMetadata().getSampleId());
+      assertEquals(vcfResult.getVcfWarnings().toString(), sliceResult.getVcfWarnings().toString());
+      assertEquals(vcfResults.size(), sliceResults.size());
+      NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*7"), sliceResults.get(1));
+      NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*3/*3"), sliceResults.get(2));
+
+      // stale slice is ignored
+      Files.move(movedFile, vcfFile);
+      assertNotNull(sliceCache.read(vcfFile));
+      Files.setLastModifiedTime(vcfFile, FileTime.fromMillis(Files.getLastModifiedTime(vcfFile).toMillis() + 5000));
+      assertNull(sliceCache.read(vcfFile));
+
+    } finally {
+      FileUtils.deleteDirectory(tmpDir.toFile());
+    }
+  }
+
+  private static void assertSameData(VcfReader expected, VcfReader actual) {
+
+    assertEquals(expected.getSamples(), actual.getSamples());
+    assertEquals(expected.getGenomeBuild(), actual.getGenomeBuild());
+    for (String sampleId : expected.getSamples()) {
+      assertEquals(expected.getAlleleMap(sampleId).toString(), actual.getAlleleMap(sampleId).toString());
+      assertEquals(expected.getWarnings(sampleId), actual.getWarnings(sampleId));
+      for (String chrPos : expected.getAlleleMap(sampleId).keySet()) {
+        assertEquals(expected.getAlleleMap(sampleId).get(chrPos).getVcfAlleles(),
+            actual.getAlleleMap(sampleId).get(chrPos).getVcfAlleles());
+        assertEquals(expected.getAlleleMap(sampleId).get(chrPos).isPhased(),
+            actual.getAlleleMap(sampleId).get(chrPos).isPhased());
+      }
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * JUnit test for {@link VcfLineFilter}.
+ */
+public class VcfLineFilterTest {
+  private static final ImmutableMap<String, VariantLocus> sf_locations = ImmutableMap.of(
+      "chr2:100", new VariantLocus("chr2", 100, "g.100A>G"),
+      "chr2:200", new VariantLocus("chr2", 200, "g.200A>G"),
+      "chr7:50", new VariantLocus("chr7", 50, "g.50A>G")
+  );
+
+
+  @Test
+  public void testSorted() throws Exception {
+
+    VcfLineFilter filter = filter(
+        "##fileformat=VCFv4.1",
+        "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1",
+        "chr1\t100\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr2\t100\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr2\t150\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr2\t200\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr2\t250\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr3\t100\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr7\t50\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr7\t60\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr8\t100\t.\tA\tG\t.\tPASS\t.\tGT\t0/1"
+    );
+    assertEquals(Arrays.asList("chr2:100", "chr2:200", "chr7:50"), readPositions(filter));
+    assertTrue(filter.isSorted());
+    assertTrue(filter.stoppedEarly());
+    assertEquals(4, filter.getNumSkipped());
+  }
+
+
+  @Test
+  public void testUnsorted() throws Exception {
+
+    VcfLineFilter filter = filter(
+        "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1",
+        "chr2\t100\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr7\t50\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr2\t300\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr2\t200\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr1\t100\t.\tA\tG\t.\tPASS\t.\tGT\t0/1"
+    );
+    assertEquals(Arrays.asList("chr2:100", "chr7:50", "chr2:200"), readPositions(filter));
+    assertFalse(filter.isSorted());
+    assertFalse(filter.stoppedEarly());
+    assertEquals(2, filter.getNumSkipped());
+  }
+
+
+  @Test
+  public void testMissingContig() throws Exception {
+
+    // never see chr7, so have to read everything
+    VcfLineFilter filter = filter(
+        "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1",
+        "chr2\t200\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr2\t300\t.\tA\tG\t.\tPASS\t.\tGT\t0/1",
+        "chr9\t100\t.\tA\tG\t.\tPASS\t.\tGT\t0/1"
+    );
+    assertEquals(Arrays.asList("chr2:200"), readPositions(filter));
+    assertTrue(filter.isSorted());
+    assertFalse(filter.stoppedEarly());
+  }
+
+
+  @Test
+  public void testReferenceBlocks() throws Exception {
+
+    VcfLineFilter filter = filter(
+        "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1",
+        "chr1\t1\t.\tN\t<NON_REF>\t.\t.\tEND=1000\tGT\t0/0",
+        "chr2\t1\t.\tA\t<NON_REF>\t.\t.\tEND=99\tGT\t0/0",
+        "chr2\t95\t.\tA\t<NON_REF>\t.\t.\tDP=5;END=100;X=1\tGT\t0/0",
+        "chr2\t101\t.\tA\t<NON_REF>\t.\t.\tXEND=500\tGT\t0/0",
+        "chr2\t150\t.\tA\t<NON_REF>\t.\t.\tEND=300\tGT\t0/0",
+        "chr7\t1\t.\tA\t<NON_REF>\t.\t.\tEND=49",
+        "chr7\t49\t.\tA\t<NON_REF>\t.\t.\tEND=60"
+    );
+    assertEquals(Arrays.asList("chr2:95", "chr2:150", "chr7:49"), readPositions(filter));
+    assertEquals(4, filter.getNumSkipped());
+  }
+
+
+  @Test
+  public void testLongLines() throws Exception {
+
+    // lines longer than the read buffer
+    StringBuilder samples = new StringBuilder();
+    for (int x = 0; x < 50000; x += 1) {
+      samples.append("\t0/1");
+    }
+    VcfLineFilter filter = filter(
+        "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT" + samples.toString().replace("0/1", "S"),
+        "chr2\t99\t.\tA\tG\t.\tPASS\t.\tGT" + samples,
+        "chr2\t100\t.\tA\tG\t.\tPASS\t.\tGT" + samples,
+        "chr2\t101\t.\tA\tG\t.\tPASS\t.\tGT" + samples,
+        "chr2\t200\t.\tA\tG\t.\tPASS\t.\tGT" + samples
+    );
+    assertEquals(Arrays.asList("chr2:100", "chr2:200"), readPositions(filter));
+    assertEquals(2, filter.getNumSkipped());
+  }
+
+
+  private static VcfLineFilter filter(String... lines) {
+    byte[] data = (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8);
+    return new VcfLineFilter(new ByteArrayInputStream(data), new LocusIndex(sf_locations.values()));
+  }
+
+  private static List<String> readPositions(VcfLineFilter filter) throws Exception {
+
+    List<String> positions = new ArrayList<>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(filter, StandardCharsets.UTF_8));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (!line.startsWith("#")) {
+        String[] data = line.split("\t");
+        positions.add(data[0] + ":" + data[1]);
+      }
+    }
+    return positions;
+  }
+}
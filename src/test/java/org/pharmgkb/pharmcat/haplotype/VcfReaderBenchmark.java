@@ -0,0 +1,190 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.pharmgkb.common.io.util.CliHelper;
+import org.pharmgkb.parser.vcf.VcfParser;
+import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+import org.pharmgkb.pharmcat.util.DataManager;
+
+
+/**
+ * Measures how fast {@link VcfReader} gets through a large, WGS-like VCF file, compared to running every line through
+ * {@link VcfParser} (which is what {@link VcfReader} used to do).
+ * <p>
+ * This is not a unit test.  Run it from the command line.
+ */
+public class VcfReaderBenchmark {
+  private static final String[] sf_contigs = new String[] {
+      "chr1", "chr2", "chr3", "chr4", "chr5", "chr6", "chr7", "chr8", "chr9", "chr10", "chr11", "chr12", "chr13",
+      "chr14", "chr15", "chr16", "chr17", "chr18", "chr19", "chr20", "chr21", "chr22", "chrX", "chrY"
+  };
+  private final NamedAlleleMatcher m_namedAlleleMatcher;
+  private final Set<String> m_positionKeys = new HashSet<>();
+  private final SortedMap<String, TreeSet<Integer>> m_positions = new TreeMap<>();
+
+
+  public static void main(String[] args) {
+    CliHelper cliHelper = new CliHelper(MethodHandles.lookup().lookupClass())
+        .addOption("n", "num-lines", "number of VCF data lines to generate (defaults to 2,000,000)", false, "n")
+        .addOption("s", "num-samples", "number of samples to generate (defaults to 1)", false, "s")
+        .addOption("r", "repeat", "number of times to repeat each measurement (defaults to 3)", false, "r");
+
+    try {
+      if (!cliHelper.parse(args)) {
+        System.exit(1);
+      }
+      int numLines = cliHelper.hasOption("n") ? Integer.parseInt(cliHelper.getValue("n")) : 2000000;
+      int numSamples = cliHelper.hasOption("s") ? Integer.parseInt(cliHelper.getValue("s")) : 1;
+      int repeat = cliHelper.hasOption("r") ? Integer.parseInt(cliHelper.getValue("r")) : 3;
+
+      new VcfReaderBenchmark().execute(numLines, numSamples, repeat);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+    }
+  }
+
+
+  private VcfReaderBenchmark() throws IOException {
+
+    DefinitionReader definitionReader = new DefinitionReader();
+    definitionReader.read(DataManager.DEFAULT_DEFINITION_DIR);
+    m_namedAlleleMatcher = new NamedAlleleMatcher(definitionReader);
+    for (String gene : definitionReader.getGenes()) {
+      for (VariantLocus vl : definitionReader.getPositions(gene)) {
+        m_positionKeys.add(vl.getVcfChrPosition());
+        m_positions.computeIfAbsent(vl.getChromosome(), c -> new TreeSet<>())
+            .add(vl.getVcfPosition());
+      }
+    }
+  }
+
+
+  private void execute(int numLines, int numSamples, int repeat) throws IOException {
+
+    Path dir = Files.createTempDirectory("pharmcat");
+    try {
+      Path sortedFile = dir.resolve("sorted.vcf");
+      writeVcf(sortedFile, numLines, numSamples, false);
+      Path unsortedFile = dir.resolve("unsorted.vcf");
+      writeVcf(unsortedFile, numLines, numSamples, true);
+
+      System.out.println("Lines: " + numLines + ", samples: " + numSamples);
+      System.out.println("Positions of interest found: " +
+          m_namedAlleleMatcher.buildVcfReader(sortedFile).getAlleleMap().size() + " (sorted), " +
+          m_namedAlleleMatcher.buildVcfReader(unsortedFile).getAlleleMap().size() + " (unsorted)");
+      for (int x = 0; x < repeat; x += 1) {
+        System.out.println("Run " + (x + 1));
+        report("  full parse", numLines, time(() -> parseAll(sortedFile)));
+        report("  VcfReader (sorted)", numLines, time(() -> m_namedAlleleMatcher.buildVcfReader(sortedFile)));
+        report("  VcfReader (unsorted)", numLines, time(() -> m_namedAlleleMatcher.buildVcfReader(unsortedFile)));
+      }
+    } finally {
+      for (Path file : Files.list(dir).toArray(Path[]::new)) {
+        Files.delete(file);
+      }
+      Files.delete(dir);
+    }
+  }
+
+
+  /**
+   * Runs every line through {@link VcfParser}, doing the same lookup {@link VcfReader#parseLine} does.
+   */
+  private void parseAll(Path vcfFile) throws IOException {
+
+    int[] found = new int[1];
+    try (VcfParser parser = new VcfParser.Builder()
+        .fromFile(vcfFile)
+        .parseWith((metadata, position, sampleData) -> {
+          if (m_positionKeys.contains(position.getChromosome() + ":" + position.getPosition())) {
+            found[0] += 1;
+          }
+        })
+        .build()) {
+      parser.parse();
+    }
+  }
+
+
+  /**
+   * Writes a VCF file with data lines spread evenly over all the main contigs, including all positions of interest.
+   *
+   * @param unsorted if true, half of the first contig with positions of interest is moved to the end of the file so
+   * that nothing can be skipped based on sort order
+   */
+  private void writeVcf(Path file, int numLines, int numSamples, boolean unsorted) throws IOException {
+
+    StringBuilder genotypes = new StringBuilder();
+    StringBuilder header = new StringBuilder("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT");
+    for (int x = 0; x < numSamples; x += 1) {
+      genotypes.append("\t0/1");
+      header.append("\tS").append(x);
+    }
+    int linesPerContig = numLines / sf_contigs.length;
+
+    List<String> moved = new ArrayList<>();
+    try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+      writer.write("##fileformat=VCFv4.1");
+      writer.newLine();
+      writer.write("##FORMAT=<ID=GT,Number=1,Type=String,Description=\"Genotype\">");
+      writer.newLine();
+      writer.write(header.toString());
+      writer.newLine();
+
+      String movedContig = unsorted ? m_positions.firstKey() : null;
+      for (String contig : sf_contigs) {
+        TreeSet<Integer> targets = m_positions.getOrDefault(contig, new TreeSet<>());
+        // spread lines around the positions of interest
+        int last = targets.isEmpty() ? 100000000 : targets.last() * 2;
+        int step = Math.max(1, last / linesPerContig);
+        List<Integer> positions = new ArrayList<>();
+        for (int x = 1; x <= linesPerContig; x += 1) {
+          positions.add(x * step);
+        }
+        positions.addAll(targets);
+        Integer[] sorted = new TreeSet<>(positions).toArray(new Integer[0]);
+
+        for (int x = 0; x < sorted.length; x += 1) {
+          String line = contig + "\t" + sorted[x] + "\t.\tA\tG\t.\tPASS\t.\tGT" + genotypes;
+          if (contig.equals(movedContig) && x >= sorted.length / 2) {
+            moved.add(line);
+          } else {
+            writer.write(line);
+            writer.newLine();
+          }
+        }
+      }
+      for (String line : moved) {
+        writer.write(line);
+        writer.newLine();
+      }
+    }
+  }
+
+
+  private interface Task {
+    void run() throws IOException;
+  }
+
+  private static long time(Task task) throws IOException {
+    long start = System.nanoTime();
+    task.run();
+    return System.nanoTime() - start;
+  }
+
+  private static void report(String label, int numLines, long nanos) {
+    double seconds = nanos / 1e9;
+    System.out.println(String.format("%-24s %8.3f s  %,14.0f lines/sec", label, seconds, numLines / seconds));
+  }
+}
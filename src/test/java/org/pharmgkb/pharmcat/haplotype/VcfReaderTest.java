@@ -1,10 +1,23 @@
 package org.pharmgkb.pharmcat.haplotype;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import com.google.common.collect.ImmutableMap;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.pharmgkb.common.util.PathUtils;
 import org.pharmgkb.pharmcat.definition.model.VariantLocus;
+import org.pharmgkb.pharmcat.haplotype.model.Result;
+import org.pharmgkb.pharmcat.util.DataManager;
+import org.pharmgkb.pharmcat.util.VcfSidecarIndex;
 
 import static org.junit.Assert.*;
 
@@ -15,6 +28,17 @@
  * @author Mark Woon
  */
 public class VcfReaderTest {
+  private static DefinitionReader s_definitionReader;
+  private static NamedAlleleMatcher s_namedAlleleMatcher;
+
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    s_definitionReader = new DefinitionReader();
+    s_definitionReader.read(DataManager.DEFAULT_DEFINITION_DIR.resolve("CYP3A5_translation.json"));
+    s_namedAlleleMatcher = new NamedAlleleMatcher(s_definitionReader);
+  }
+
 
   @Test
   public void testPhasing() throws Exception {
@@ -34,4 +58,485 @@ public void testPhasing() throws Exception {
       }
     }
   }
+
+
+  @Test
+  public void testTabixIndexed() throws Exception {
+    assertIndexedRead(PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-indexed.vcf.gz"));
+  }
+
+  @Test
+  public void testCsiIndexed() throws Exception {
+    assertIndexedRead(PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-csi.vcf.gz"));
+  }
+
+  /**
+   * Reads the given bgzipped VCF file with and without its index and makes sure we get the same data.
+   */
+  private void assertIndexedRead(Path vcfFile) throws Exception {
+
+    VcfReader indexedReader = s_namedAlleleMatcher.buildVcfReader(vcfFile);
+    assertEquals(s_definitionReader.getPositions("CYP3A5").length, indexedReader.getAlleleMap().size());
+    // only targets should have been read, so there shouldn't be any warnings
+    assertEquals(0, indexedReader.getWarnings().size());
+
+    Path unindexedFile = Files.createTempDirectory("pharmcat").resolve("unindexed.vcf.gz");
+    Files.copy(vcfFile, unindexedFile);
+    unindexedFile.toFile().deleteOnExit();
+    unindexedFile.getParent().toFile().deleteOnExit();
+    VcfReader scanReader = s_namedAlleleMatcher.buildVcfReader(unindexedFile);
+    assertEquals(scanReader.getAlleleMap().keySet(), indexedReader.getAlleleMap().keySet());
+    for (String chrPos : scanReader.getAlleleMap().keySet()) {
+      assertEquals(scanReader.getAlleleMap().get(chrPos).toString(), indexedReader.getAlleleMap().get(chrPos).toString());
+    }
+
+    // inflated on multiple threads
+    VcfReader parallelReader;
+    long minFileSize = VcfReader.PARALLEL_INFLATE_MIN_FILE_SIZE;
+    try {
+      VcfReader.PARALLEL_INFLATE_MIN_FILE_SIZE = 0;
+      parallelReader = s_namedAlleleMatcher.buildVcfReader(unindexedFile);
+    } finally {
+      VcfReader.PARALLEL_INFLATE_MIN_FILE_SIZE = minFileSize;
+    }
+    assertEquals(scanReader.getAlleleMap().toString(), parallelReader.getAlleleMap().toString());
+    assertEquals(scanReader.getWarnings(), parallelReader.getWarnings());
+
+    Result result = s_namedAlleleMatcher.call(vcfFile);
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*7"), result);
+  }
+
+
+  @Test
+  public void testMultiSample() throws Exception {
+
+    Path vcfFile = PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-multisample.vcf");
+
+    VcfReader reader = s_namedAlleleMatcher.buildVcfReader(vcfFile, true);
+    assertEquals(Arrays.asList("S1", "S2", "S3"), reader.getSamples());
+    assertEquals(reader.getAlleleMap("S1").keySet(), reader.getAlleleMap("S3").keySet());
+    assertEquals("TA", reader.getAlleleMap("S2").get("chr7:99652770").getAllele2());
+    assertEquals("C", reader.getAlleleMap("S3").get("chr7:99672916").getAllele1());
+
+    List<String> samples = new ArrayList<>();
+    List<Result> results = new ArrayList<>();
+    s_namedAlleleMatcher.callSamples(vcfFile, (sampleId, result) -> {
+      samples.add(sampleId);
+      results.add(result);
+    });
+    assertEquals(Arrays.asList("S1", "S2", "S3"), samples);
+    for (int x = 0; x < samples.size(); x += 1) {
+      assertEquals(samples.get(x), results.get(x).getMetadata().getSampleId());
+    }
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*1"), results.get(0));
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*7"), results.get(1));
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*3/*3"), results.get(2));
+
+    // single-sample mode should only call the first sample
+    Result result = s_namedAlleleMatcher.call(vcfFile);
+    assertNull(result.getMetadata().getSampleId());
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*1"), result);
+  }
+
+
+  /**
+   * VCF files that use "7" instead of "chr7" should still match the allele definitions.
+   */
+  @Test
+  public void testContigNaming() throws Exception {
+
+    Path vcfFile = PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-multisample.vcf");
+    Path renamedFile = Files.createTempFile("pharmcat", ".vcf");
+    renamedFile.toFile().deleteOnExit();
+    Files.write(renamedFile, new String(Files.readAllBytes(vcfFile), StandardCharsets.UTF_8)
+        .replace("chr7", "7")
+        .getBytes(StandardCharsets.UTF_8));
+
+    VcfReader reader = s_namedAlleleMatcher.buildVcfReader(vcfFile, true);
+    VcfReader renamedReader = s_namedAlleleMatcher.buildVcfReader(renamedFile, true);
+    assertFalse(reader.getAlleleMap("S1").isEmpty());
+    for (String sampleId : reader.getSamples()) {
+      assertEquals(reader.getAlleleMap(sampleId).toString(), renamedReader.getAlleleMap(sampleId).toString());
+    }
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*1"), s_namedAlleleMatcher.call(renamedFile));
+  }
+
+
+  @Test
+  public void testSampleSubset() throws Exception {
+
+    Path vcfFile = PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-bcf.vcf");
+    Path bcfFile = PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest.bcf");
+    VcfReader allReader = s_namedAlleleMatcher.buildVcfReader(vcfFile, true);
+    List<VcfReader> readers = Arrays.asList(
+        s_namedAlleleMatcher.buildVcfReader(vcfFile, Arrays.asList("S4", "S2")),
+        s_namedAlleleMatcher.buildVcfReader(vcfFile, new int[] { 3, 1 }),
+        s_namedAlleleMatcher.buildVcfReader(bcfFile, Arrays.asList("S4", "S2")),
+        s_namedAlleleMatcher.buildVcfReader(bcfFile, new int[] { 1, 3 })
+    );
+    for (VcfReader reader : readers) {
+      // samples are always in file order
+      assertEquals(Arrays.asList("S2", "S4"), reader.getSamples());
+      for (String sampleId : reader.getSamples()) {
+        assertEquals(allReader.getAlleleMap(sampleId).toString(), reader.getAlleleMap(sampleId).toString());
+        assertEquals(allReader.getWarnings(sampleId), reader.getWarnings(sampleId));
+      }
+    }
+
+    try {
+      s_namedAlleleMatcher.buildVcfReader(vcfFile, Collections.singletonList("S5"));
+      fail("Should have failed on unknown sample");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+
+    List<String> samples = new ArrayList<>();
+    List<Result> results = new ArrayList<>();
+    s_namedAlleleMatcher.callSamples(PathUtils.getPathToResource(
+        "org/pharmgkb/pharmcat/haplotype/VcfReaderTest-multisample.vcf"), Collections.singletonList("S3"),
+        (sampleId, result) -> {
+          samples.add(sampleId);
+          results.add(result);
+        });
+    assertEquals(Collections.singletonList("S3"), samples);
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*3/*3"), results.get(0));
+  }
+
+
+  @Test
+  public void testBcf() throws Exception {
+
+    Path bcfFile = PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest.bcf");
+
+    // same data as VCF
+    VcfReader vcfReader = s_namedAlleleMatcher.buildVcfReader(
+        PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-bcf.vcf"), true);
+    VcfReader bcfReader = s_namedAlleleMatcher.buildVcfReader(bcfFile, true);
+    assertBcfRead(vcfReader, bcfReader);
+    assertEquals("hg38", bcfReader.getGenomeBuild());
+    // S4 has a no-call, a phased call, a haploid call and a multi-allelic call
+    assertFalse(bcfReader.getAlleleMap("S4").containsKey("chr7:99652613"));
+    assertTrue(bcfReader.getAlleleMap("S4").get("chr7:99660516").isPhased());
+    assertNull(bcfReader.getAlleleMap("S4").get("chr7:99665212").getAllele2());
+    assertEquals("G", bcfReader.getAlleleMap("S4").get("chr7:99672916").getAllele1());
+    assertEquals("C", bcfReader.getAlleleMap("S4").get("chr7:99672916").getAllele2());
+
+    // without index
+    Path unindexedFile = Files.createTempDirectory("pharmcat").resolve("unindexed.bcf");
+    Files.copy(bcfFile, unindexedFile);
+    unindexedFile.toFile().deleteOnExit();
+    unindexedFile.getParent().toFile().deleteOnExit();
+    assertBcfRead(vcfReader, s_namedAlleleMatcher.buildVcfReader(unindexedFile, true));
+    long minFileSize = VcfReader.PARALLEL_INFLATE_MIN_FILE_SIZE;
+    try {
+      VcfReader.PARALLEL_INFLATE_MIN_FILE_SIZE = 0;
+      assertBcfRead(vcfReader, s_namedAlleleMatcher.buildVcfReader(unindexedFile, true));
+    } finally {
+      VcfReader.PARALLEL_INFLATE_MIN_FILE_SIZE = minFileSize;
+    }
+
+    List<Result> results = new ArrayList<>();
+    s_namedAlleleMatcher.callSamples(bcfFile, (sampleId, result) -> results.add(result));
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*1"), results.get(0));
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*7"), results.get(1));
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*3/*3"), results.get(2));
+
+    // single-sample mode
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*1"), s_namedAlleleMatcher.call(bcfFile));
+  }
+
+  private void assertBcfRead(VcfReader vcfReader, VcfReader bcfReader) {
+
+    assertEquals(Arrays.asList("S1", "S2", "S3", "S4"), bcfReader.getSamples());
+    for (String sampleId : vcfReader.getSamples()) {
+      assertEquals(vcfReader.getAlleleMap(sampleId).toString(), bcfReader.getAlleleMap(sampleId).toString());
+      assertEquals(vcfReader.getWarnings(sampleId), bcfReader.getWarnings(sampleId));
+    }
+  }
+
+
+  @Test
+  public void testBcfGenotypeWidths() {
+
+    // INT8 (type 1), INT16 (type 2) and INT32 (type 3): 0|1, missing, ./. and haploid (padded with end-of-vector)
+    assertBcfGenotypes(1, ByteBuffer.allocate(8).put(0, (byte)2).put(1, (byte)5)
+        .put(2, Byte.MIN_VALUE).put(3, (byte)(Byte.MIN_VALUE + 1))
+        .put(4, (byte)0).put(5, (byte)0)
+        .put(6, (byte)4).put(7, (byte)(Byte.MIN_VALUE + 1)));
+    assertBcfGenotypes(2, ByteBuffer.allocate(16).putShort(0, (short)2).putShort(2, (short)5)
+        .putShort(4, Short.MIN_VALUE).putShort(6, (short)(Short.MIN_VALUE + 1))
+        .putShort(8, (short)0).putShort(10, (short)0)
+        .putShort(12, (short)4).putShort(14, (short)(Short.MIN_VALUE + 1)));
+    assertBcfGenotypes(3, ByteBuffer.allocate(32).putInt(0, 2).putInt(4, 5)
+        .putInt(8, Integer.MIN_VALUE).putInt(12, Integer.MIN_VALUE + 1)
+        .putInt(16, 0).putInt(20, 0)
+        .putInt(24, 4).putInt(28, Integer.MIN_VALUE + 1));
+  }
+
+  private static void assertBcfGenotypes(int type, ByteBuffer buffer) {
+
+    int size = buffer.capacity() / 8;
+    String[] expected = new String[] { "0|1", ".", "./.", "1" };
+    for (int x = 0; x < expected.length; x += 1) {
+      buffer.position(x * 2 * size);
+      assertEquals("type " + type, expected[x], BcfReader.readGenotype(buffer, type, 2));
+    }
+  }
+
+  @Test
+  public void testSplitFiles() throws Exception {
+
+    Path vcfFile = PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-bcf.vcf");
+
+    // split by chromosome
+    List<String> header = new ArrayList<>();
+    Map<String, List<String>> contigLines = new TreeMap<>();
+    for (String line : Files.readAllLines(vcfFile)) {
+      if (line.startsWith("#")) {
+        header.add(line);
+      } else {
+        contigLines.computeIfAbsent(line.substring(0, line.indexOf('\t')), c -> new ArrayList<>())
+            .add(line);
+      }
+    }
+    assertEquals(3, contigLines.size());
+    Path dir = Files.createTempDirectory("pharmcat");
+    dir.toFile().deleteOnExit();
+    List<Path> files = new ArrayList<>();
+    for (String contig : contigLines.keySet()) {
+      // only declare the contig that's in the file
+      List<String> lines = new ArrayList<>();
+      for (String line : header) {
+        if (!line.startsWith("##contig=") || line.startsWith("##contig=<ID=" + contig + ",")) {
+          lines.add(line);
+        }
+      }
+      lines.addAll(contigLines.get(contig));
+      if (!contig.equals("chr7")) {
+        // would blow up if read
+        lines.add(contig + "\tbad\t.\tA\tG\t.\tPASS\t.\tGT\t0/1");
+      }
+      Path file = dir.resolve(contig + ".vcf");
+      Files.write(file, lines);
+      file.toFile().deleteOnExit();
+      files.add(file);
+    }
+
+    VcfReader wholeReader = s_namedAlleleMatcher.buildVcfReader(vcfFile);
+    VcfReader splitReader = s_namedAlleleMatcher.buildVcfReader(files);
+    assertEquals(wholeReader.getSamples(), splitReader.getSamples());
+    assertEquals(wholeReader.getAlleleMap().toString(), splitReader.getAlleleMap().toString());
+    assertEquals(wholeReader.getWarnings(), splitReader.getWarnings());
+    assertEquals("hg38", splitReader.getGenomeBuild());
+
+    Result result = s_namedAlleleMatcher.call(dir);
+    assertEquals(PathUtils.getFilename(dir), result.getMetadata().getInputFilename());
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*1"), result);
+
+    // inconsistent assemblies
+    Path otherFile = dir.resolve("other.vcf");
+    otherFile.toFile().deleteOnExit();
+    List<String> lines = new ArrayList<>();
+    for (String line : header) {
+      lines.add(line.replace("assembly=hg38", "assembly=hg19"));
+    }
+    lines.addAll(contigLines.get("chr7"));
+    Files.write(otherFile, lines);
+    try {
+      s_namedAlleleMatcher.buildVcfReader(Arrays.asList(dir.resolve("chr7.vcf"), otherFile));
+      fail("Should have failed on different assemblies");
+    } catch (IllegalStateException ex) {
+      assertTrue(ex.getMessage().contains("different assemblies"));
+    }
+  }
+
+
+  /**
+   * Split files can hold more than one contig, so a file shouldn't get skipped just because its first data line isn't
+   * on a contig with positions of interest.
+   */
+  @Test
+  public void testSplitFilesWithMultipleContigs() throws Exception {
+
+    Path vcfFile = PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-bcf.vcf");
+
+    // chr1 + chr7 in one file, chr10 in the other
+    List<String> firstLines = new ArrayList<>();
+    List<String> secondLines = new ArrayList<>();
+    for (String line : Files.readAllLines(vcfFile)) {
+      if (line.startsWith("#")) {
+        firstLines.add(line);
+        secondLines.add(line);
+      } else if (line.startsWith("chr10\t")) {
+        secondLines.add(line);
+      } else {
+        firstLines.add(line);
+      }
+    }
+    Path dir = Files.createTempDirectory("pharmcat");
+    dir.toFile().deleteOnExit();
+    Path firstFile = dir.resolve("chr1_chr7.vcf");
+    Files.write(firstFile, firstLines);
+    firstFile.toFile().deleteOnExit();
+    Path secondFile = dir.resolve("chr10.vcf");
+    Files.write(secondFile, secondLines);
+    secondFile.toFile().deleteOnExit();
+
+    VcfReader wholeReader = s_namedAlleleMatcher.buildVcfReader(vcfFile);
+    VcfReader splitReader = s_namedAlleleMatcher.buildVcfReader(Arrays.asList(firstFile, secondFile));
+    assertFalse(wholeReader.getAlleleMap().isEmpty());
+    assertEquals(wholeReader.getAlleleMap().toString(), splitReader.getAlleleMap().toString());
+    assertEquals(wholeReader.getWarnings(), splitReader.getWarnings());
+    NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*1/*1"), s_namedAlleleMatcher.call(dir));
+  }
+
+  @Test
+  public void testGvcf() throws Exception {
+
+    // S3 is the same sample as in the gVCF files, with every position on its own line
+    VcfReader allSitesReader = s_namedAlleleMatcher.buildVcfReader(
+        PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-multisample.vcf"), true);
+    Map<String, SampleAllele> expected = allSitesReader.getAlleleMap("S3");
+
+    for (String file : new String[] { "VcfReaderTest-gvcf.vcf", "VcfReaderTest-gvcf.bcf" }) {
+      Path gvcfFile = PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/" + file);
+      VcfReader reader = s_namedAlleleMatcher.buildVcfReader(gvcfFile);
+      Map<String, SampleAllele> alleleMap = reader.getAlleleMap();
+      for (VariantLocus vl : s_definitionReader.getPositions("CYP3A5")) {
+        String chrPos = vl.getVcfChrPosition();
+        if (chrPos.equals("chr7:99665237")) {
+          // in no-call block
+          assertFalse(file, alleleMap.containsKey(chrPos));
+          continue;
+        }
+        assertTrue(file + " " + chrPos, alleleMap.containsKey(chrPos));
+        SampleAllele actualAllele = alleleMap.get(chrPos).forVariant(vl);
+        SampleAllele expectedAllele = expected.get(chrPos).forVariant(vl);
+        assertEquals(file + " " + chrPos, expectedAllele.getAllele1(), actualAllele.getAllele1());
+        assertEquals(file + " " + chrPos, expectedAllele.getAllele2(), actualAllele.getAllele2());
+        assertTrue(actualAllele.isPhased());
+      }
+
+      Result result = s_namedAlleleMatcher.call(gvcfFile);
+      NamedAlleleMatcherTest.assertDiplotypePairs(Arrays.asList("*3/*3"), result);
+    }
+  }
+
+
+  @Test
+  public void testParallel() throws Exception {
+
+    // add some duplicates: S1 has a no-call before a valid entry, and S2 has a valid entry before different ones
+    Path vcfFile = Files.createTempFile("pharmcat", ".vcf");
+    vcfFile.toFile().deleteOnExit();
+    List<String> lines = new ArrayList<>(Files.readAllLines(
+        PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-multisample.vcf")));
+    lines.add(8, "chr7\t99652770\trs41303343\tT\tTA\t.\tPASS\t.\tGT\t./.\t0/1\t0/0");
+    lines.add("chr7\t99652770\trs41303343\tT\tTA\t.\tPASS\t.\tGT\t1/1\t1/1\t0/0");
+    Files.write(vcfFile, lines);
+
+    VcfReader sequentialReader = s_namedAlleleMatcher.buildVcfReader(vcfFile, true);
+    VcfReader parallelReader;
+    long minFileSize = VcfReader.PARALLEL_MIN_FILE_SIZE;
+    long chunkSize = VcfReader.PARALLEL_CHUNK_SIZE;
+    try {
+      // one line per chunk
+      VcfReader.PARALLEL_MIN_FILE_SIZE = 0;
+      VcfReader.PARALLEL_CHUNK_SIZE = 1;
+      parallelReader = s_namedAlleleMatcher.buildVcfReader(vcfFile, true);
+    } finally {
+      VcfReader.PARALLEL_MIN_FILE_SIZE = minFileSize;
+      VcfReader.PARALLEL_CHUNK_SIZE = chunkSize;
+    }
+
+    assertEquals(sequentialReader.getSamples(), parallelReader.getSamples());
+    for (String sampleId : sequentialReader.getSamples()) {
+      assertEquals(sequentialReader.getAlleleMap(sampleId).toString(), parallelReader.getAlleleMap(sampleId).toString());
+      assertEquals(sequentialReader.getWarnings(sampleId), parallelReader.getWarnings(sampleId));
+    }
+    assertEquals("T", parallelReader.getAlleleMap("S1").get("chr7:99652770").getAllele2());
+    assertEquals("TA", parallelReader.getAlleleMap("S2").get("chr7:99652770").getAllele2());
+    assertEquals("T", parallelReader.getAlleleMap("S2").get("chr7:99652770").getAllele1());
+    assertEquals(2, parallelReader.getWarnings("S1").get("chr7:99652770").size());
+  }
+
+
+  @Test
+  public void testSidecarIndexed() throws Exception {
+
+    Path dir = Files.createTempDirectory("pharmcat");
+    dir.toFile().deleteOnExit();
+    Path sidecarDir = dir.resolve("indexes");
+    sidecarDir.toFile().deleteOnExit();
+    NamedAlleleMatcher sidecarMatcher = new NamedAlleleMatcher(s_definitionReader)
+        .useSidecarIndexes(sidecarDir);
+    for (String file : new String[] { "VcfReaderTest-multisample.vcf", "VcfReaderTest-gvcf.vcf" }) {
+      Path vcfFile = dir.resolve(file);
+      Files.copy(PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/" + file), vcfFile);
+      vcfFile.toFile().deleteOnExit();
+      Path indexFile = VcfSidecarIndex.getIndexFile(sidecarDir, vcfFile);
+      indexFile.toFile().deleteOnExit();
+
+      VcfReader scanReader;
+      VcfReader indexedReader;
+      long minFileSize = VcfReader.SIDECAR_MIN_FILE_SIZE;
+      try {
+        VcfReader.SIDECAR_MIN_FILE_SIZE = 0;
+        // indexes are only used if asked for
+        scanReader = s_namedAlleleMatcher.buildVcfReader(vcfFile, true);
+        assertFalse(Files.exists(indexFile));
+        assertFalse(Files.exists(VcfSidecarIndex.getIndexFile(dir, vcfFile)));
+        indexedReader = sidecarMatcher.buildVcfReader(vcfFile, true);
+      } finally {
+        VcfReader.SIDECAR_MIN_FILE_SIZE = minFileSize;
+      }
+      assertTrue(Files.exists(indexFile));
+      // once there is an index, it gets used regardless of file size
+      VcfReader reindexedReader = sidecarMatcher.buildVcfReader(vcfFile, true);
+
+      assertEquals(file, scanReader.getSamples(), indexedReader.getSamples());
+      for (String sampleId : scanReader.getSamples()) {
+        assertEquals(file, scanReader.getAlleleMap(sampleId).toString(),
+            indexedReader.getAlleleMap(sampleId).toString());
+        assertEquals(file, scanReader.getAlleleMap(sampleId).toString(),
+            reindexedReader.getAlleleMap(sampleId).toString());
+      }
+    }
+  }
+
+
+  @Test
+  public void testGrch37() throws Exception {
+
+    Path b38File = PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-multisample.vcf");
+    // CYP3A5 is 402377bp further along on GRCh38
+    List<String> lines = new ArrayList<>();
+    for (String line : Files.readAllLines(b38File)) {
+      if (line.startsWith("#CHROM")) {
+        lines.add("##contig=<ID=chr7,assembly=hg19>");
+      } else if (!line.startsWith("#")) {
+        String[] fields = line.split("\t", 3);
+        line = fields[0] + "\t" + (Integer.parseInt(fields[1]) - 402377) + "\t" + fields[2];
+      }
+      lines.add(line);
+    }
+    Path b37File = Files.createTempFile("pharmcat", ".vcf");
+    b37File.toFile().deleteOnExit();
+    Files.write(b37File, lines);
+
+    VcfReader b38Reader = s_namedAlleleMatcher.buildVcfReader(b38File, true);
+    VcfReader b37Reader = s_namedAlleleMatcher.buildVcfReader(b37File, true);
+    assertEquals("hg19", b37Reader.getGenomeBuild());
+    assertEquals(b38Reader.getSamples(), b37Reader.getSamples());
+    for (String sampleId : b38Reader.getSamples()) {
+      assertEquals(b38Reader.getAlleleMap(sampleId).toString(), b37Reader.getAlleleMap(sampleId).toString());
+      assertEquals(b38Reader.getWarnings(sampleId), b37Reader.getWarnings(sampleId));
+    }
+    assertEquals(99672916, b37Reader.getAlleleMap("S1").get("chr7:99672916").getPosition());
+
+    // GRCh37 positions only get translated if the file says it is on GRCh37
+    lines.replaceAll(l -> l.replace("assembly=hg19", "assembly=hg38"));
+    Files.write(b37File, lines);
+    assertTrue(s_namedAlleleMatcher.buildVcfReader(b37File, true).getAlleleMap("S1").isEmpty());
+  }
 }
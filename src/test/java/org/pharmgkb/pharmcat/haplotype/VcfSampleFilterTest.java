@@ -0,0 +1,82 @@
+package org.pharmgkb.pharmcat.haplotype;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * JUnit test for {@link VcfSampleFilter}.
+ */
+public class VcfSampleFilterTest {
+  private static final String[] sf_vcf = new String[] {
+      "##fileformat=VCFv4.1",
+      "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\tS2\tS3\tS4",
+      "chr1\t100\t.\tA\tG\t.\tPASS\t.\tGT:DP\t0/1:10\t1/1:20\t0/0:30\t./.:0",
+      "chr1\t200\t.\tA\tG\t.\tPASS\t.\tGT\t0/1\t1/1\t0/0\t./.",
+      "chr1\t300\t.\tA\tG\t.\tPASS\t.\tDP:GT\t10:0/1\t20:1/1\t30:0/0\t0:./.",
+      "chr1\t400\t.\tA\tG\t.\tPASS\t.\tGT:DP\t0/1:10\t1/1:20",
+  };
+
+
+  @Test
+  public void testByName() throws Exception {
+
+    assertEquals(String.join("\n",
+        "##fileformat=VCFv4.1",
+        "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS2\tS3",
+        "chr1\t100\t.\tA\tG\t.\tPASS\t.\tGT\t1/1\t0/0",
+        "chr1\t200\t.\tA\tG\t.\tPASS\t.\tGT\t1/1\t0/0",
+        "chr1\t300\t.\tA\tG\t.\tPASS\t.\tDP:GT\t20:1/1\t30:0/0",
+        "chr1\t400\t.\tA\tG\t.\tPASS\t.\tGT\t1/1"),
+        filter(new VcfSampleFilter(input(), Arrays.asList("S3", "S2"), null)));
+  }
+
+  @Test
+  public void testByIndex() throws Exception {
+
+    assertEquals(String.join("\n",
+        "##fileformat=VCFv4.1",
+        "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\tS4",
+        "chr1\t100\t.\tA\tG\t.\tPASS\t.\tGT\t0/1\t./.",
+        "chr1\t200\t.\tA\tG\t.\tPASS\t.\tGT\t0/1\t./.",
+        "chr1\t300\t.\tA\tG\t.\tPASS\t.\tDP:GT\t10:0/1\t0:./.",
+        "chr1\t400\t.\tA\tG\t.\tPASS\t.\tGT\t0/1"),
+        filter(new VcfSampleFilter(input(), null, new int[] { 3, 0, 3 })));
+  }
+
+  @Test
+  public void testUnknownSample() throws Exception {
+
+    try {
+      filter(new VcfSampleFilter(input(), Collections.singletonList("S5"), null));
+      fail("Should have failed on unknown sample");
+    } catch (IllegalArgumentException ex) {
+      assertTrue(ex.getMessage().contains("S5"));
+    }
+    try {
+      filter(new VcfSampleFilter(input(), null, new int[] { 4 }));
+      fail("Should have failed on out of range index");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+  }
+
+
+  private static InputStream input() {
+    return new ByteArrayInputStream(String.join("\n", sf_vcf).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String filter(VcfSampleFilter filter) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteStreams.copy(filter, out);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,75 @@
+package org.pharmgkb.pharmcat.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import org.pharmgkb.common.util.PathUtils;
+import org.pharmgkb.pharmcat.ParseException;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * JUnit test for {@link ParallelBgzfInputStream}.
+ */
+public class ParallelBgzfInputStreamTest {
+  private static final Path sf_bgzfFile =
+      PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-indexed.vcf.gz");
+
+
+  @Test
+  public void testRead() throws Exception {
+
+    byte[] expected;
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(sf_bgzfFile))) {
+      expected = IOUtils.toByteArray(in);
+    }
+
+    int batchSize = ParallelBgzfInputStream.BATCH_SIZE;
+    try {
+      // smallest batch possible, so blocks get split across batches
+      ParallelBgzfInputStream.BATCH_SIZE = 1;
+      for (int numThreads : new int[] { 1, 2, 4 }) {
+        try (InputStream in = new ParallelBgzfInputStream(Files.newInputStream(sf_bgzfFile), numThreads)) {
+          assertArrayEquals("threads: " + numThreads, expected, IOUtils.toByteArray(in));
+        }
+      }
+    } finally {
+      ParallelBgzfInputStream.BATCH_SIZE = batchSize;
+    }
+
+    try (InputStream in = new ParallelBgzfInputStream(sf_bgzfFile)) {
+      assertArrayEquals(expected, IOUtils.toByteArray(in));
+    }
+  }
+
+
+  @Test
+  public void testTruncated() throws Exception {
+
+    byte[] data = Files.readAllBytes(sf_bgzfFile);
+    try (InputStream in = new ParallelBgzfInputStream(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 10)),
+        2)) {
+      IOUtils.toByteArray(in);
+      fail("Should have failed on truncated data");
+    } catch (ParseException ex) {
+      assertTrue(ex.getMessage().contains("incomplete block"));
+    }
+  }
+
+
+  @Test(expected = ParseException.class)
+  public void testNotBgzf() throws Exception {
+
+    byte[] data = Files.readAllBytes(
+        PathUtils.getPathToResource("org/pharmgkb/pharmcat/haplotype/VcfReaderTest-multisample.vcf"));
+    try (InputStream in = new ParallelBgzfInputStream(new ByteArrayInputStream(data), 2)) {
+      IOUtils.toByteArray(in);
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package org.pharmgkb.pharmcat.util;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * JUnit test for {@link VcfSidecarIndex}.
+ */
+public class VcfSidecarIndexTest {
+  private static final String HEADER = "##fileformat=VCFv4.2\n" +
+      "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\n";
+  private static final String LINE1 = "chr1\t100\t.\tA\tG\t.\tPASS\t.\tGT\t0/1\n";
+  private static final String LINE2 = "chr1\t200000\t.\tC\t<NON_REF>\t.\tPASS\tEND=250000\tGT\t0/0\n";
+  private static final String LINE3 = "chr2\t500\t.\tT\tC\t.\tPASS\tDP=3\tGT\t1/1\n";
+
+
+  @Test
+  public void testQuery() throws Exception {
+
+    Path vcfFile = writeVcf(HEADER + LINE1 + LINE2 + LINE3);
+    VcfSidecarIndex index = VcfSidecarIndex.loadOrBuild(vcfFile, vcfFile.getParent());
+    assertTrue(index.isSorted());
+    assertEquals(HEADER.length(), index.getHeaderLength());
+    assertEquals(Arrays.asList("chr1", "chr2"), index.getContigs());
+
+    long line2Start = HEADER.length() + LINE1.length();
+    assertChunk("chr1:100", HEADER.length(), line2Start, index.query("chr1", 100, 100));
+    // inside gVCF block
+    assertChunk("chr1:240000", line2Start, line2Start + LINE2.length(), index.query("chr1", 240000, 240000));
+    assertChunk("chr2:500", line2Start + LINE2.length(), line2Start + LINE2.length() + LINE3.length(),
+        index.query("chr2", 500, 500));
+    assertTrue(index.query("chr1", 5000000, 5000000).isEmpty());
+    assertTrue(index.query("chr3", 100, 100).isEmpty());
+
+    // should be saved
+    VcfSidecarIndex saved = VcfSidecarIndex.load(vcfFile, vcfFile.getParent());
+    assertNotNull(saved);
+    // but not for another file with the same name
+    Path otherFile = writeVcf(HEADER + LINE1 + LINE2 + LINE3);
+    assertNull(VcfSidecarIndex.load(otherFile, vcfFile.getParent()));
+    assertEquals(index.getContigs(), saved.getContigs());
+    assertEquals(index.getHeaderLength(), saved.getHeaderLength());
+    assertEquals(1, saved.query("chr1", 240000, 240000).size());
+    assertEquals(line2Start, saved.query("chr1", 240000, 240000).get(0).getStart());
+  }
+
+  /**
+   * Makes sure that building an index from many chunks gives the same index as building it from one.
+   */
+  @Test
+  public void testChunks() throws Exception {
+
+    String[] data = new String[] {
+        HEADER + LINE1 + LINE2 + LINE3,
+        HEADER + LINE1 + LINE1.replace("100", "150") + LINE2 + LINE3 + LINE3.replace("500", "600"),
+    };
+    long chunkSize = VcfSidecarIndex.CHUNK_SIZE;
+    try {
+      for (String vcf : data) {
+        Path vcfFile = writeVcf(vcf);
+        VcfSidecarIndex.CHUNK_SIZE = Integer.MAX_VALUE;
+        VcfSidecarIndex expected = VcfSidecarIndex.build(vcfFile);
+        // every line in its own chunk
+        VcfSidecarIndex.CHUNK_SIZE = 1;
+        VcfSidecarIndex actual = VcfSidecarIndex.build(vcfFile);
+        assertTrue(actual.isSorted());
+        assertEquals(expected.getHeaderLength(), actual.getHeaderLength());
+        assertEquals(expected.getContigs(), actual.getContigs());
+        for (int pos : new int[] { 100, 150, 500, 600, 200000, 240000 }) {
+          for (String contig : expected.getContigs()) {
+            assertEquals(contig + ":" + pos, toString(expected.query(contig, pos, pos)),
+                toString(actual.query(contig, pos, pos)));
+          }
+        }
+      }
+
+      // going backwards across chunks
+      VcfSidecarIndex.CHUNK_SIZE = 1;
+      assertFalse(VcfSidecarIndex.build(writeVcf(HEADER + LINE2 + LINE1 + LINE3)).isSorted());
+      assertFalse(VcfSidecarIndex.build(writeVcf(HEADER + LINE1 + LINE3 + LINE2)).isSorted());
+    } finally {
+      VcfSidecarIndex.CHUNK_SIZE = chunkSize;
+    }
+  }
+
+  private static String toString(List<TabixIndex.Chunk> chunks) {
+    StringBuilder builder = new StringBuilder();
+    for (TabixIndex.Chunk chunk : chunks) {
+      builder.append(chunk.getStart())
+          .append("-")
+          .append(chunk.getEnd())
+          .append(" ");
+    }
+    return builder.toString();
+  }
+
+  private static void assertChunk(String message, long start, long end, List<TabixIndex.Chunk> chunks) {
+    assertEquals(message, 1, chunks.size());
+    assertEquals(message, start, chunks.get(0).getStart());
+    assertEquals(message, end, chunks.get(0).getEnd());
+  }
+
+
+  @Test
+  public void testStale() throws Exception {
+
+    Path vcfFile = writeVcf(HEADER + LINE1 + LINE3);
+    VcfSidecarIndex.loadOrBuild(vcfFile, vcfFile.getParent());
+    assertNotNull(VcfSidecarIndex.load(vcfFile, vcfFile.getParent()));
+
+    // same size, different time
+    Files.setLastModifiedTime(vcfFile, FileTime.fromMillis(Files.getLastModifiedTime(vcfFile).toMillis() - 60000));
+    assertNull(VcfSidecarIndex.load(vcfFile, vcfFile.getParent()));
+    VcfSidecarIndex.loadOrBuild(vcfFile, vcfFile.getParent());
+    assertNotNull(VcfSidecarIndex.load(vcfFile, vcfFile.getParent()));
+
+    // same time, different size
+    FileTime lastModified = Files.getLastModifiedTime(vcfFile);
+    Files.write(vcfFile, Collections.singletonList(HEADER + LINE1 + LINE2 + LINE3), StandardCharsets.UTF_8);
+    Files.setLastModifiedTime(vcfFile, lastModified);
+    assertNull(VcfSidecarIndex.load(vcfFile, vcfFile.getParent()));
+  }
+
+
+  @Test
+  public void testUnsorted() throws Exception {
+
+    Path vcfFile = writeVcf(HEADER + LINE3 + LINE1 + LINE2);
+    assertTrue(VcfSidecarIndex.build(vcfFile).isSorted());
+
+    vcfFile = writeVcf(HEADER + LINE2 + LINE1 + LINE3);
+    assertFalse(VcfSidecarIndex.build(vcfFile).isSorted());
+
+    vcfFile = writeVcf(HEADER + LINE1 + LINE3 + LINE2);
+    VcfSidecarIndex index = VcfSidecarIndex.loadOrBuild(vcfFile, vcfFile.getParent());
+    assertFalse(index.isSorted());
+    // gets remembered
+    index = VcfSidecarIndex.load(vcfFile, vcfFile.getParent());
+    assertNotNull(index);
+    assertFalse(index.isSorted());
+  }
+
+
+  private static Path writeVcf(String data) throws Exception {
+
+    Path dir = Files.createTempDirectory("pharmcat");
+    dir.toFile().deleteOnExit();
+    Path vcfFile = dir.resolve("test.vcf");
+    Files.write(vcfFile, data.getBytes(StandardCharsets.UTF_8));
+    vcfFile.toFile().deleteOnExit();
+    VcfSidecarIndex.getIndexFile(vcfFile.getParent(), vcfFile).toFile().deleteOnExit();
+    return vcfFile;
+  }
+}